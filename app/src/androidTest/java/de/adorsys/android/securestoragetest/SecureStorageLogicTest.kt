@@ -4,9 +4,13 @@ package de.adorsys.android.securestoragetest
 
 import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner
 import de.adorsys.android.securestoragelibrary.SecurePreferences
+import de.adorsys.android.securestoragelibrary.SecureStorageCallback
+import de.adorsys.android.securestoragelibrary.SecureStorageException
 import org.junit.Assert
 import org.junit.Test
 import org.junit.runner.RunWith
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
 
 /**
  * Instrumented test, which will execute on an Android device.
@@ -174,4 +178,150 @@ open class SecureStorageLogicTest : SecureStorageBaseTest() {
         // Delete keys and clear SecureStorage
         SecurePreferences.clearAllValues(context)
     }
+
+    @Test
+    fun testStoreRetrieveAndRemoveLargeStringValue() {
+        val KEY_LARGE_STRING = "KEY_LARGE_STRING"
+        // Larger than a single RSA block, which was the limit before the envelope encryption
+        val VALUE_LARGE_STRING = "The wheels on the \uD83D\uDE8C go, Round and round. ".repeat(100)
+        val context = activityRule.activity.applicationContext
+
+        // Store a large String value in SecureStorage
+        SecurePreferences.setValue(context, KEY_LARGE_STRING, VALUE_LARGE_STRING)
+
+        // Retrieve the previously stored String value from the SecureStorage
+        val retrievedValue = SecurePreferences.getStringValue(context, KEY_LARGE_STRING, null)
+
+        // Check if the retrievedValue equals the pre-stored value
+        Assert.assertEquals(VALUE_LARGE_STRING, retrievedValue)
+
+        // Remove the String value from SecureStorage
+        SecurePreferences.removeValue(context, KEY_LARGE_STRING)
+
+        // Check if the String value has been removed from SecureStorage
+        Assert.assertFalse(SecurePreferences.contains(context, KEY_LARGE_STRING))
+
+        // Delete keys and clear SecureStorage
+        SecurePreferences.clearAllValues(context)
+    }
+
+    @Test
+    fun testStoreRetrieveAndRemoveCachedStringValue() {
+        val KEY_CACHED_STRING = "KEY_CACHED_STRING"
+        val VALUE_CACHED_STRING = "Cached \uD83D\uDE8C"
+        val VALUE_CACHED_STRING_UPDATED = "Updated \uD83D\uDE8C"
+        val context = activityRule.activity.applicationContext
+
+        SecurePreferences.enableValueCache(context, 8, 1024)
+
+        // Store a String value in SecureStorage and read it twice, the second time from the cache
+        SecurePreferences.setValue(context, KEY_CACHED_STRING, VALUE_CACHED_STRING)
+        Assert.assertEquals(VALUE_CACHED_STRING, SecurePreferences.getStringValue(context, KEY_CACHED_STRING, null))
+        Assert.assertEquals(VALUE_CACHED_STRING, SecurePreferences.getStringValue(context, KEY_CACHED_STRING, null))
+
+        // Check if an updated value replaces the cached one
+        SecurePreferences.setValue(context, KEY_CACHED_STRING, VALUE_CACHED_STRING_UPDATED)
+        Assert.assertEquals(VALUE_CACHED_STRING_UPDATED, SecurePreferences.getStringValue(context, KEY_CACHED_STRING, null))
+
+        // Check if the removed value is not served from the cache anymore
+        SecurePreferences.removeValue(context, KEY_CACHED_STRING)
+        Assert.assertNull(SecurePreferences.getStringValue(context, KEY_CACHED_STRING, null))
+
+        // Delete keys, clear SecureStorage and disable the cache again
+        SecurePreferences.clearAllValues(context)
+        SecurePreferences.disableValueCache(context)
+    }
+
+    @Test
+    fun testStoreRetrieveAndRemoveBatchValues() {
+        val KEY_BATCH_STRING = "KEY_BATCH_STRING"
+        val KEY_BATCH_INT = "KEY_BATCH_INT"
+        val KEY_BATCH_MISSING = "KEY_BATCH_MISSING"
+        val VALUE_BATCH_STRING = "Batch \uD83D\uDE8C"
+        val VALUE_BATCH_INT = 93
+        val context = activityRule.activity.applicationContext
+
+        // Store several values with a single write in SecureStorage
+        Assert.assertTrue(SecurePreferences.edit(context)
+                .putString(KEY_BATCH_STRING, VALUE_BATCH_STRING)
+                .putInt(KEY_BATCH_INT, VALUE_BATCH_INT)
+                .commit())
+
+        // Retrieve all previously stored values at once, missing keys are not contained
+        val retrievedValues = SecurePreferences.getValues(context, listOf(KEY_BATCH_STRING, KEY_BATCH_INT, KEY_BATCH_MISSING))
+        Assert.assertEquals(2, retrievedValues.size)
+        Assert.assertEquals(VALUE_BATCH_STRING, retrievedValues[KEY_BATCH_STRING])
+        Assert.assertEquals(VALUE_BATCH_INT, SecurePreferences.getIntValue(context, KEY_BATCH_INT, 0))
+
+        // Remove both values with a single write from SecureStorage
+        Assert.assertTrue(SecurePreferences.edit(context)
+                .remove(KEY_BATCH_STRING)
+                .remove(KEY_BATCH_INT)
+                .commit())
+
+        // Check if the values have been removed from SecureStorage
+        Assert.assertFalse(SecurePreferences.contains(context, KEY_BATCH_STRING))
+        Assert.assertFalse(SecurePreferences.contains(context, KEY_BATCH_INT))
+
+        // Delete keys and clear SecureStorage
+        SecurePreferences.clearAllValues(context)
+    }
+
+    @Test
+    fun testStoreRetrieveAndRemoveStringSetValue() {
+        val KEY_SET = "KEY_SET"
+        val VALUE_SET = (0 until 200).map { "Element $it \uD83D\uDE8C" }.toSet()
+        val VALUE_SET_SMALL = setOf("Round", "and", "round")
+        val context = activityRule.activity.applicationContext
+
+        // Store a Set value in SecureStorage
+        SecurePreferences.setValue(context, KEY_SET, VALUE_SET)
+
+        // Check if the value exists in SecureStorage
+        Assert.assertTrue(SecurePreferences.contains(context, KEY_SET))
+
+        // Retrieve the previously stored Set value from the SecureStorage
+        Assert.assertEquals(VALUE_SET, SecurePreferences.getStringSetValue(context, KEY_SET, emptySet()))
+
+        // Check if a smaller Set replaces the previous one completely
+        SecurePreferences.setValue(context, KEY_SET, VALUE_SET_SMALL)
+        Assert.assertEquals(VALUE_SET_SMALL, SecurePreferences.getStringSetValue(context, KEY_SET, emptySet()))
+
+        // Remove the Set value from SecureStorage
+        SecurePreferences.removeValue(context, KEY_SET)
+
+        // Check if the Set value has been removed from SecureStorage
+        Assert.assertFalse(SecurePreferences.contains(context, KEY_SET))
+
+        // Delete keys and clear SecureStorage
+        SecurePreferences.clearAllValues(context)
+    }
+
+    @Test
+    fun testStoreRetrieveAndRemoveAsyncValue() {
+        val KEY_ASYNC = "KEY_ASYNC"
+        val VALUE_ASYNC = "Async \uD83D\uDE8C"
+        val context = activityRule.activity.applicationContext
+        val async = SecurePreferences.async(Executor { it.run() })
+
+        // Store a String value asynchronously in SecureStorage
+        async.setValue(context, KEY_ASYNC, VALUE_ASYNC, null).get(5, TimeUnit.SECONDS)
+
+        // Retrieve the value twice at the same time, both reads are served by one decryption
+        val callback = object : SecureStorageCallback<String> {
+            override fun onSuccess(result: String?) = Unit
+            override fun onError(e: SecureStorageException) = Unit
+        }
+        val firstRead = async.getStringValue(context, KEY_ASYNC, null, callback)
+        val secondRead = async.getStringValue(context, KEY_ASYNC, null, callback)
+        Assert.assertEquals(VALUE_ASYNC, firstRead.get(5, TimeUnit.SECONDS))
+        Assert.assertEquals(VALUE_ASYNC, secondRead.get(5, TimeUnit.SECONDS))
+
+        // Remove the value asynchronously and check if it has been removed
+        async.removeValue(context, KEY_ASYNC, null).get(5, TimeUnit.SECONDS)
+        Assert.assertFalse(SecurePreferences.contains(context, KEY_ASYNC))
+
+        // Delete keys and clear SecureStorage
+        async.clearAllValues(context, null).get(5, TimeUnit.SECONDS)
+    }
 }
\ No newline at end of file
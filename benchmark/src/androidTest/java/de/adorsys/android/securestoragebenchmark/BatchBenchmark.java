@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragebenchmark;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import de.adorsys.android.securestoragelibrary.SecurePreferences;
+import de.adorsys.android.securestoragelibrary.SecureStorageException;
+
+/**
+ * Benchmarks writing and reading batches of values, from a single key up to 10k keys
+ */
+@RunWith(Parameterized.class)
+public class BatchBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int size;
+    private final List<String> keys = new ArrayList<>();
+    private Context context;
+
+    public BatchBenchmark(int size) {
+        this.size = size;
+    }
+
+    @Parameterized.Parameters(name = "size={0}")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{1}, {10}, {100}, {1000}, {10000}});
+    }
+
+    @Before
+    public void setUp() throws SecureStorageException {
+        context = ApplicationProvider.getApplicationContext();
+        // keep the key generation and loading of the store out of the measurements
+        SecurePreferences.prewarm(context);
+        for (int i = 0; i < size; i++) {
+            keys.add("KEY_" + i);
+        }
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.clearAllValues(context);
+    }
+
+    @Test
+    public void commitBatch() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            writeBatch();
+        }
+    }
+
+    @Test
+    public void getValues() throws SecureStorageException {
+        writeBatch();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getValues(context, keys);
+        }
+    }
+
+    private void writeBatch() throws SecureStorageException {
+        SecurePreferences.Editor editor = SecurePreferences.edit(context);
+        for (String key : keys) {
+            editor.putString(key, key);
+        }
+        editor.commit();
+    }
+}
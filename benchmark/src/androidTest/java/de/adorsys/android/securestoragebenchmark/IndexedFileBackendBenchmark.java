@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragebenchmark;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import de.adorsys.android.securestoragelibrary.IndexedFileBackend;
+import de.adorsys.android.securestoragelibrary.SecurePreferences;
+import de.adorsys.android.securestoragelibrary.SecureStorageException;
+import de.adorsys.android.securestoragelibrary.SharedPreferencesBackend;
+
+/**
+ * Benchmarks reading from the indexed backend while no other process changes the file,
+ * with and without the checks of the multi-process mode
+ */
+@RunWith(Parameterized.class)
+public class IndexedFileBackendBenchmark {
+    private static final String KEY = "KEY_BENCHMARK";
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final boolean memoryMapped;
+    private final boolean multiProcess;
+    private Context context;
+    private File file;
+    private IndexedFileBackend backend;
+
+    public IndexedFileBackendBenchmark(boolean memoryMapped, boolean multiProcess) {
+        this.memoryMapped = memoryMapped;
+        this.multiProcess = multiProcess;
+    }
+
+    @Parameterized.Parameters(name = "memoryMapped={0},multiProcess={1}")
+    public static Collection<Object[]> modes() {
+        return Arrays.asList(new Object[][]{{false, false}, {false, true}, {true, false}, {true, true}});
+    }
+
+    @Before
+    public void setUp() throws SecureStorageException {
+        context = ApplicationProvider.getApplicationContext();
+        file = new File(context.getFilesDir(), "secure_storage_benchmark.log");
+        backend = new IndexedFileBackend(file, false, memoryMapped, multiProcess);
+        SecurePreferences.setStorageBackend(backend);
+        // keep the key generation and loading of the store out of the measurements
+        SecurePreferences.prewarm(context);
+        SecurePreferences.setValue(context, KEY, "The wheels on the bus go round and round");
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.clearAllValues(context);
+        SecurePreferences.setStorageBackend(new SharedPreferencesBackend(context, "SecurePreferences"));
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void getUnchangedBytes() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            backend.getBytes(KEY);
+        }
+    }
+
+    @Test
+    public void getUnchangedStringValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getStringValue(context, KEY, null);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragebenchmark;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import de.adorsys.android.securestoragelibrary.AndroidKeyStoreKeyProvider;
+import de.adorsys.android.securestoragelibrary.KeyStrategy;
+import de.adorsys.android.securestoragelibrary.SecurePreferences;
+import de.adorsys.android.securestoragelibrary.SecureStorageException;
+
+/**
+ * Benchmarks wrapping and unwrapping a data key with the key of every strategy. Strategies the device
+ * doesn't support fall back to the next one, the strategy actually used is logged.
+ */
+@RunWith(Parameterized.class)
+public class KeyStrategyBenchmark {
+    private static final int DATA_KEY_LENGTH = 32;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final KeyStrategy strategy;
+    private final byte[] dataKey = new byte[DATA_KEY_LENGTH];
+    private AndroidKeyStoreKeyProvider keyProvider;
+    private Context context;
+
+    public KeyStrategyBenchmark(KeyStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    @Parameterized.Parameters(name = "strategy={0}")
+    public static Collection<Object[]> strategies() {
+        return Arrays.asList(new Object[][]{
+                {KeyStrategy.AES_GCM_STRONGBOX}, {KeyStrategy.AES_GCM}, {KeyStrategy.RSA_PKCS1}});
+    }
+
+    @Before
+    public void setUp() throws SecureStorageException {
+        context = ApplicationProvider.getApplicationContext();
+        keyProvider = new AndroidKeyStoreKeyProvider(strategy);
+        SecurePreferences.setKeyProvider(keyProvider);
+        // start with a key generated with the strategy of this run and keep the generation out of the measurements
+        SecurePreferences.clearAllValues(context);
+        keyProvider.generateKey(context);
+        keyProvider.prewarm(context);
+        new SecureRandom().nextBytes(dataKey);
+        Log.i(KeyStrategyBenchmark.class.getSimpleName(),
+                "Preferred " + strategy + ", using " + keyProvider.getStrategy(context));
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.clearAllValues(context);
+        SecurePreferences.setKeyProvider(new AndroidKeyStoreKeyProvider());
+    }
+
+    @Test
+    public void wrapDataKey() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            keyProvider.encrypt(context, dataKey);
+        }
+    }
+
+    @Test
+    public void unwrapDataKey() throws SecureStorageException {
+        byte[] wrappedKey = keyProvider.encrypt(context, dataKey);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            keyProvider.decrypt(context, wrappedKey);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragebenchmark;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import de.adorsys.android.securestoragelibrary.SecurePreferences;
+import de.adorsys.android.securestoragelibrary.SecureStorageException;
+
+/**
+ * Benchmarks storing and retrieving single values of every supported type
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecurePreferencesBenchmark {
+    private static final String KEY = "KEY_BENCHMARK";
+    private static final Set<String> SET_VALUE = new HashSet<>(Arrays.asList(
+            "first", "second", "third", "fourth", "fifth", "sixth", "seventh", "eighth", "ninth", "tenth"));
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+
+    @Before
+    public void setUp() throws SecureStorageException {
+        context = ApplicationProvider.getApplicationContext();
+        // keep the key generation and loading of the store out of the measurements
+        SecurePreferences.prewarm(context);
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.clearAllValues(context);
+    }
+
+    @Test
+    public void setStringValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, KEY, "The wheels on the bus go round and round");
+        }
+    }
+
+    @Test
+    public void getStringValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, "The wheels on the bus go round and round");
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getStringValue(context, KEY, null);
+        }
+    }
+
+    @Test
+    public void setBooleanValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, KEY, true);
+        }
+    }
+
+    @Test
+    public void getBooleanValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, true);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getBooleanValue(context, KEY, false);
+        }
+    }
+
+    @Test
+    public void setFloatValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, KEY, 1.5f);
+        }
+    }
+
+    @Test
+    public void getFloatValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, 1.5f);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getFloatValue(context, KEY, 0f);
+        }
+    }
+
+    @Test
+    public void setLongValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, KEY, Long.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void getLongValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, Long.MAX_VALUE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getLongValue(context, KEY, 0L);
+        }
+    }
+
+    @Test
+    public void setIntValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, KEY, Integer.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void getIntValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, Integer.MAX_VALUE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getIntValue(context, KEY, 0);
+        }
+    }
+
+    @Test
+    public void setStringSetValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, KEY, SET_VALUE);
+        }
+    }
+
+    @Test
+    public void getStringSetValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, SET_VALUE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getStringSetValue(context, KEY, new HashSet<String>());
+        }
+    }
+
+    @Test
+    public void containsExistingKey() throws SecureStorageException {
+        SecurePreferences.setValue(context, KEY, true);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.contains(context, KEY);
+        }
+    }
+
+    @Test
+    public void containsMissingKey() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.contains(context, KEY);
+        }
+    }
+
+    @Test
+    public void getMissingStringValue() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            SecurePreferences.getStringValue(context, KEY, null);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragebenchmark;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import de.adorsys.android.securestoragelibrary.SecurePreferences;
+import de.adorsys.android.securestoragelibrary.SecureStorageException;
+import de.adorsys.android.securestoragelibrary.WritePolicy;
+
+/**
+ * Benchmarks rapid successive setValue calls with every write policy
+ */
+@RunWith(Parameterized.class)
+public class WritePolicyBenchmark {
+    private static final int KEY_COUNT = 10;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final WritePolicy policy;
+    private Context context;
+
+    public WritePolicyBenchmark(WritePolicy policy) {
+        this.policy = policy;
+    }
+
+    @Parameterized.Parameters(name = "policy={0}")
+    public static Collection<Object[]> policies() {
+        return Arrays.asList(new Object[][]{{WritePolicy.COMMIT}, {WritePolicy.APPLY}, {WritePolicy.COALESCE}});
+    }
+
+    @Before
+    public void setUp() throws SecureStorageException {
+        context = ApplicationProvider.getApplicationContext();
+        // keep the key generation and loading of the store out of the measurements
+        SecurePreferences.prewarm(context);
+        SecurePreferences.setWritePolicy(context, policy);
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.setWritePolicy(context, WritePolicy.APPLY);
+        SecurePreferences.clearAllValues(context);
+    }
+
+    @Test
+    public void setValues() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            SecurePreferences.setValue(context, "KEY_" + i++ % KEY_COUNT, i);
+        }
+    }
+
+    @Test
+    public void setValuesAndFlush() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                SecurePreferences.setValue(context, "KEY_" + i, i);
+            }
+            SecurePreferences.flush(context);
+        }
+    }
+}
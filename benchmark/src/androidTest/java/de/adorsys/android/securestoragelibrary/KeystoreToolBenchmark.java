@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+/**
+ * Benchmarks the encryption of single values, without any storage involved.
+ * Lives in the library package because KeystoreTool is package-private.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeystoreToolBenchmark {
+    private static final String SMALL_MESSAGE = "The wheels on the bus go round and round";
+    private static final String LARGE_MESSAGE = createMessage(16 * 1024);
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+
+    @Before
+    public void setUp() throws SecureStorageException {
+        context = ApplicationProvider.getApplicationContext();
+        // keep the key generation out of the measurements
+        KeystoreTool.prewarm(context, KeystoreTool.DEFAULT_KEY_ALIAS);
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.clearAllValues(context);
+    }
+
+    @Test
+    public void encryptSmallMessage() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, SMALL_MESSAGE);
+        }
+    }
+
+    @Test
+    public void decryptSmallMessage() throws SecureStorageException {
+        String encrypted = KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, SMALL_MESSAGE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            KeystoreTool.decryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, encrypted);
+        }
+    }
+
+    @Test
+    public void encryptLargeMessage() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, LARGE_MESSAGE);
+        }
+    }
+
+    @Test
+    public void decryptLargeMessage() throws SecureStorageException {
+        String encrypted = KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, LARGE_MESSAGE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            KeystoreTool.decryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, encrypted);
+        }
+    }
+
+    @Test
+    public void encryptIntValue() throws SecureStorageException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, Integer.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void decryptIntValue() throws SecureStorageException {
+        String encrypted = KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, Integer.MAX_VALUE);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            KeystoreTool.decryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, encrypted);
+        }
+    }
+
+    private static String createMessage(int length) {
+        char[] message = new char[length];
+        Arrays.fill(message, 'a');
+        return new String(message);
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Build.VERSION;
+import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+import android.view.View;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.UnrecoverableKeyException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.security.auth.x500.X500Principal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import static android.content.Context.MODE_PRIVATE;
+import static android.os.Build.VERSION_CODES.M;
+import static android.os.Build.VERSION_CODES.P;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.CRYPTO_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.KEYSTORE_EXCEPTION;
+
+/**
+ * Default key provider, which keeps the master key in the AndroidKeyStore. The key is generated with the strongest
+ * {@link KeyStrategy} the device supports, starting at the preferred one: an AES/GCM key on API 23+, optionally
+ * in StrongBox, and an RSA key pair before API 23. The chosen strategy is persisted, so the device capabilities
+ * are only probed once. Installations with an RSA key pair of an older version of the library keep using it.
+ */
+public final class AndroidKeyStoreKeyProvider implements KeyProvider {
+    private static final String KEY_ALIAS = "adorsysKeyPair";
+    private static final String KEY_SECRET_KEY_ALIAS = "adorsysSecretKey";
+    private static final String KEY_STRATEGY_PREFERENCES_NAME = "SecurePreferencesKeyStrategy";
+    private static final String KEY_STRATEGY = "strategy";
+    private static final String KEY_ENCRYPTION_ALGORITHM = "RSA";
+    private static final String KEY_SECRET_KEY_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SECRET_KEY_SIZE = 256;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final String KEY_KEYSTORE_NAME = "AndroidKeyStore";
+    private static final String KEY_CIPHER_JELLYBEAN_PROVIDER = "AndroidOpenSSL";
+    private static final String KEY_CIPHER_MARSHMALLOW_PROVIDER = "AndroidKeyStoreBCWorkaround";
+    private static final String KEY_TRANSFORMATION_ALGORITHM = "RSA/ECB/PKCS1Padding";
+    private static final String KEY_X500PRINCIPAL = "CN=SecureDeviceStorage, O=Adorsys, C=Germany";
+
+    // Cipher instances are not thread safe, so every thread keeps its own reusable instance.
+    // They are initialized with the current key before every use.
+    private static final ThreadLocal<Cipher> RSA_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> AES_CIPHER = new ThreadLocal<>();
+
+    @NonNull
+    private final KeyStrategy preferredStrategy;
+
+    // Strategy of the existing key, null as long as it is unknown or there is no key
+    @Nullable
+    private volatile KeyStrategy strategy;
+
+    // Handles resolved from the AndroidKeyStore, kept for the lifetime of the process
+    // and invalidated as soon as the key gets deleted
+    @Nullable
+    private volatile KeyStore keyStore;
+    @Nullable
+    private volatile PrivateKey privateKey;
+    @Nullable
+    private volatile PublicKey publicKey;
+    @Nullable
+    private volatile SecretKey secretKey;
+
+    /**
+     * Creates the provider with {@link KeyStrategy#AES_GCM} as preferred strategy
+     */
+    public AndroidKeyStoreKeyProvider() {
+        this(KeyStrategy.AES_GCM);
+    }
+
+    /**
+     * @param preferredStrategy Strategy tried first when the key is generated, e.g. {@link KeyStrategy#AES_GCM_STRONGBOX}
+     *                          to opt in to StrongBox. An existing key keeps the strategy it has been generated with.
+     */
+    public AndroidKeyStoreKeyProvider(@NonNull KeyStrategy preferredStrategy) {
+        this.preferredStrategy = preferredStrategy;
+    }
+
+    /**
+     * @param context Context is used internally
+     * @return the strategy of the existing key or null if there is no key
+     */
+    @Nullable
+    public KeyStrategy getStrategy(@NonNull Context context) throws SecureStorageException {
+        KeyStrategy strategy = this.strategy;
+        if (strategy != null) {
+            return strategy;
+        }
+        synchronized (this) {
+            if (this.strategy == null) {
+                String name = getStrategyPreferences(context).getString(KEY_STRATEGY, null);
+                if (name != null) {
+                    this.strategy = KeyStrategy.valueOf(name);
+                } else if (loadSecretKey() != null) {
+                    // the strategy got lost, StrongBox keys are used the same way
+                    this.strategy = KeyStrategy.AES_GCM;
+                    persistStrategy(context, KeyStrategy.AES_GCM);
+                } else if (loadPrivateKey() != null) {
+                    // generated by a version of the library which didn't persist the strategy
+                    this.strategy = KeyStrategy.RSA_PKCS1;
+                    persistStrategy(context, KeyStrategy.RSA_PKCS1);
+                }
+            }
+            return this.strategy;
+        }
+    }
+
+    @Override
+    public boolean keyExists() throws SecureStorageException {
+        KeyStrategy strategy = this.strategy;
+        if (strategy == KeyStrategy.RSA_PKCS1) {
+            return loadPrivateKey() != null;
+        }
+        if (strategy != null) {
+            return loadSecretKey() != null;
+        }
+        return loadSecretKey() != null || loadPrivateKey() != null;
+    }
+
+    @Override
+    public synchronized void generateKey(@NonNull Context context) throws SecureStorageException {
+        // Create new key if needed
+        if (keyExists()) {
+            if (BuildConfig.DEBUG) {
+                Log.e(AndroidKeyStoreKeyProvider.class.getName(),
+                        context.getString(R.string.message_keypair_already_exists));
+            }
+            return;
+        }
+
+        // Walk down from the preferred strategy until the device supports one
+        KeyStrategy[] strategies = KeyStrategy.values();
+        for (int i = preferredStrategy.ordinal(); i < strategies.length; i++) {
+            if (generateKey(context, strategies[i])) {
+                strategy = strategies[i];
+                persistStrategy(context, strategies[i]);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deleteKey(@NonNull Context context) throws SecureStorageException {
+        // Delete Key from Keystore
+        if (keyExists()) {
+            try {
+                KeyStore keyStore = getKeyStoreInstance();
+                if (keyStore.containsAlias(KEY_SECRET_KEY_ALIAS)) {
+                    keyStore.deleteEntry(KEY_SECRET_KEY_ALIAS);
+                }
+                if (keyStore.containsAlias(KEY_ALIAS)) {
+                    keyStore.deleteEntry(KEY_ALIAS);
+                }
+            } catch (KeyStoreException e) {
+                throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+            } finally {
+                invalidateKeyCache();
+            }
+        } else if (BuildConfig.DEBUG) {
+            Log.e(AndroidKeyStoreKeyProvider.class.getName(),
+                    context.getString(R.string.message_keypair_does_not_exist));
+        }
+        // the next key is generated with the strongest strategy again
+        strategy = null;
+        getStrategyPreferences(context).edit().remove(KEY_STRATEGY).commit();
+    }
+
+    @Override
+    public void prewarm(@NonNull Context context) throws SecureStorageException {
+        try {
+            if (requireStrategy(context) == KeyStrategy.RSA_PKCS1) {
+                getPublicKey(context);
+                getPrivateKey(context);
+                getRsaCipher();
+            } else {
+                getSecretKey(context);
+                getAesCipher();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    @Override
+    public byte[] encrypt(@NonNull Context context, @NonNull byte[] plainBytes) throws SecureStorageException {
+        try {
+            if (requireStrategy(context) == KeyStrategy.RSA_PKCS1) {
+                Cipher input = getRsaCipher();
+                input.init(Cipher.ENCRYPT_MODE, getPublicKey(context));
+                return input.doFinal(plainBytes);
+            }
+            // the keystore generates the IV, which is stored in front of the ciphertext
+            Cipher input = getAesCipher();
+            input.init(Cipher.ENCRYPT_MODE, getSecretKey(context));
+            byte[] iv = input.getIV();
+            byte[] encryptedBytes = new byte[GCM_IV_LENGTH + input.getOutputSize(plainBytes.length)];
+            System.arraycopy(iv, 0, encryptedBytes, 0, GCM_IV_LENGTH);
+            int length = input.doFinal(plainBytes, 0, plainBytes.length, encryptedBytes, GCM_IV_LENGTH);
+            return length == encryptedBytes.length - GCM_IV_LENGTH
+                    ? encryptedBytes : Arrays.copyOf(encryptedBytes, GCM_IV_LENGTH + length);
+        } catch (SecureStorageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    @Override
+    public byte[] decrypt(@NonNull Context context, @NonNull byte[] encryptedBytes) throws SecureStorageException {
+        try {
+            if (requireStrategy(context) == KeyStrategy.RSA_PKCS1) {
+                Cipher output = getRsaCipher();
+                output.init(Cipher.DECRYPT_MODE, getPrivateKey(context));
+                return output.doFinal(encryptedBytes);
+            }
+            Cipher output = getAesCipher();
+            output.init(Cipher.DECRYPT_MODE, getSecretKey(context),
+                    new GCMParameterSpec(GCM_TAG_LENGTH, encryptedBytes, 0, GCM_IV_LENGTH));
+            return output.doFinal(encryptedBytes, GCM_IV_LENGTH, encryptedBytes.length - GCM_IV_LENGTH);
+        } catch (Exception e) {
+            throw new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    private KeyStrategy requireStrategy(@NonNull Context context) throws SecureStorageException {
+        KeyStrategy strategy = getStrategy(context);
+        if (strategy == null) {
+            if (BuildConfig.DEBUG) {
+                Log.e(AndroidKeyStoreKeyProvider.class.getName(), context.getString(R.string.message_keypair_does_not_exist));
+            }
+            throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
+        }
+        return strategy;
+    }
+
+    /**
+     * @return true if the key has been generated, false if the device doesn't support the strategy
+     */
+    private static boolean generateKey(@NonNull Context context,
+                                       @NonNull KeyStrategy strategy) throws SecureStorageException {
+        switch (strategy) {
+            case AES_GCM_STRONGBOX:
+                if (VERSION.SDK_INT < P
+                        || !context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_STRONGBOX_KEYSTORE)) {
+                    return false;
+                }
+                return generateSecretKey(true);
+            case AES_GCM:
+                return VERSION.SDK_INT >= M && generateSecretKey(false);
+            default:
+                if (VERSION.SDK_INT >= M) {
+                    generateKeyPairForMarshmallow(context);
+                } else {
+                    PRNGFixes.apply();
+                    generateKeyPairUnderMarshmallow(context);
+                }
+                return true;
+        }
+    }
+
+    @NonNull
+    private static SharedPreferences getStrategyPreferences(@NonNull Context context) {
+        return context.getSharedPreferences(KEY_STRATEGY_PREFERENCES_NAME, MODE_PRIVATE);
+    }
+
+    private static void persistStrategy(@NonNull Context context, @NonNull KeyStrategy strategy) {
+        getStrategyPreferences(context).edit().putString(KEY_STRATEGY, strategy.name()).commit();
+    }
+
+    @NonNull
+    private SecretKey getSecretKey(@NonNull Context context) throws SecureStorageException {
+        SecretKey secretKey = loadSecretKey();
+        if (secretKey == null) {
+            if (BuildConfig.DEBUG) {
+                Log.e(AndroidKeyStoreKeyProvider.class.getName(), context.getString(R.string.message_keypair_does_not_exist));
+            }
+            throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
+        }
+        return secretKey;
+    }
+
+    /**
+     * Returns the AES key, resolving it from the keystore only if it is not cached yet
+     */
+    @Nullable
+    private SecretKey loadSecretKey() throws SecureStorageException {
+        SecretKey secretKey = this.secretKey;
+        if (secretKey != null) {
+            return secretKey;
+        }
+        if (VERSION.SDK_INT < M) {
+            return null;
+        }
+        try {
+            secretKey = (SecretKey) getKeyStoreInstance().getKey(KEY_SECRET_KEY_ALIAS, null);
+            this.secretKey = secretKey;
+            return secretKey;
+        } catch (NoSuchAlgorithmException e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        } catch (KeyStoreException | UnrecoverableKeyException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private PublicKey getPublicKey(@NonNull Context context) throws SecureStorageException {
+        PublicKey publicKey = this.publicKey;
+        if (publicKey != null) {
+            return publicKey;
+        }
+        try {
+            if (keyExists()) {
+                publicKey = getKeyStoreInstance().getCertificate(KEY_ALIAS).getPublicKey();
+                this.publicKey = publicKey;
+            } else {
+                if (BuildConfig.DEBUG) {
+                    Log.e(AndroidKeyStoreKeyProvider.class.getName(), context.getString(R.string.message_keypair_does_not_exist));
+                }
+                throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
+            }
+        } catch (Exception e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+        return publicKey;
+    }
+
+    @NonNull
+    private PrivateKey getPrivateKey(@NonNull Context context) throws SecureStorageException {
+        PrivateKey privateKey;
+        try {
+            privateKey = loadPrivateKey();
+            if (privateKey == null) {
+                if (BuildConfig.DEBUG) {
+                    Log.e(AndroidKeyStoreKeyProvider.class.getName(), context.getString(R.string.message_keypair_does_not_exist));
+                }
+                throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
+            }
+        } catch (Exception e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+        return privateKey;
+    }
+
+    /**
+     * Returns the private key of the key pair, resolving it from the keystore only if it is not cached yet.
+     * Only existing keys are cached, so a missing key pair is looked up again on the next call.
+     */
+    @Nullable
+    private PrivateKey loadPrivateKey() throws SecureStorageException {
+        PrivateKey privateKey = this.privateKey;
+        if (privateKey != null) {
+            return privateKey;
+        }
+        try {
+            privateKey = (PrivateKey) getKeyStoreInstance().getKey(KEY_ALIAS, null);
+            this.privateKey = privateKey;
+            return privateKey;
+        } catch (NoSuchAlgorithmException e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        } catch (KeyStoreException | UnrecoverableKeyException e) {
+            return null;
+        }
+    }
+
+    private synchronized void invalidateKeyCache() {
+        privateKey = null;
+        publicKey = null;
+        secretKey = null;
+        keyStore = null;
+    }
+
+    @NonNull
+    private static Cipher getAesCipher() throws GeneralSecurityException {
+        Cipher cipher = AES_CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(KEY_SECRET_KEY_TRANSFORMATION);
+            AES_CIPHER.set(cipher);
+        }
+        return cipher;
+    }
+
+    @NonNull
+    private static Cipher getRsaCipher() throws GeneralSecurityException {
+        Cipher cipher = RSA_CIPHER.get();
+        if (cipher == null) {
+            if (VERSION.SDK_INT >= M) {
+                cipher = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM, KEY_CIPHER_MARSHMALLOW_PROVIDER);
+            } else {
+                cipher = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM, KEY_CIPHER_JELLYBEAN_PROVIDER);
+            }
+            RSA_CIPHER.set(cipher);
+        }
+        return cipher;
+    }
+
+    private static boolean isRTL(@NonNull Context context) {
+        Configuration config = context.getResources().getConfiguration();
+        return config.getLayoutDirection() == View.LAYOUT_DIRECTION_RTL;
+    }
+
+    @RequiresApi(api = M)
+    private static void generateKeyPairForMarshmallow(@NonNull Context context) throws SecureStorageException {
+        try {
+            if (isRTL(context)) {
+                Locale.setDefault(Locale.US);
+            }
+
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ENCRYPTION_ALGORITHM, KEY_KEYSTORE_NAME);
+
+            KeyGenParameterSpec keyGenParameterSpec =
+                    new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1)
+                            .build();
+
+            generator.initialize(keyGenParameterSpec);
+            generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+    }
+
+    /**
+     * @return true if the key has been generated, false if the keystore doesn't support it
+     */
+    @RequiresApi(api = M)
+    private static boolean generateSecretKey(boolean strongBoxBacked) throws SecureStorageException {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_KEYSTORE_NAME);
+
+            KeyGenParameterSpec.Builder builder =
+                    new KeyGenParameterSpec.Builder(KEY_SECRET_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                            .setKeySize(KEY_SECRET_KEY_SIZE);
+            if (strongBoxBacked && VERSION.SDK_INT >= P) {
+                builder.setIsStrongBoxBacked(true);
+            }
+
+            generator.init(builder.build());
+            generator.generateKey();
+            return true;
+        } catch (ProviderException e) {
+            // e.g. StrongBoxUnavailableException or a keystore without AES support
+            if (BuildConfig.DEBUG) {
+                Log.e(AndroidKeyStoreKeyProvider.class.getName(), e.getMessage(), e);
+            }
+            return false;
+        } catch (GeneralSecurityException e) {
+            if (BuildConfig.DEBUG) {
+                Log.e(AndroidKeyStoreKeyProvider.class.getName(), e.getMessage(), e);
+            }
+            return false;
+        }
+    }
+
+    private static void generateKeyPairUnderMarshmallow(@NonNull Context context) throws SecureStorageException {
+        try {
+            if (isRTL(context)) {
+                Locale.setDefault(Locale.US);
+            }
+
+            Calendar start = Calendar.getInstance();
+            Calendar end = Calendar.getInstance();
+            end.add(Calendar.YEAR, 99);
+
+            KeyPairGeneratorSpec spec = new KeyPairGeneratorSpec.Builder(context)
+                    .setAlias(KEY_ALIAS)
+                    .setSubject(new X500Principal(KEY_X500PRINCIPAL))
+                    .setSerialNumber(BigInteger.TEN)
+                    .setStartDate(start.getTime())
+                    .setEndDate(end.getTime())
+                    .build();
+
+            KeyPairGenerator generator
+                    = KeyPairGenerator.getInstance(KEY_ENCRYPTION_ALGORITHM, KEY_KEYSTORE_NAME);
+            generator.initialize(spec);
+            generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    private KeyStore getKeyStoreInstance() throws SecureStorageException {
+        KeyStore keyStore = this.keyStore;
+        if (keyStore != null) {
+            return keyStore;
+        }
+        synchronized (this) {
+            if (this.keyStore == null) {
+                try {
+                    // Get the AndroidKeyStore instance
+                    keyStore = KeyStore.getInstance(KEY_KEYSTORE_NAME);
+
+                    // Relict of the JCA API - you have to call load even
+                    // if you do not have an input stream you want to load or it'll crash
+                    keyStore.load(null);
+
+                    this.keyStore = keyStore;
+                } catch (Exception e) {
+                    throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+                }
+            }
+            return this.keyStore;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Backend which appends every change as a record to a log file, so writing a single value costs O(value)
+ * instead of rewriting the whole store. The file is compacted (rewritten with only the current values)
+ * once it contains more outdated than current records. A record which has not been written completely,
+ * e.g. because the process died, is detected by its checksum and dropped when the file is loaded.
+ * Values are kept as raw bytes, so SecurePreferences stores the ciphertext without Base64 encoding it.
+ * <p>
+ * Record layout: type (1 byte), key length (4 bytes), key, [value length (4 bytes), value,] CRC32 (4 bytes)
+ *
+ * @see IndexedFileBackend
+ */
+public final class AppendOnlyFileBackend implements BinarySecureStorageBackend {
+    private static final String TAG = AppendOnlyFileBackend.class.getName();
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String COMPACTION_FILE_POSTFIX = ".compact";
+    // Files smaller than this are never compacted, rewriting them would not be worth it
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    @NonNull
+    private final File file;
+    private final boolean syncOnWrite;
+
+    // Current values, null as long as the file has not been loaded
+    @Nullable
+    private Map<String, byte[]> values;
+    @Nullable
+    private FileOutputStream outputStream;
+    private long fileLength;
+    private long liveLength;
+
+    /**
+     * Creates a backend which only syncs the file to disk on synchronous writes
+     *
+     * @param file Log file, which is created on the first write
+     */
+    public AppendOnlyFileBackend(@NonNull File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file        Log file, which is created on the first write
+     * @param syncOnWrite True if every write has to be synced to disk (fsync),
+     *                    false if only synchronous writes are synced
+     */
+    public AppendOnlyFileBackend(@NonNull File file, boolean syncOnWrite) {
+        this.file = file;
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getValue(@NonNull String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, CHARSET);
+    }
+
+    @Nullable
+    @Override
+    public synchronized byte[] getBytes(@NonNull String key) {
+        Map<String, byte[]> values = load();
+        return values == null ? null : values.get(key);
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        Map<String, byte[]> values = load();
+        return values != null && values.containsKey(key);
+    }
+
+    @NonNull
+    @Override
+    public synchronized Set<String> getKeys() {
+        Map<String, byte[]> values = load();
+        return values == null ? new HashSet<String>() : new HashSet<>(values.keySet());
+    }
+
+    @Override
+    public synchronized boolean write(@NonNull Map<String, String> changes, boolean synchronous) {
+        Map<String, byte[]> byteChanges = new LinkedHashMap<>(changes.size());
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            String value = entry.getValue();
+            byteChanges.put(entry.getKey(), value == null ? null : value.getBytes(CHARSET));
+        }
+        return writeBytes(byteChanges, synchronous);
+    }
+
+    @Override
+    public synchronized boolean writeBytes(@NonNull Map<String, byte[]> changes, boolean synchronous) {
+        Map<String, byte[]> values = load();
+        if (values == null) {
+            return false;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+            String key = entry.getKey();
+            byte[] value = entry.getValue();
+            byte[] previous = value == null ? values.remove(key) : values.put(key, value);
+            if (previous != null) {
+                liveLength -= LogRecords.length(key, previous);
+            }
+            if (value != null) {
+                liveLength += LogRecords.length(key, value);
+            }
+            byte[] record = LogRecords.encode(key, value);
+            records.write(record, 0, record.length);
+        }
+
+        try {
+            FileOutputStream outputStream = getOutputStream();
+            records.writeTo(outputStream);
+            if (synchronous || syncOnWrite) {
+                outputStream.getFD().sync();
+            }
+            fileLength += records.size();
+        } catch (IOException e) {
+            logError(e);
+            // the file content is unknown now, load it again on the next access
+            reset();
+            return false;
+        }
+
+        if (fileLength > MIN_COMPACTION_SIZE && fileLength > 2 * liveLength) {
+            compactLocked(values);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean clear() {
+        if (load() == null) {
+            return false;
+        }
+        return compactLocked(new HashMap<String, byte[]>());
+    }
+
+    /**
+     * Rewrites the log file so that it only contains the current values
+     *
+     * @return True if the file has been compacted successfully, otherwise false
+     */
+    public synchronized boolean compact() {
+        Map<String, byte[]> values = load();
+        return values != null && compactLocked(values);
+    }
+
+    private boolean compactLocked(@NonNull Map<String, byte[]> values) {
+        File compactionFile = new File(file.getPath() + COMPACTION_FILE_POSTFIX);
+        long length = 0;
+        try {
+            closeOutputStream();
+            ensureParentDirectory();
+            FileOutputStream compactionStream = new FileOutputStream(compactionFile);
+            try {
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                    byte[] record = LogRecords.encode(entry.getKey(), entry.getValue());
+                    records.write(record, 0, record.length);
+                }
+                records.writeTo(compactionStream);
+                length = records.size();
+                compactionStream.getFD().sync();
+            } finally {
+                compactionStream.close();
+            }
+            if (!compactionFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file + " with the compacted file");
+            }
+        } catch (IOException e) {
+            logError(e);
+            //noinspection ResultOfMethodCallIgnored
+            compactionFile.delete();
+            reset();
+            return false;
+        }
+
+        this.values = values;
+        fileLength = length;
+        liveLength = length;
+        return true;
+    }
+
+    @NonNull
+    private FileOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            ensureParentDirectory();
+            outputStream = new FileOutputStream(file, true);
+        }
+        return outputStream;
+    }
+
+    private void ensureParentDirectory() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+    }
+
+    private void closeOutputStream() throws IOException {
+        if (outputStream != null) {
+            FileOutputStream stream = outputStream;
+            outputStream = null;
+            stream.close();
+        }
+    }
+
+    private void reset() {
+        values = null;
+        try {
+            closeOutputStream();
+        } catch (IOException e) {
+            logError(e);
+        }
+    }
+
+    /**
+     * @return the current values, loading them from the file if needed, or null if the file can't be read
+     */
+    @Nullable
+    private Map<String, byte[]> load() {
+        if (values != null) {
+            return values;
+        }
+        Map<String, byte[]> loadedValues = new HashMap<>();
+        long loadedLiveLength = 0;
+        int validLength = 0;
+        try {
+            byte[] content = readFile();
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                if (!readRecord(buffer, content, loadedValues)) {
+                    break;
+                }
+                validLength = buffer.position();
+            }
+            if (validLength < content.length) {
+                // drop a record which has not been written completely
+                truncateFile(validLength);
+            }
+        } catch (IOException e) {
+            logError(e);
+            return null;
+        }
+        for (Map.Entry<String, byte[]> entry : loadedValues.entrySet()) {
+            loadedLiveLength += LogRecords.length(entry.getKey(), entry.getValue());
+        }
+        values = loadedValues;
+        fileLength = validLength;
+        liveLength = loadedLiveLength;
+        return values;
+    }
+
+    /**
+     * @return true if a complete and valid record has been read and applied, otherwise false
+     */
+    private static boolean readRecord(@NonNull ByteBuffer buffer,
+                                      @NonNull byte[] content,
+                                      @NonNull Map<String, byte[]> values) {
+        int start = buffer.position();
+        try {
+            byte type = buffer.get();
+            int keyLength = readLength(buffer);
+            String key = new String(content, buffer.position() - keyLength, keyLength, CHARSET);
+            byte[] value = null;
+            if (type == LogRecords.RECORD_PUT) {
+                int length = readLength(buffer);
+                value = Arrays.copyOfRange(content, buffer.position() - length, buffer.position());
+            }
+            if (type != LogRecords.RECORD_PUT && type != LogRecords.RECORD_REMOVE) {
+                return false;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(content, start, buffer.position() - start);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                return false;
+            }
+
+            if (value == null) {
+                values.remove(key);
+            } else {
+                values.put(key, value);
+            }
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the length of the following field and skips the field
+     */
+    private static int readLength(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    @NonNull
+    private byte[] readFile() throws IOException {
+        if (!file.exists()) {
+            return new byte[0];
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < content.length
+                    && (read = inputStream.read(content, offset, content.length - offset)) != -1) { //NOPMD
+                offset += read;
+            }
+            return offset == content.length ? content : Arrays.copyOf(content, offset);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void truncateFile(long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void logError(@NonNull IOException e) {
+        if (BuildConfig.DEBUG) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+}
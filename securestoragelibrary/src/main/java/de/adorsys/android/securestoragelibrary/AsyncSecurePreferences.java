@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION;
+
+/**
+ * Asynchronous variant of {@link SecurePreferences}. Every operation runs on one dedicated background thread,
+ * which serializes all keystore access, and is reported to an optional {@link SecureStorageCallback}
+ * on the callback executor (the main thread by default). Concurrent reads of the same key are coalesced
+ * into a single decryption. Operations are executed in the order they have been requested.
+ * Obtain an instance with {@link SecurePreferences#async()} or {@link SecurePreferences#async(Executor)}.
+ */
+public final class AsyncSecurePreferences {
+    private static final String THREAD_NAME = "SecureStorage";
+
+    private static final ExecutorService CRYPTO_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Reads which are queued or running, mapped by their key
+    private static final Map<String, PendingRead> IN_FLIGHT_READS = new HashMap<>();
+
+    @NonNull
+    private final Executor callbackExecutor;
+
+    AsyncSecurePreferences(@Nullable Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor == null ? mainThreadExecutor() : callbackExecutor;
+    }
+
+    /**
+     * @return Executor posting to the main thread
+     */
+    @NonNull
+    static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Prewarms the SecureStorage on the background thread. As all operations run in order, every operation
+     * requested afterwards waits for it; the returned Future can be used to await readiness explicitly.
+     *
+     * @see SecurePreferences#prewarm(Context, String...)
+     */
+    @NonNull
+    public Future<Void> prewarm(@NonNull Context context,
+                                @Nullable SecureStorageCallback<Void> callback,
+                                @NonNull final String... hotKeys) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.prewarm(applicationContext, hotKeys);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#setValue(Context, String, String)
+     */
+    @NonNull
+    public Future<Void> setValue(@NonNull Context context,
+                                 @NonNull final String key,
+                                 @NonNull final String value,
+                                 @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.setValue(applicationContext, key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#setValue(Context, String, boolean)
+     */
+    @NonNull
+    public Future<Void> setValue(@NonNull Context context,
+                                 @NonNull final String key,
+                                 final boolean value,
+                                 @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.setValue(applicationContext, key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#setValue(Context, String, float)
+     */
+    @NonNull
+    public Future<Void> setValue(@NonNull Context context,
+                                 @NonNull final String key,
+                                 final float value,
+                                 @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.setValue(applicationContext, key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#setValue(Context, String, long)
+     */
+    @NonNull
+    public Future<Void> setValue(@NonNull Context context,
+                                 @NonNull final String key,
+                                 final long value,
+                                 @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.setValue(applicationContext, key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#setValue(Context, String, int)
+     */
+    @NonNull
+    public Future<Void> setValue(@NonNull Context context,
+                                 @NonNull final String key,
+                                 final int value,
+                                 @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.setValue(applicationContext, key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#setValue(Context, String, Set)
+     */
+    @NonNull
+    public Future<Void> setValue(@NonNull Context context,
+                                 @NonNull final String key,
+                                 @NonNull final Set<String> value,
+                                 @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.setValue(applicationContext, key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Encrypts and writes all changes of the given editor in the background
+     *
+     * @see SecurePreferences.Editor#commit()
+     */
+    @NonNull
+    public Future<Boolean> commit(@NonNull final SecurePreferences.Editor editor,
+                                  @Nullable SecureStorageCallback<Boolean> callback) {
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws SecureStorageException {
+                return editor.commit();
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#getStringValue(Context, String, String)
+     */
+    @NonNull
+    public Future<String> getStringValue(@NonNull Context context,
+                                         @NonNull String key,
+                                         @Nullable final String defValue,
+                                         @NonNull SecureStorageCallback<String> callback) {
+        return read(context, key, new ValueMapper<String>() {
+            @Override
+            public String map(@Nullable Object value) {
+                return SecurePreferences.toStringValue(value, defValue);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#getBooleanValue(Context, String, boolean)
+     */
+    @NonNull
+    public Future<Boolean> getBooleanValue(@NonNull Context context,
+                                           @NonNull String key,
+                                           final boolean defValue,
+                                           @NonNull SecureStorageCallback<Boolean> callback) {
+        return read(context, key, new ValueMapper<Boolean>() {
+            @Override
+            public Boolean map(@Nullable Object value) {
+                return SecurePreferences.toBooleanValue(value, defValue);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#getFloatValue(Context, String, float)
+     */
+    @NonNull
+    public Future<Float> getFloatValue(@NonNull Context context,
+                                       @NonNull String key,
+                                       final float defValue,
+                                       @NonNull SecureStorageCallback<Float> callback) {
+        return read(context, key, new ValueMapper<Float>() {
+            @Override
+            public Float map(@Nullable Object value) {
+                return SecurePreferences.toFloatValue(value, defValue);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#getLongValue(Context, String, long)
+     */
+    @NonNull
+    public Future<Long> getLongValue(@NonNull Context context,
+                                     @NonNull String key,
+                                     final long defValue,
+                                     @NonNull SecureStorageCallback<Long> callback) {
+        return read(context, key, new ValueMapper<Long>() {
+            @Override
+            public Long map(@Nullable Object value) {
+                return SecurePreferences.toLongValue(value, defValue);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#getIntValue(Context, String, int)
+     */
+    @NonNull
+    public Future<Integer> getIntValue(@NonNull Context context,
+                                       @NonNull String key,
+                                       final int defValue,
+                                       @NonNull SecureStorageCallback<Integer> callback) {
+        return read(context, key, new ValueMapper<Integer>() {
+            @Override
+            public Integer map(@Nullable Object value) {
+                return SecurePreferences.toIntValue(value, defValue);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#getStringSetValue(Context, String, Set)
+     */
+    @NonNull
+    public Future<Set<String>> getStringSetValue(@NonNull Context context,
+                                                 @NonNull final String key,
+                                                 @NonNull final Set<String> defValue,
+                                                 @NonNull SecureStorageCallback<Set<String>> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        CallbackTask<Set<String>> task = new CallbackTask<>(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return SecurePreferences.getStringSetValue(applicationContext, key, defValue);
+            }
+        }, callback);
+        CRYPTO_EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * @see SecurePreferences#getValues(Context, Collection)
+     */
+    @NonNull
+    public Future<Map<String, String>> getValues(@NonNull Context context,
+                                                 @NonNull Collection<String> keys,
+                                                 @NonNull SecureStorageCallback<Map<String, String>> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        final List<String> keyList = new ArrayList<>(keys);
+        CallbackTask<Map<String, String>> task = new CallbackTask<>(new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() {
+                return SecurePreferences.getValues(applicationContext, keyList);
+            }
+        }, callback);
+        CRYPTO_EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * @see SecurePreferences#removeValue(Context, String)
+     */
+    @NonNull
+    public Future<Void> removeValue(@NonNull Context context,
+                                    @NonNull final String key,
+                                    @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SecurePreferences.removeValue(applicationContext, key);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @see SecurePreferences#clearAllValues(Context)
+     */
+    @NonNull
+    public Future<Void> clearAllValues(@NonNull Context context,
+                                       @Nullable SecureStorageCallback<Void> callback) {
+        final Context applicationContext = context.getApplicationContext();
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() throws SecureStorageException {
+                SecurePreferences.clearAllValues(applicationContext);
+                return null;
+            }
+        }, callback);
+    }
+
+    @NonNull
+    private <T> Future<T> write(@NonNull Callable<T> operation,
+                                @Nullable SecureStorageCallback<T> callback) {
+        CallbackTask<T> task = new CallbackTask<>(operation, callback);
+        synchronized (IN_FLIGHT_READS) {
+            // Reads requested after this write must not join a read which has been queued before it
+            IN_FLIGHT_READS.clear();
+            CRYPTO_EXECUTOR.execute(task);
+        }
+        return task;
+    }
+
+    @NonNull
+    private <T> Future<T> read(@NonNull Context context,
+                               @NonNull String key,
+                               @NonNull final ValueMapper<T> mapper,
+                               @NonNull SecureStorageCallback<T> callback) {
+        PendingRead pendingRead;
+        synchronized (IN_FLIGHT_READS) {
+            pendingRead = IN_FLIGHT_READS.get(key);
+            if (pendingRead == null) {
+                pendingRead = new PendingRead(context.getApplicationContext(), key);
+                IN_FLIGHT_READS.put(key, pendingRead);
+                CRYPTO_EXECUTOR.execute(pendingRead);
+            }
+        }
+        final PendingRead source = pendingRead;
+        CallbackTask<T> task = new CallbackTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return mapper.map(source.get());
+            }
+        }, callback);
+        source.addListener(task);
+        return task;
+    }
+
+    private interface ValueMapper<T> {
+        T map(@Nullable Object value);
+    }
+
+    /**
+     * Decrypts one key once and runs all registered listeners when done
+     */
+    private static final class PendingRead extends FutureTask<Object> {
+        @NonNull
+        private final String key;
+        private final List<Runnable> listeners = new ArrayList<>();
+        private boolean completed;
+
+        PendingRead(@NonNull final Context context, @NonNull final String key) {
+            super(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return SecurePreferences.getTypedValue(context, key);
+                }
+            });
+            this.key = key;
+        }
+
+        void addListener(@NonNull Runnable listener) {
+            synchronized (this) {
+                if (!completed) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (IN_FLIGHT_READS) {
+                if (IN_FLIGHT_READS.get(key) == this) {
+                    IN_FLIGHT_READS.remove(key);
+                }
+            }
+            List<Runnable> pendingListeners;
+            synchronized (this) {
+                completed = true;
+                pendingListeners = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            for (Runnable listener : pendingListeners) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Delivers the result of the operation to the callback on the callback executor
+     */
+    private final class CallbackTask<T> extends FutureTask<T> {
+        @Nullable
+        private final SecureStorageCallback<T> callback;
+
+        CallbackTask(@NonNull Callable<T> operation, @Nullable SecureStorageCallback<T> callback) {
+            super(operation);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                deliverResult(callback, get());
+            } catch (ExecutionException e) {
+                deliverError(callback, toSecureStorageException(e.getCause()));
+            } catch (InterruptedException | CancellationException e) {
+                deliverError(callback, toSecureStorageException(e));
+            }
+        }
+
+        private void deliverResult(@NonNull final SecureStorageCallback<T> callback, @Nullable final T result) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onSuccess(result);
+                }
+            });
+        }
+
+        private void deliverError(@NonNull final SecureStorageCallback<T> callback,
+                                  @NonNull final SecureStorageException exception) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(exception);
+                }
+            });
+        }
+    }
+
+    @NonNull
+    private static SecureStorageException toSecureStorageException(@Nullable Throwable throwable) {
+        if (throwable instanceof SecureStorageException) {
+            return (SecureStorageException) throwable;
+        }
+        String message = throwable == null ? null : throwable.getMessage();
+        return new SecureStorageException(message, throwable, INTERNAL_LIBRARY_EXCEPTION);
+    }
+}
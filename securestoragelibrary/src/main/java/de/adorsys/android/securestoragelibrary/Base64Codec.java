@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Base64 (RFC 4648, with padding) for the ciphertext stored as String. Encodes without line breaks (like
+ * android.util.Base64.NO_WRAP) and decodes line-wrapped values written by older versions as well.
+ * Unlike android.util.Base64 it works on reusable per thread buffers, so encoding only allocates
+ * the resulting String and decoding allocates nothing.
+ */
+final class Base64Codec {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] DECODE_TABLE = new int[128];
+    private static final int WHITESPACE = -2;
+    private static final int INVALID = -1;
+    // Larger values get one-off buffers so the pooled ones stay small
+    private static final int MAX_POOLED_BUFFER_SIZE = 32 * 1024;
+
+    private static final ThreadLocal<char[]> CHAR_BUFFER = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> BYTE_BUFFER = new ThreadLocal<>();
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = INVALID;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE_TABLE[ALPHABET[i]] = i;
+        }
+        DECODE_TABLE['\n'] = WHITESPACE;
+        DECODE_TABLE['\r'] = WHITESPACE;
+        DECODE_TABLE[' '] = WHITESPACE;
+        DECODE_TABLE['\t'] = WHITESPACE;
+    }
+
+    // hidden constructor to disable initialization
+    private Base64Codec() {
+    }
+
+    /**
+     * @return the prefix followed by the Base64 encoding of the given range of the input
+     */
+    @NonNull
+    static String encode(@NonNull String prefix, @NonNull byte[] input, int offset, int length) {
+        int size = prefix.length() + (length + 2) / 3 * 4;
+        char[] output = CHAR_BUFFER.get();
+        if (output == null || output.length < size) {
+            output = new char[size];
+            if (size <= MAX_POOLED_BUFFER_SIZE) {
+                CHAR_BUFFER.set(output);
+            }
+        }
+        prefix.getChars(0, prefix.length(), output, 0);
+        int position = prefix.length();
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (input[i] & 0xFF) << 16 | (input[i + 1] & 0xFF) << 8 | (input[i + 2] & 0xFF);
+            output[position++] = ALPHABET[bits >>> 18];
+            output[position++] = ALPHABET[(bits >>> 12) & 0x3F];
+            output[position++] = ALPHABET[(bits >>> 6) & 0x3F];
+            output[position++] = ALPHABET[bits & 0x3F];
+        }
+        if (i < end) {
+            int bits = (input[i] & 0xFF) << 16 | (i + 1 < end ? (input[i + 1] & 0xFF) << 8 : 0);
+            output[position++] = ALPHABET[bits >>> 18];
+            output[position++] = ALPHABET[(bits >>> 12) & 0x3F];
+            output[position++] = i + 1 < end ? ALPHABET[(bits >>> 6) & 0x3F] : '=';
+            output[position++] = '=';
+        }
+        return new String(output, 0, position);
+    }
+
+    /**
+     * @return a reusable per thread buffer large enough for decoding the input starting at the given offset.
+     * It is only valid until the next call on the same thread and holds ciphertext only, so it is not zeroed.
+     */
+    @NonNull
+    static byte[] obtainDecodeBuffer(@NonNull String input, int offset) {
+        int maxSize = (input.length() - offset + 3) / 4 * 3;
+        byte[] output = BYTE_BUFFER.get();
+        if (output == null || output.length < maxSize) {
+            output = new byte[maxSize];
+            if (maxSize <= MAX_POOLED_BUFFER_SIZE) {
+                BYTE_BUFFER.set(output);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Decodes the input starting at the given offset into the output, see {@link #obtainDecodeBuffer(String, int)}
+     *
+     * @return the number of decoded bytes
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    static int decode(@NonNull String input, int offset, @NonNull byte[] output) {
+        int position = 0;
+        int bits = 0;
+        int count = 0;
+        int padding = 0;
+        for (int i = offset; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '=') {
+                padding++;
+                continue;
+            }
+            int value = c < DECODE_TABLE.length ? DECODE_TABLE[c] : INVALID;
+            if (value == WHITESPACE) {
+                continue;
+            }
+            if (value == INVALID || padding > 0) {
+                throw new IllegalArgumentException("Invalid Base64 character at " + i);
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                output[position++] = (byte) (bits >>> 16);
+                output[position++] = (byte) (bits >>> 8);
+                output[position++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1 || padding > 2 || (padding > 0 && count + padding != 4)) {
+            throw new IllegalArgumentException("Invalid Base64 length");
+        }
+        if (count == 2) {
+            output[position++] = (byte) (bits >>> 4);
+        } else if (count == 3) {
+            output[position++] = (byte) (bits >>> 10);
+            output[position++] = (byte) (bits >>> 2);
+        }
+        return position;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Backend which can store the encrypted values as raw bytes, so they don't have to be Base64 encoded.
+ * SecurePreferences reads and writes only through {@link #getBytes(String)} and {@link #writeBytes(Map, boolean)}
+ * when the backend implements this interface. Values written with {@link #write(Map, boolean)} have to be
+ * returned by {@link #getBytes(String)} as their UTF-8 bytes.
+ *
+ * @see AppendOnlyFileBackend
+ */
+public interface BinarySecureStorageBackend extends SecureStorageBackend {
+    /**
+     * @param key Key used to identify the stored value
+     * @return The encrypted value stored for the key or null if there is none. The returned array may be
+     * shared with the backend and must not be modified.
+     */
+    @Nullable
+    byte[] getBytes(@NonNull String key);
+
+    /**
+     * Stores all given changes at once
+     *
+     * @param changes     Encrypted values mapped by their key, null values mark keys which should be removed.
+     *                    The backend may keep the arrays, they must not be modified afterwards.
+     * @param synchronous True if the changes have to be on disk when this method returns,
+     *                    false if they may be written asynchronously. A synchronous write without changes
+     *                    has to wait until all previous writes are on disk.
+     * @return True if the changes have been written successfully, otherwise false
+     */
+    boolean writeBytes(@NonNull Map<String, byte[]> changes, boolean synchronous);
+}
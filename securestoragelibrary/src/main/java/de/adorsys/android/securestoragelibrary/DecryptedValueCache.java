@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.ComponentCallbacks2;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Size bounded LRU cache for decrypted values, bounded by entry count and by an estimated byte budget.
+ * Every entry remembers the encrypted value it has been decrypted from, so a cached value is only
+ * returned as long as the stored encrypted value did not change in the meantime. Encrypted values are
+ * Strings, or raw bytes for a {@link BinarySecureStorageBackend}.
+ * The cache is wiped when the system asks the app to trim memory, so plaintext does not linger.
+ */
+final class DecryptedValueCache implements ComponentCallbacks2, SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final long BOXED_VALUE_SIZE = 16;
+    private final int maxEntries;
+    private final long maxBytes;
+    // access ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    DecryptedValueCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be greater than 0");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached plain value for the key or null if it is not cached
+     * or has been decrypted from a different encrypted value
+     */
+    @Nullable
+    synchronized Object get(@NonNull String key, @NonNull Object encryptedValue) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!isSameEncryptedValue(entry.encryptedValue, encryptedValue)) {
+            removeEntry(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(@NonNull String key, @NonNull Object encryptedValue, @NonNull Object value) {
+        long entrySize = sizeOf(key, value);
+        // Sets and byte arrays are handed out as mutable copies, so they are not cached
+        if (value instanceof Set || value instanceof byte[] || entrySize > maxBytes) {
+            removeEntry(key);
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(encryptedValue, value, entrySize));
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entrySize;
+        trimToSize();
+    }
+
+    synchronized void remove(@NonNull String key) {
+        removeEntry(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(@NonNull SharedPreferences sharedPreferences, @Nullable String key) {
+        if (key == null) {
+            // the preferences have been cleared
+            clear();
+            return;
+        }
+        String encryptedValue = sharedPreferences.getString(key, null);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.encryptedValue.equals(encryptedValue)) {
+                removeEntry(key);
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        // not relevant for the cache
+    }
+
+    private void removeEntry(@NonNull String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((size > maxBytes || entries.size() > maxEntries) && iterator.hasNext()) {
+            size -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    // Estimation of the heap used by the key and the plain value, the encrypted value is
+    // not counted as it is referenced by the SharedPreferences anyway
+    private static long sizeOf(@NonNull String key, @NonNull Object value) {
+        if (value instanceof String) {
+            return 2L * (key.length() + ((String) value).length());
+        }
+        // boxed primitive or blob reference
+        return 2L * key.length() + BOXED_VALUE_SIZE;
+    }
+
+    private static boolean isSameEncryptedValue(@NonNull Object cached, @NonNull Object stored) {
+        if (cached instanceof byte[] && stored instanceof byte[]) {
+            // the backend usually hands out the same array as long as the value did not change
+            return cached == stored || Arrays.equals((byte[]) cached, (byte[]) stored);
+        }
+        return cached.equals(stored);
+    }
+
+    private static final class Entry {
+        @NonNull
+        final Object encryptedValue;
+        @NonNull
+        final Object value;
+        final long size;
+
+        Entry(@NonNull Object encryptedValue, @NonNull Object value, long size) {
+            this.encryptedValue = encryptedValue;
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
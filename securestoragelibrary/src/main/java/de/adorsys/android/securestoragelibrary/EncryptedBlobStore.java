@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Stores large values in files, encrypted in segments so that reading and writing needs constant memory.
+ * Every segment is encrypted with AES/GCM and the data key, using the IV
+ * nonce prefix (7 bytes) || segment index (4 bytes) || last segment flag (1 byte).
+ * The nonce prefix is random per file and stored encrypted in the SecureStorage as {@link Reference},
+ * so segments can't be reordered, the file can't be truncated and files can't be swapped between keys.
+ * The reference also contains the version of the data key, which is the version the reference itself
+ * is encrypted with, so the files of a retired version can be found and re-encrypted.
+ * <p>
+ * File layout: format version (1 byte), nonce prefix (7 bytes), encrypted segments.
+ * Every {@link SecureStore} has its own directory with one directory per key, named by the SHA-256 hash of the key,
+ * containing one file per written value.
+ */
+final class EncryptedBlobStore {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final byte FORMAT_VERSION = 1;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int HEADER_LENGTH = 1 + NONCE_PREFIX_LENGTH;
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    // Byte arrays larger than one segment are stored in a file instead of inline in the backend
+    static final int MAX_INLINE_LENGTH = SEGMENT_SIZE;
+    private static final int TAG_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    @NonNull
+    private final SecureStore store;
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final String keyAlias;
+    @NonNull
+    private final String directoryName;
+
+    // Whether any file might exist, null until checked. Lets every other write skip the file system.
+    @Nullable
+    private volatile Boolean filesExist;
+
+    // Number of open output streams per data key version, these versions must not be deleted
+    private final Map<Integer, Integer> openKeyVersions = new HashMap<>();
+
+    /**
+     * @param store         Store the references are written to
+     * @param keyAlias      Alias of the data key of the store
+     * @param directoryName Name of the directory of the store in the app's private files directory
+     */
+    EncryptedBlobStore(@NonNull SecureStore store,
+                       @NonNull Context context,
+                       @NonNull String keyAlias,
+                       @NonNull String directoryName) {
+        this.store = store;
+        this.context = context;
+        this.keyAlias = keyAlias;
+        this.directoryName = directoryName;
+    }
+
+    /**
+     * @param keyVersion Version of the data key used for encrypting the file
+     * @return a stream which encrypts everything written to a new file of the key. The file is only referenced
+     * by the key after closing the stream, which stores the {@link Reference} in the SecureStorage.
+     */
+    @NonNull
+    OutputStream openOutputStream(@NonNull String key, int keyVersion) throws IOException {
+        return newOutputStream(key, keyVersion);
+    }
+
+    /**
+     * Encrypts the value into a new file of the key, which replaces the value of the key
+     *
+     * @param keyVersion Version of the data key used for encrypting the file
+     */
+    void write(@NonNull String key,
+               @NonNull byte[] value,
+               int keyVersion) throws IOException {
+        EncryptingOutputStream outputStream = newOutputStream(key, keyVersion);
+        boolean written = false;
+        try {
+            outputStream.write(value, 0, value.length);
+            written = true;
+        } finally {
+            if (!written) {
+                outputStream.abort();
+            }
+        }
+        outputStream.close();
+    }
+
+    /**
+     * Copies the file of the reference into a new file encrypted with the given data key version,
+     * which replaces the value of the key
+     */
+    void reencrypt(@NonNull String key,
+                   @NonNull Reference reference,
+                   int keyVersion) throws IOException {
+        EncryptingOutputStream outputStream = newOutputStream(key, keyVersion);
+        byte[] buffer = new byte[SEGMENT_SIZE];
+        boolean copied = false;
+        try (InputStream inputStream = openInputStream(key, reference)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) { //NOPMD
+                outputStream.write(buffer, 0, read);
+            }
+            copied = true;
+        } finally {
+            Arrays.fill(buffer, (byte) 0);
+            if (!copied) {
+                outputStream.abort();
+            }
+        }
+        outputStream.close();
+    }
+
+    /**
+     * @return the data key versions of all output streams which have not been closed yet
+     */
+    @NonNull
+    Set<Integer> getOpenKeyVersions() {
+        synchronized (openKeyVersions) {
+            return new HashSet<>(openKeyVersions.keySet());
+        }
+    }
+
+    @NonNull
+    InputStream openInputStream(@NonNull String key,
+                                @NonNull Reference reference) throws IOException {
+        return new DecryptingInputStream(this, reference, getFile(key, reference.noncePrefix));
+    }
+
+    /**
+     * @return true if the file of the reference exists, false if it has been deleted in the meantime
+     */
+    boolean exists(@NonNull String key, @NonNull Reference reference) {
+        return getFile(key, reference.noncePrefix).exists();
+    }
+
+    /**
+     * Deletes the files of the key, except the one of the given reference
+     */
+    void delete(@NonNull String key, @Nullable Reference keep) {
+        if (!mayHaveFiles()) {
+            return;
+        }
+        File directory = getKeyDirectory(key);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        String keepName = keep == null ? null : toHex(keep.noncePrefix);
+        for (File file : files) {
+            if (!file.getName().equals(keepName)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    void deleteAll() {
+        File[] directories = getDirectory().listFiles();
+        filesExist = false;
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            directory.delete();
+        }
+    }
+
+    @NonNull
+    private EncryptingOutputStream newOutputStream(@NonNull String key, int keyVersion) throws IOException {
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        SECURE_RANDOM.nextBytes(noncePrefix);
+        File directory = getKeyDirectory(key);
+        filesExist = true;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        acquireKeyVersion(keyVersion);
+        try {
+            return new EncryptingOutputStream(this, key, new Reference(noncePrefix, keyVersion), getFile(key, noncePrefix));
+        } catch (IOException e) {
+            releaseKeyVersion(keyVersion);
+            throw e;
+        }
+    }
+
+    private void acquireKeyVersion(int keyVersion) {
+        synchronized (openKeyVersions) {
+            Integer count = openKeyVersions.get(keyVersion);
+            openKeyVersions.put(keyVersion, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void releaseKeyVersion(int keyVersion) {
+        synchronized (openKeyVersions) {
+            Integer count = openKeyVersions.get(keyVersion);
+            if (count == null || count == 1) {
+                openKeyVersions.remove(keyVersion);
+            } else {
+                openKeyVersions.put(keyVersion, count - 1);
+            }
+        }
+        store.onKeyVersionReleased(keyVersion);
+    }
+
+    private boolean mayHaveFiles() {
+        Boolean exist = filesExist;
+        if (exist == null) {
+            String[] directories = getDirectory().list();
+            exist = directories != null && directories.length > 0;
+            filesExist = exist;
+        }
+        return exist;
+    }
+
+    @NonNull
+    private File getDirectory() {
+        return new File(context.getFilesDir(), directoryName);
+    }
+
+    @NonNull
+    private File getKeyDirectory(@NonNull String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(CHARSET));
+            return new File(getDirectory(), toHex(hash));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every Android version
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    private File getFile(@NonNull String key, @NonNull byte[] noncePrefix) {
+        return new File(getKeyDirectory(key), toHex(noncePrefix));
+    }
+
+    @NonNull
+    private static String toHex(@NonNull byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static void fillIv(@NonNull byte[] iv, @NonNull byte[] noncePrefix, int segmentIndex, boolean lastSegment) {
+        System.arraycopy(noncePrefix, 0, iv, 0, NONCE_PREFIX_LENGTH);
+        iv[NONCE_PREFIX_LENGTH] = (byte) (segmentIndex >>> 24);
+        iv[NONCE_PREFIX_LENGTH + 1] = (byte) (segmentIndex >>> 16);
+        iv[NONCE_PREFIX_LENGTH + 2] = (byte) (segmentIndex >>> 8);
+        iv[NONCE_PREFIX_LENGTH + 3] = (byte) segmentIndex;
+        iv[NONCE_PREFIX_LENGTH + 4] = (byte) (lastSegment ? 1 : 0);
+    }
+
+    /**
+     * Identifies the file of a value, stored encrypted in the SecureStorage under the key of the value
+     */
+    static final class Reference {
+        @NonNull
+        final byte[] noncePrefix;
+        final int keyVersion;
+
+        Reference(@NonNull byte[] noncePrefix, int keyVersion) {
+            if (noncePrefix.length != NONCE_PREFIX_LENGTH) {
+                throw new IllegalArgumentException("Invalid nonce prefix length " + noncePrefix.length);
+            }
+            if (keyVersion < 0) {
+                throw new IllegalArgumentException("Invalid key version " + keyVersion);
+            }
+            this.noncePrefix = noncePrefix;
+            this.keyVersion = keyVersion;
+        }
+    }
+
+    private static final class EncryptingOutputStream extends OutputStream {
+        @NonNull
+        private final EncryptedBlobStore blobStore;
+        @NonNull
+        private final String key;
+        @NonNull
+        private final Reference reference;
+        @NonNull
+        private final File file;
+        @NonNull
+        private final FileOutputStream outputStream;
+        private final byte[] plainBuffer = new byte[SEGMENT_SIZE];
+        private final byte[] cipherBuffer = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private final byte[] iv = new byte[IV_LENGTH];
+        private int buffered;
+        private int segmentIndex;
+        private boolean closed;
+
+        EncryptingOutputStream(@NonNull EncryptedBlobStore blobStore,
+                               @NonNull String key,
+                               @NonNull Reference reference,
+                               @NonNull File file) throws IOException {
+            this.blobStore = blobStore;
+            this.key = key;
+            this.reference = reference;
+            this.file = file;
+            this.outputStream = new FileOutputStream(file);
+            outputStream.write(FORMAT_VERSION);
+            outputStream.write(reference.noncePrefix);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (buffered == SEGMENT_SIZE) {
+                writeSegment(false);
+            }
+            plainBuffer[buffered++] = (byte) b;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                // a full segment is only written once more data follows, the last one has to be marked
+                if (buffered == SEGMENT_SIZE) {
+                    writeSegment(false);
+                }
+                int length = Math.min(len, SEGMENT_SIZE - buffered);
+                System.arraycopy(b, off, plainBuffer, buffered, length);
+                buffered += length;
+                off += length;
+                len -= length;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                boolean written = false;
+                try {
+                    writeSegment(true);
+                    outputStream.getFD().sync();
+                    written = true;
+                } finally {
+                    outputStream.close();
+                    Arrays.fill(plainBuffer, (byte) 0);
+                    if (!written) {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                }
+
+                try {
+                    blobStore.store.commitBlob(key, reference);
+                } catch (SecureStorageException e) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                    throw new IOException(e.getMessage(), e);
+                }
+            } finally {
+                blobStore.releaseKeyVersion(reference.keyVersion);
+            }
+        }
+
+        /**
+         * Closes the stream and deletes the file without storing a reference to it
+         */
+        void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            } finally {
+                Arrays.fill(plainBuffer, (byte) 0);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                blobStore.releaseKeyVersion(reference.keyVersion);
+            }
+        }
+
+        private void writeSegment(boolean lastSegment) throws IOException {
+            if (segmentIndex == Integer.MAX_VALUE) {
+                throw new IOException("Value too large");
+            }
+            fillIv(iv, reference.noncePrefix, segmentIndex++, lastSegment);
+            try {
+                int length = KeystoreTool.doFinalSegment(blobStore.context, blobStore.keyAlias, reference.keyVersion, true,
+                        iv, plainBuffer, buffered, cipherBuffer);
+                outputStream.write(cipherBuffer, 0, length);
+            } catch (SecureStorageException e) {
+                throw new IOException(e.getMessage(), e);
+            } finally {
+                Arrays.fill(plainBuffer, 0, buffered, (byte) 0);
+                buffered = 0;
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+        @NonNull
+        private final EncryptedBlobStore blobStore;
+        @NonNull
+        private final Reference reference;
+        @NonNull
+        private final FileInputStream inputStream;
+        private final byte[] cipherBuffer = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private final byte[] plainBuffer = new byte[SEGMENT_SIZE];
+        private final byte[] iv = new byte[IV_LENGTH];
+        private final int segmentCount;
+        private int segmentIndex;
+        private int position;
+        private int available;
+
+        DecryptingInputStream(@NonNull EncryptedBlobStore blobStore,
+                              @NonNull Reference reference,
+                              @NonNull File file) throws IOException {
+            this.blobStore = blobStore;
+            this.reference = reference;
+            this.inputStream = new FileInputStream(file);
+
+            long cipherLength = file.length() - HEADER_LENGTH;
+            long segments = (cipherLength + SEGMENT_SIZE + TAG_LENGTH - 1) / (SEGMENT_SIZE + TAG_LENGTH);
+            byte[] header = new byte[HEADER_LENGTH];
+            try {
+                if (cipherLength < TAG_LENGTH || segments > Integer.MAX_VALUE) {
+                    throw new IOException("Invalid file length " + file.length());
+                }
+                readFully(header, HEADER_LENGTH);
+                if (header[0] != FORMAT_VERSION
+                        || !Arrays.equals(Arrays.copyOfRange(header, 1, HEADER_LENGTH), reference.noncePrefix)) {
+                    throw new IOException("File does not belong to the stored value");
+                }
+            } catch (IOException e) {
+                inputStream.close();
+                throw e;
+            }
+            this.segmentCount = (int) segments;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return plainBuffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int length = Math.min(len, available - position);
+            System.arraycopy(plainBuffer, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return available - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(plainBuffer, (byte) 0);
+            position = 0;
+            available = 0;
+            segmentIndex = segmentCount;
+            inputStream.close();
+        }
+
+        /**
+         * @return true if there is decrypted data to read, false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (position == available) {
+                if (segmentIndex == segmentCount) {
+                    return false;
+                }
+                boolean lastSegment = segmentIndex == segmentCount - 1;
+                int length = readFully(cipherBuffer, cipherBuffer.length);
+                if (length < TAG_LENGTH || (!lastSegment && length < cipherBuffer.length)) {
+                    throw new IOException("Truncated file");
+                }
+                fillIv(iv, reference.noncePrefix, segmentIndex++, lastSegment);
+                try {
+                    available = KeystoreTool.doFinalSegment(blobStore.context, blobStore.keyAlias, reference.keyVersion, false,
+                            iv, cipherBuffer, length, plainBuffer);
+                    position = 0;
+                } catch (SecureStorageException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        private int readFully(@NonNull byte[] buffer, int length) throws IOException {
+            int offset = 0;
+            int read;
+            while (offset < length && (read = inputStream.read(buffer, offset, length - offset)) != -1) { //NOPMD
+                offset += read;
+            }
+            return offset;
+        }
+    }
+}
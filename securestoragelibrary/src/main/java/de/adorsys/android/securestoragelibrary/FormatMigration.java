@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Upgrades the entries of one store written in an older storage format to the current typed format.
+ * Every older format has a registered {@link Step}, which reads an entry of that format, the upgraded entry
+ * is written with the current format. Entries are upgraded lazily when they are read and, once started,
+ * by a background sweep over all entries, which saves a checkpoint after every batch so that it resumes
+ * after the last completed batch when it has been interrupted. Old entries stay readable until they are
+ * replaced, so an interruption never loses a value.
+ * <p>
+ * A format version marker per store records that all entries have been upgraded, so the read path
+ * of upgraded stores doesn't inspect the entries at all.
+ */
+final class FormatMigration {
+    /**
+     * Format version of stores which only contain entries written by {@link KeystoreTool#encryptValue(Context, String, Object)}
+     */
+    static final int CURRENT_FORMAT_VERSION = 1;
+
+    private static final String PREFERENCES_NAME = "SecurePreferencesFormat";
+    private static final String CHECKPOINT_POSTFIX = "#checkpoint";
+    private static final String CHECKPOINT_SEPARATOR = ":";
+    private static final int BATCH_SIZE = 32;
+    private static final String THREAD_NAME = "SecureStorageMigration";
+
+    // One step per older format, ordered by the format version they read: 0
+    private static final List<Step> STEPS = Collections.<Step>singletonList(new LegacyMessageStep());
+
+    private static final ExecutorService MIGRATION_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @NonNull
+    private final SecureStore store;
+    @NonNull
+    private final Context context;
+    // Name of the store's entries in the preferences, e.g. the name of its SharedPreferences file
+    @NonNull
+    private final String storeName;
+
+    // Whether all entries have the current format, null until the marker has been read
+    @Nullable
+    private volatile Boolean completed;
+
+    // Keys read in an older format which are waiting for their upgrade. Guarded by this.
+    private final Set<String> queuedKeys = new LinkedHashSet<>();
+    // Task sweeping over all entries, null while it is not running. Guarded by this.
+    @Nullable
+    private FutureTask<Void> sweep;
+
+    private final Runnable queueDrainer = new Runnable() {
+        @Override
+        public void run() {
+            List<String> keys;
+            synchronized (FormatMigration.this) {
+                keys = new ArrayList<>(queuedKeys);
+                queuedKeys.clear();
+            }
+            try {
+                store.upgradeFormat(keys);
+            } catch (SecureStorageException e) {
+                // the entries stay readable in their format and are upgraded on the next read
+            }
+        }
+    };
+
+    FormatMigration(@NonNull SecureStore store,
+                    @NonNull Context context,
+                    @NonNull String storeName) {
+        this.store = store;
+        this.context = context;
+        this.storeName = storeName;
+    }
+
+    /**
+     * Reads one entry of an older storage format
+     */
+    interface Step {
+        /**
+         * @param encryptedValue Encrypted value as returned by the backend
+         * @return true if the value has been written in the format this step reads
+         */
+        boolean matches(@NonNull Object encryptedValue);
+
+        /**
+         * @return the plain value, which is stored with the current format afterwards
+         */
+        @NonNull
+        Object decrypt(@NonNull Context context,
+                       @NonNull String keyAlias,
+                       @NonNull Object encryptedValue) throws SecureStorageException;
+    }
+
+    /**
+     * @return the step reading the given value or null if the value has the current format
+     */
+    @Nullable
+    static Step findStep(@NonNull Object encryptedValue) {
+        for (Step step : STEPS) {
+            if (step.matches(encryptedValue)) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if all entries of the store have the current format
+     */
+    boolean isCompleted() {
+        Boolean isCompleted = completed;
+        if (isCompleted == null) {
+            String formatVersion = getPreferences().getString(storeName, null);
+            if (formatVersion != null) {
+                isCompleted = Integer.parseInt(formatVersion) >= CURRENT_FORMAT_VERSION;
+            } else {
+                // a store without entries has nothing to upgrade
+                isCompleted = store.getStoredKeys().isEmpty();
+                if (isCompleted) {
+                    markCompleted();
+                }
+            }
+            completed = isCompleted;
+        }
+        return isCompleted;
+    }
+
+    /**
+     * Must be called before an entry is written. A store without entries is marked as upgraded right away,
+     * otherwise a new store which is written before it is read would be swept on every start.
+     */
+    void beforeWrite() {
+        isCompleted();
+    }
+
+    /**
+     * @return true if a sweep has been interrupted and should be resumed
+     */
+    boolean hasCheckpoint() {
+        return !isCompleted() && getPreferences().contains(storeName + CHECKPOINT_POSTFIX);
+    }
+
+    /**
+     * Upgrades the entry of the key in the background if it has been read in an older format
+     */
+    void upgradeLater(@NonNull String key, @NonNull Object encryptedValue) {
+        if (isCompleted() || findStep(encryptedValue) == null) {
+            return;
+        }
+        synchronized (this) {
+            if (queuedKeys.isEmpty()) {
+                MIGRATION_EXECUTOR.execute(queueDrainer);
+            }
+            queuedKeys.add(key);
+        }
+    }
+
+    /**
+     * Starts upgrading all entries, or returns the running sweep
+     *
+     * @return Future which completes when all entries have the current format
+     */
+    @NonNull
+    synchronized Future<Void> start() {
+        if (sweep == null) {
+            sweep = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws SecureStorageException {
+                    try {
+                        sweep();
+                        return null;
+                    } finally {
+                        synchronized (FormatMigration.this) {
+                            sweep = null;
+                        }
+                    }
+                }
+            });
+            MIGRATION_EXECUTOR.execute(sweep);
+        }
+        return sweep;
+    }
+
+    /**
+     * Marks the store as upgraded, e.g. because all of its entries have been deleted
+     */
+    void markCompleted() {
+        completed = true;
+        getPreferences().edit()
+                .putString(storeName, String.valueOf(CURRENT_FORMAT_VERSION))
+                .remove(storeName + CHECKPOINT_POSTFIX)
+                .apply();
+    }
+
+    private void sweep() throws SecureStorageException {
+        if (isCompleted()) {
+            return;
+        }
+        // changes which have not been written yet are not part of the keys
+        store.flush();
+        List<String> keys = store.getStoredKeys();
+        // sorted, so the checkpoint splits the keys into upgraded and remaining ones
+        Collections.sort(keys);
+        String checkpoint = readCheckpoint();
+        int start = 0;
+        if (checkpoint != null) {
+            while (start < keys.size() && keys.get(start).compareTo(checkpoint) <= 0) {
+                start++;
+            }
+        }
+
+        boolean upgraded = true;
+        for (int i = start; i < keys.size(); i += BATCH_SIZE) {
+            List<String> batch = keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()));
+            // the batch is on disk when migrate returns, only then the checkpoint may move past it
+            upgraded &= store.upgradeFormat(batch);
+            getPreferences().edit()
+                    .putString(storeName + CHECKPOINT_POSTFIX,
+                            CURRENT_FORMAT_VERSION + CHECKPOINT_SEPARATOR + batch.get(batch.size() - 1))
+                    .apply();
+        }
+        if (upgraded) {
+            markCompleted();
+        } else {
+            // entries which could not be read are retried by the next sweep
+            getPreferences().edit().remove(storeName + CHECKPOINT_POSTFIX).apply();
+        }
+    }
+
+    /**
+     * @return the last key of the last completed batch or null if the sweep starts from the beginning
+     */
+    @Nullable
+    private String readCheckpoint() {
+        String checkpoint = getPreferences().getString(storeName + CHECKPOINT_POSTFIX, null);
+        String prefix = CURRENT_FORMAT_VERSION + CHECKPOINT_SEPARATOR;
+        // a checkpoint of a sweep towards an older format doesn't cover the newer steps
+        return checkpoint != null && checkpoint.startsWith(prefix) ? checkpoint.substring(prefix.length()) : null;
+    }
+
+    @NonNull
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+    }
+
+    /**
+     * Values written before the data key existed, encrypted directly with the key pair
+     */
+    private static final class LegacyMessageStep implements Step {
+        @Override
+        public boolean matches(@NonNull Object encryptedValue) {
+            return encryptedValue instanceof String
+                    && !KeystoreTool.isTypedValue((String) encryptedValue);
+        }
+
+        @NonNull
+        @Override
+        public Object decrypt(@NonNull Context context,
+                              @NonNull String keyAlias,
+                              @NonNull Object encryptedValue) throws SecureStorageException {
+            return KeystoreTool.decryptMessage(context, keyAlias, (String) encryptedValue);
+        }
+    }
+}
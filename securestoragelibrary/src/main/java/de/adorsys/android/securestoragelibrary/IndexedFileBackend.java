@@ -0,0 +1,823 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Backend for large stores, which only keeps the keys and the positions of their values in memory.
+ * Values are appended to a log file like in {@link AppendOnlyFileBackend} (both backends can open each other's files)
+ * and read from disk on demand, optionally through a memory mapping of the file. Next to the log file an index file
+ * stores the position of every value, so opening the store only reads the index and the records appended since
+ * the index has been written. Without a valid index the log file is scanned once.
+ * <p>
+ * Index layout: covered log length (8 bytes), CRC32 of the last covered record (4 bytes), entry count (4 bytes),
+ * entries of key length (4 bytes), key, value offset (8 bytes), value length (4 bytes), CRC32 of everything before (4 bytes)
+ * <p>
+ * In multi-process mode the processes exclude each other with a file lock on a lock file next to the log file, which
+ * also contains two counters mapped into every process: the generation (8 bytes), increased whenever the log file is
+ * replaced, and the sequence (8 bytes), increased whenever records are appended. Every access compares the counters
+ * with the ones seen last, so reading an unchanged store costs two memory reads. Changes of other processes are
+ * applied by scanning only the appended records, a replaced log file is opened again.
+ */
+public final class IndexedFileBackend implements BinarySecureStorageBackend {
+    private static final String TAG = IndexedFileBackend.class.getName();
+    private static final String INDEX_FILE_POSTFIX = ".index";
+    private static final String COMPACTION_FILE_POSTFIX = ".compact";
+    private static final String LOCK_FILE_POSTFIX = ".lock";
+    private static final int GENERATION_OFFSET = 0;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int LOCK_FILE_LENGTH = 16;
+    // Files smaller than this are never compacted, rewriting them would not be worth it
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    // The index is rewritten once this many records (or a quarter of the entries, if more) are not covered by it
+    private static final int MIN_UNINDEXED_RECORDS = 64;
+    private static final int INDEX_HEADER_LENGTH = 8 + 4 + 4;
+    private static final int INDEX_ENTRY_OVERHEAD = 4 + 8 + 4;
+
+    @NonNull
+    private final File file;
+    @NonNull
+    private final File indexFile;
+    @NonNull
+    private final File lockFile;
+    private final boolean syncOnWrite;
+    private final boolean memoryMapped;
+    private final boolean multiProcess;
+
+    // Positions of the current values, null as long as the store has not been opened
+    @Nullable
+    private Map<String, Location> index;
+    @Nullable
+    private RandomAccessFile randomAccessFile;
+    @Nullable
+    private MappedByteBuffer mappedBuffer;
+    private long fileLength;
+    private long liveLength;
+    private int lastRecordCrc;
+    private int unindexedRecords;
+    // Lock file and its counters, only used in multi-process mode
+    @Nullable
+    private FileChannel lockChannel;
+    @Nullable
+    private MappedByteBuffer counters;
+    private long knownGeneration;
+    private long knownSequence;
+
+    /**
+     * Creates a backend which reads values with positional reads and only syncs the file to disk on synchronous writes
+     *
+     * @param file Log file, which is created on the first write. The index is stored next to it.
+     */
+    public IndexedFileBackend(@NonNull File file) {
+        this(file, false, false);
+    }
+
+    /**
+     * @param file         Log file, which is created on the first write. The index is stored next to it.
+     * @param syncOnWrite  True if every write has to be synced to disk (fsync),
+     *                     false if only synchronous writes are synced
+     * @param memoryMapped True if values are read through a memory mapping of the log file, which avoids
+     *                     a system call per read but occupies address space for the whole file
+     */
+    public IndexedFileBackend(@NonNull File file, boolean syncOnWrite, boolean memoryMapped) {
+        this(file, syncOnWrite, memoryMapped, false);
+    }
+
+    /**
+     * @param file         Log file, which is created on the first write. The index and the lock file are stored next to it.
+     * @param syncOnWrite  True if every write has to be synced to disk (fsync),
+     *                     false if only synchronous writes are synced
+     * @param memoryMapped True if values are read through a memory mapping of the log file, which avoids
+     *                     a system call per read but occupies address space for the whole file
+     * @param multiProcess True if several processes of the app use the file, each with one backend instance,
+     *                     and have to see each other's changes
+     */
+    public IndexedFileBackend(@NonNull File file, boolean syncOnWrite, boolean memoryMapped, boolean multiProcess) {
+        this.file = file;
+        this.indexFile = new File(file.getPath() + INDEX_FILE_POSTFIX);
+        this.lockFile = new File(file.getPath() + LOCK_FILE_POSTFIX);
+        this.syncOnWrite = syncOnWrite;
+        this.memoryMapped = memoryMapped;
+        this.multiProcess = multiProcess;
+    }
+
+    /**
+     * @return true if other processes may change the file
+     */
+    boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getValue(@NonNull String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, LogRecords.CHARSET);
+    }
+
+    @Nullable
+    @Override
+    public synchronized byte[] getBytes(@NonNull String key) {
+        Map<String, Location> index = load();
+        Location location = index == null ? null : index.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            return read(location);
+        } catch (IOException e) {
+            logError(e);
+            reset();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        Map<String, Location> index = load();
+        return index != null && index.containsKey(key);
+    }
+
+    @NonNull
+    @Override
+    public synchronized Set<String> getKeys() {
+        Map<String, Location> index = load();
+        return index == null ? new HashSet<String>() : new HashSet<>(index.keySet());
+    }
+
+    @Override
+    public synchronized boolean write(@NonNull Map<String, String> changes, boolean synchronous) {
+        Map<String, byte[]> byteChanges = new LinkedHashMap<>(changes.size());
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            String value = entry.getValue();
+            byteChanges.put(entry.getKey(), value == null ? null : value.getBytes(LogRecords.CHARSET));
+        }
+        return writeBytes(byteChanges, synchronous);
+    }
+
+    @Override
+    public synchronized boolean writeBytes(@NonNull Map<String, byte[]> changes, boolean synchronous) {
+        FileLock lock;
+        try {
+            lock = lockProcesses();
+        } catch (IOException e) {
+            logError(e);
+            return false;
+        }
+        try {
+            return writeBytesLocked(changes, synchronous);
+        } finally {
+            release(lock);
+        }
+    }
+
+    private boolean writeBytesLocked(@NonNull Map<String, byte[]> changes, boolean synchronous) {
+        Map<String, Location> index = loadLocked();
+        if (index == null) {
+            return false;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        Map<String, Location> locations = new LinkedHashMap<>(changes.size());
+        byte[] record = null;
+        for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+            byte[] value = entry.getValue();
+            record = LogRecords.encode(entry.getKey(), value);
+            Location location = null;
+            if (value != null) {
+                // the value is followed by the CRC only
+                long offset = fileLength + records.size() + record.length - LogRecords.CRC_LENGTH - value.length;
+                location = new Location(offset, value.length);
+            }
+            records.write(record, 0, record.length);
+            locations.put(entry.getKey(), location);
+        }
+        if (record == null) {
+            if (synchronous && randomAccessFile != null) {
+                // nothing to append, but the previous writes have to be on disk
+                try {
+                    randomAccessFile.getChannel().force(false);
+                } catch (IOException e) {
+                    logError(e);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        try {
+            FileChannel channel = getRandomAccessFile().getChannel();
+            writeFully(channel, ByteBuffer.wrap(records.toByteArray()), fileLength);
+            if (synchronous || syncOnWrite) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            logError(e);
+            // the file content is unknown now, load it again on the next access
+            reset();
+            return false;
+        }
+
+        fileLength += records.size();
+        lastRecordCrc = ByteBuffer.wrap(record, record.length - LogRecords.CRC_LENGTH, LogRecords.CRC_LENGTH).getInt();
+        unindexedRecords += locations.size();
+        for (Map.Entry<String, Location> entry : locations.entrySet()) {
+            apply(index, entry.getKey(), entry.getValue());
+        }
+        publish(SEQUENCE_OFFSET);
+
+        if (fileLength > MIN_COMPACTION_SIZE && fileLength > 2 * liveLength) {
+            compactLocked(index);
+        } else if (unindexedRecords >= Math.max(MIN_UNINDEXED_RECORDS, index.size() / 4)) {
+            try {
+                getRandomAccessFile().getChannel().force(false);
+                writeIndex(indexFile, index, fileLength, lastRecordCrc);
+                unindexedRecords = 0;
+            } catch (IOException e) {
+                // the records are in the log file, the index only speeds up opening the store
+                logError(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean clear() {
+        FileLock lock = null;
+        try {
+            lock = lockProcesses();
+            closeFile();
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            publish(GENERATION_OFFSET);
+        } catch (IOException e) {
+            logError(e);
+            reset();
+            return false;
+        } finally {
+            release(lock);
+        }
+        index = new HashMap<>();
+        fileLength = 0;
+        liveLength = 0;
+        lastRecordCrc = 0;
+        unindexedRecords = 0;
+        return true;
+    }
+
+    /**
+     * Rewrites the log file so that it only contains the current values, and writes a new index
+     *
+     * @return True if the file has been compacted successfully, otherwise false
+     */
+    public synchronized boolean compact() {
+        FileLock lock;
+        try {
+            lock = lockProcesses();
+        } catch (IOException e) {
+            logError(e);
+            return false;
+        }
+        try {
+            Map<String, Location> index = loadLocked();
+            return index != null && compactLocked(index);
+        } finally {
+            release(lock);
+        }
+    }
+
+    private boolean compactLocked(@NonNull Map<String, Location> index) {
+        File compactionFile = new File(file.getPath() + COMPACTION_FILE_POSTFIX);
+        File compactionIndexFile = new File(indexFile.getPath() + COMPACTION_FILE_POSTFIX);
+        Map<String, Location> compactedIndex = new HashMap<>(index.size());
+        long length = 0;
+        int crc = 0;
+        try {
+            ensureParentDirectory();
+            FileOutputStream compactionStream = new FileOutputStream(compactionFile);
+            try {
+                BufferedOutputStream outputStream = new BufferedOutputStream(compactionStream);
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    byte[] value = read(entry.getValue());
+                    byte[] record = LogRecords.encode(entry.getKey(), value);
+                    outputStream.write(record);
+                    length += record.length;
+                    compactedIndex.put(entry.getKey(), new Location(length - LogRecords.CRC_LENGTH - value.length, value.length));
+                    crc = ByteBuffer.wrap(record, record.length - LogRecords.CRC_LENGTH, LogRecords.CRC_LENGTH).getInt();
+                }
+                outputStream.flush();
+                compactionStream.getFD().sync();
+            } finally {
+                compactionStream.close();
+            }
+            writeIndex(compactionIndexFile, compactedIndex, length, crc);
+
+            closeFile();
+            // Without an index the log file is scanned, so a crash between the renames can't pair
+            // the new log file with the old index
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+            if (!compactionFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file + " with the compacted file");
+            }
+            if (!compactionIndexFile.renameTo(indexFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                compactionIndexFile.delete();
+            }
+            publish(GENERATION_OFFSET);
+        } catch (IOException e) {
+            logError(e);
+            //noinspection ResultOfMethodCallIgnored
+            compactionFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            compactionIndexFile.delete();
+            reset();
+            return false;
+        }
+
+        this.index = compactedIndex;
+        fileLength = length;
+        liveLength = length;
+        lastRecordCrc = crc;
+        unindexedRecords = 0;
+        return true;
+    }
+
+    /**
+     * @return the positions of the current values, reading the index and the log records appended
+     * since the index has been written if needed, or null if the files can't be read
+     */
+    @Nullable
+    private Map<String, Location> load() {
+        if (index != null && !changedByOtherProcess()) {
+            return index;
+        }
+        FileLock lock;
+        try {
+            lock = lockProcesses();
+        } catch (IOException e) {
+            logError(e);
+            return null;
+        }
+        try {
+            return loadLocked();
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Like {@link #load()}, but for callers which hold the lock of the processes already
+     */
+    @Nullable
+    private Map<String, Location> loadLocked() {
+        if (index != null && !changedByOtherProcess()) {
+            return index;
+        }
+        MappedByteBuffer counters = this.counters;
+        if (counters != null) {
+            long generation = counters.getLong(GENERATION_OFFSET);
+            if (generation != knownGeneration) {
+                // the log file has been replaced by another process
+                reset();
+                knownGeneration = generation;
+            }
+            knownSequence = counters.getLong(SEQUENCE_OFFSET);
+            if (index != null) {
+                // another process only appended records
+                try {
+                    fileLength = scanFrom(fileLength, index);
+                } catch (IOException e) {
+                    logError(e);
+                    reset();
+                    return null;
+                }
+                return index;
+            }
+        }
+
+        Map<String, Location> loadedIndex = new HashMap<>();
+        try {
+            long indexedLength = readIndex(loadedIndex, getRandomAccessFile().length());
+            if (indexedLength < 0) {
+                loadedIndex.clear();
+                indexedLength = 0;
+                lastRecordCrc = 0;
+            }
+            long loadedLiveLength = 0;
+            for (Map.Entry<String, Location> entry : loadedIndex.entrySet()) {
+                loadedLiveLength += recordLength(entry.getKey(), entry.getValue());
+            }
+            liveLength = loadedLiveLength;
+            unindexedRecords = 0;
+            fileLength = scanFrom(indexedLength, loadedIndex);
+        } catch (IOException e) {
+            logError(e);
+            reset();
+            return null;
+        }
+        index = loadedIndex;
+        return index;
+    }
+
+    /**
+     * @return true if another process has changed the files since this process has seen them last
+     */
+    private boolean changedByOtherProcess() {
+        MappedByteBuffer counters = this.counters;
+        return counters != null
+                && (counters.getLong(GENERATION_OFFSET) != knownGeneration
+                || counters.getLong(SEQUENCE_OFFSET) != knownSequence);
+    }
+
+    /**
+     * Tells the other processes that records have been appended ({@link #SEQUENCE_OFFSET})
+     * or that the log file has been replaced ({@link #GENERATION_OFFSET})
+     */
+    private void publish(int counterOffset) {
+        MappedByteBuffer counters = this.counters;
+        if (counters == null) {
+            return;
+        }
+        // continue from the shared value, a value seen earlier must never come back
+        long value = counters.getLong(counterOffset) + 1;
+        counters.putLong(counterOffset, value);
+        if (counterOffset == GENERATION_OFFSET) {
+            knownGeneration = value;
+        } else {
+            knownSequence = value;
+        }
+    }
+
+    /**
+     * @return the lock excluding all other processes from the files, or null if the backend is not in multi-process mode
+     */
+    @Nullable
+    private FileLock lockProcesses() throws IOException {
+        if (!multiProcess) {
+            return null;
+        }
+        if (lockChannel == null) {
+            ensureParentDirectory();
+            lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+        }
+        FileLock lock = lockChannel.lock();
+        if (counters == null) {
+            try {
+                // only extended while locked, so the counters of another process are never overwritten
+                if (lockChannel.size() < LOCK_FILE_LENGTH) {
+                    lockChannel.write(ByteBuffer.allocate(LOCK_FILE_LENGTH), 0);
+                }
+                counters = lockChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOCK_FILE_LENGTH);
+            } catch (IOException e) {
+                lock.release();
+                throw e;
+            }
+        }
+        return lock;
+    }
+
+    private static void release(@Nullable FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            logError(e);
+        }
+    }
+
+    /**
+     * Reads the index file into the given map
+     *
+     * @return the length of the log file covered by the index, or -1 if there is no valid index for the log file
+     */
+    private long readIndex(@NonNull Map<String, Location> index, long fileLength) throws IOException {
+        if (!indexFile.exists()) {
+            return -1;
+        }
+        byte[] content = new byte[(int) indexFile.length()];
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            inputStream.readFully(content);
+        } catch (EOFException e) {
+            return -1;
+        } finally {
+            inputStream.close();
+        }
+        if (content.length < INDEX_HEADER_LENGTH + LogRecords.CRC_LENGTH) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - LogRecords.CRC_LENGTH);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (buffer.getInt(content.length - LogRecords.CRC_LENGTH) != (int) crc.getValue()) {
+            return -1;
+        }
+
+        long indexedLength = buffer.getLong();
+        int indexedCrc = buffer.getInt();
+        int count = buffer.getInt();
+        // The index belongs to a different log file if it covers more than the file contains,
+        // or if its last covered record differs
+        if (indexedLength > fileLength || (indexedLength > 0 && readCrcBefore(indexedLength) != indexedCrc)) {
+            return -1;
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                int keyLength = buffer.getInt();
+                if (keyLength < 0 || keyLength > buffer.remaining()) {
+                    return -1;
+                }
+                String key = new String(content, buffer.position(), keyLength, LogRecords.CHARSET);
+                buffer.position(buffer.position() + keyLength);
+                Location location = new Location(buffer.getLong(), buffer.getInt());
+                if (location.offset < 0 || location.length < 0 || location.offset + location.length > indexedLength) {
+                    return -1;
+                }
+                index.put(key, location);
+            }
+        } catch (RuntimeException e) {
+            return -1;
+        }
+        lastRecordCrc = indexedCrc;
+        return indexedLength;
+    }
+
+    private int readCrcBefore(long position) throws IOException {
+        ByteBuffer crc = ByteBuffer.allocate(LogRecords.CRC_LENGTH);
+        readFully(getRandomAccessFile().getChannel(), crc, position - LogRecords.CRC_LENGTH);
+        return crc.getInt(0);
+    }
+
+    /**
+     * Applies the records of the log file from the given position to the index
+     * and drops a record at the end which has not been written completely
+     *
+     * @return the length of the log file
+     */
+    private long scanFrom(long position, @NonNull Map<String, Location> index) throws IOException {
+        RandomAccessFile randomAccessFile = getRandomAccessFile();
+        long length = randomAccessFile.length();
+        long validLength = scan(position, index);
+        if (validLength < length) {
+            randomAccessFile.setLength(validLength);
+        }
+        return validLength;
+    }
+
+    /**
+     * Applies the records of the log file from the given position to the index
+     *
+     * @return the length of the log file up to the end of the last valid record
+     */
+    private long scan(long position, @NonNull Map<String, Location> index) throws IOException {
+        long length = getRandomAccessFile().length();
+        if (position == length) {
+            return position;
+        }
+        CRC32 crc = new CRC32();
+        FileInputStream fileInputStream = new FileInputStream(file);
+        DataInputStream inputStream = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fileInputStream), crc));
+        byte[] buffer = new byte[256];
+        long validLength = position;
+        try {
+            fileInputStream.getChannel().position(position);
+            while (true) {
+                crc.reset();
+                long start = validLength;
+                byte type = inputStream.readByte();
+                if (type != LogRecords.RECORD_PUT && type != LogRecords.RECORD_REMOVE) {
+                    break;
+                }
+                int keyLength = inputStream.readInt();
+                if (keyLength < 0 || start + 1 + 4 + keyLength > length) {
+                    break;
+                }
+                buffer = ensureCapacity(buffer, keyLength);
+                inputStream.readFully(buffer, 0, keyLength);
+                String key = new String(buffer, 0, keyLength, LogRecords.CHARSET);
+                long recordLength = 1 + 4 + keyLength;
+
+                Location location = null;
+                if (type == LogRecords.RECORD_PUT) {
+                    int valueLength = inputStream.readInt();
+                    if (valueLength < 0 || start + recordLength + 4 + valueLength > length) {
+                        break;
+                    }
+                    buffer = ensureCapacity(buffer, valueLength);
+                    inputStream.readFully(buffer, 0, valueLength);
+                    location = new Location(start + recordLength + 4, valueLength);
+                    recordLength += 4 + valueLength;
+                }
+
+                int expectedCrc = (int) crc.getValue();
+                int recordCrc = inputStream.readInt();
+                if (recordCrc != expectedCrc) {
+                    break;
+                }
+                apply(index, key, location);
+                validLength = start + recordLength + LogRecords.CRC_LENGTH;
+                lastRecordCrc = recordCrc;
+                unindexedRecords++;
+            }
+        } catch (EOFException e) {
+            // the last record has not been written completely
+        } finally {
+            inputStream.close();
+        }
+        return validLength;
+    }
+
+    @NonNull
+    private byte[] read(@NonNull Location location) throws IOException {
+        byte[] value = new byte[location.length];
+        if (memoryMapped && fileLength <= Integer.MAX_VALUE) {
+            MappedByteBuffer mappedBuffer = this.mappedBuffer;
+            if (mappedBuffer == null || mappedBuffer.capacity() < fileLength) {
+                // the file has grown since it has been mapped
+                mappedBuffer = getRandomAccessFile().getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+                this.mappedBuffer = mappedBuffer;
+            }
+            ByteBuffer buffer = mappedBuffer.duplicate();
+            buffer.position((int) location.offset);
+            buffer.get(value);
+        } else {
+            readFully(getRandomAccessFile().getChannel(), ByteBuffer.wrap(value), location.offset);
+        }
+        return value;
+    }
+
+    private void writeIndex(@NonNull File indexFile,
+                            @NonNull Map<String, Location> index,
+                            long indexedLength,
+                            int indexedCrc) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(INDEX_HEADER_LENGTH + index.size() * (INDEX_ENTRY_OVERHEAD + 16));
+        DataOutputStream outputStream = new DataOutputStream(content);
+        outputStream.writeLong(indexedLength);
+        outputStream.writeInt(indexedCrc);
+        outputStream.writeInt(index.size());
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            byte[] key = entry.getKey().getBytes(LogRecords.CHARSET);
+            outputStream.writeInt(key.length);
+            outputStream.write(key);
+            outputStream.writeLong(entry.getValue().offset);
+            outputStream.writeInt(entry.getValue().length);
+        }
+        CRC32 crc = new CRC32();
+        byte[] bytes = content.toByteArray();
+        crc.update(bytes, 0, bytes.length);
+        outputStream.writeInt((int) crc.getValue());
+
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            content.writeTo(fileOutputStream);
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        if (!temporaryFile.renameTo(indexFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            throw new IOException("Could not replace " + indexFile);
+        }
+    }
+
+    @NonNull
+    private RandomAccessFile getRandomAccessFile() throws IOException {
+        if (randomAccessFile == null) {
+            ensureParentDirectory();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        }
+        return randomAccessFile;
+    }
+
+    private void ensureParentDirectory() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+    }
+
+    private void closeFile() throws IOException {
+        mappedBuffer = null;
+        if (randomAccessFile != null) {
+            RandomAccessFile file = randomAccessFile;
+            randomAccessFile = null;
+            file.close();
+        }
+    }
+
+    private void reset() {
+        index = null;
+        try {
+            closeFile();
+        } catch (IOException e) {
+            logError(e);
+        }
+    }
+
+    private static void readFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of " + channel);
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Stores the new location of the key (null if it has been removed) and updates the length of the live records
+     */
+    private void apply(@NonNull Map<String, Location> index, @NonNull String key, @Nullable Location location) {
+        Location previous = location == null ? index.remove(key) : index.put(key, location);
+        if (previous != null) {
+            liveLength -= recordLength(key, previous);
+        }
+        if (location != null) {
+            liveLength += recordLength(key, location);
+        }
+    }
+
+    @NonNull
+    private static byte[] ensureCapacity(@NonNull byte[] buffer, int length) {
+        return buffer.length >= length ? buffer : new byte[Math.max(length, 2 * buffer.length)];
+    }
+
+    // Estimation of the record length, exact for ASCII keys
+    private static long recordLength(@NonNull String key, @NonNull Location location) {
+        return LogRecords.RECORD_OVERHEAD + 4 + key.length() + location.length;
+    }
+
+    private static void logError(@NonNull IOException e) {
+        if (BuildConfig.DEBUG) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Position of a value in the log file
+     */
+    private static final class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Exact in-memory set of the keys stored in the backend of one store, so that checking for a key and reading
+ * a missing key neither waits for the monitor of the backend nor reads from it. The keys are loaded from the backend
+ * on first use and updated after every write of the store. Changes of the SharedPreferences file made outside
+ * of the store are picked up by a change listener. Backends written by other processes and custom backends
+ * are not indexed, the index asks them directly.
+ */
+final class KeyIndex implements SharedPreferences.OnSharedPreferenceChangeListener {
+    // Writes during the load make it start over, after that the backend is asked directly until the next call
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+
+    // Backend the keys belong to
+    @Nullable
+    private volatile SecureStorageBackend backend;
+    // Keys stored in the backend, null as long as they have not been loaded or the backend is not indexed
+    @Nullable
+    private volatile Set<String> keys;
+    // Whether the keys of the backend can be indexed
+    private volatile boolean indexed;
+    // Incremented with every change, so a load which overlaps a change is detected. Guarded by this.
+    private int changeCount;
+
+    /**
+     * @return true if a value is stored for the key in the backend, changes which have not been written yet excluded
+     */
+    boolean contains(@NonNull SecureStorageBackend backend,
+                     @NonNull String key) {
+        Set<String> keys = getKeys(backend);
+        return keys == null ? backend.contains(key) : keys.contains(key);
+    }
+
+    /**
+     * Loads the keys of the backend, e.g. when the store is prewarmed
+     */
+    void load(@NonNull SecureStorageBackend backend) {
+        if (getKeys(backend) == null) {
+            // blocks until the stored values have been loaded from disk
+            backend.contains("");
+        }
+    }
+
+    /**
+     * Called after the changes have been written to the backend
+     *
+     * @param changes Encrypted values mapped by their key, null values mark removed keys
+     * @param written True if the backend has written the changes, otherwise the keys are loaded again
+     */
+    synchronized void update(@NonNull SecureStorageBackend backend,
+                             @NonNull Map<String, ?> changes,
+                             boolean written) {
+        if (backend != this.backend) {
+            return;
+        }
+        changeCount++;
+        Set<String> keys = this.keys;
+        if (keys == null) {
+            return;
+        }
+        if (!written) {
+            this.keys = null;
+            return;
+        }
+        for (Map.Entry<String, ?> entry : changes.entrySet()) {
+            if (entry.getValue() == null) {
+                keys.remove(entry.getKey());
+            } else {
+                keys.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Called after all values have been removed from the backend
+     */
+    synchronized void clear(@NonNull SecureStorageBackend backend) {
+        if (backend != this.backend) {
+            return;
+        }
+        changeCount++;
+        Set<String> keys = this.keys;
+        if (keys != null) {
+            keys.clear();
+        }
+    }
+
+    @Override
+    public synchronized void onSharedPreferenceChanged(@NonNull SharedPreferences sharedPreferences,
+                                                       @Nullable String key) {
+        changeCount++;
+        Set<String> keys = this.keys;
+        if (keys == null) {
+            return;
+        }
+        if (key == null) {
+            // the file has been cleared (API 30+)
+            this.keys = null;
+        } else if (sharedPreferences.contains(key)) {
+            // read while holding the monitor, so a write of the store can't be undone by a late notification
+            keys.add(key);
+        } else {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * @return the keys of the backend or null if they are not indexed
+     */
+    @Nullable
+    private Set<String> getKeys(@NonNull SecureStorageBackend backend) {
+        if (backend != this.backend) {
+            attach(backend);
+        }
+        Set<String> keys = this.keys;
+        if (keys != null || !indexed) {
+            return keys;
+        }
+        for (int attempt = 0; attempt < MAX_LOAD_ATTEMPTS; attempt++) {
+            int count;
+            synchronized (this) {
+                if (backend != this.backend) {
+                    return null;
+                }
+                if (this.keys != null) {
+                    return this.keys;
+                }
+                count = changeCount;
+            }
+            Set<String> loadedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            loadedKeys.addAll(backend.getKeys());
+            synchronized (this) {
+                if (backend == this.backend && count == changeCount) {
+                    this.keys = loadedKeys;
+                    return loadedKeys;
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized void attach(@NonNull SecureStorageBackend backend) {
+        if (backend == this.backend) {
+            return;
+        }
+        SecureStorageBackend previousBackend = this.backend;
+        if (previousBackend instanceof SharedPreferencesBackend) {
+            ((SharedPreferencesBackend) previousBackend).getPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        }
+        changeCount++;
+        keys = null;
+        indexed = isIndexable(backend);
+        this.backend = backend;
+        if (backend instanceof SharedPreferencesBackend) {
+            // SharedPreferences only keeps a weak reference, the store keeps the index alive
+            ((SharedPreferencesBackend) backend).getPreferences().registerOnSharedPreferenceChangeListener(this);
+        }
+    }
+
+    /**
+     * @return true if only this process writes to the backend and every other change is reported
+     */
+    private static boolean isIndexable(@NonNull SecureStorageBackend backend) {
+        if (backend instanceof IndexedFileBackend) {
+            return !((IndexedFileBackend) backend).isMultiProcess();
+        }
+        return backend instanceof SharedPreferencesBackend || backend instanceof AppendOnlyFileBackend;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Owns the master key of the SecureStorage. The master key only wraps (encrypts) the AES data key,
+ * which encrypts the values, and decrypts values written by versions before the data key was introduced.
+ * Implementations have to be thread safe.
+ *
+ * @see AndroidKeyStoreKeyProvider
+ * @see SoftwareKeyProvider
+ * @see SecurePreferences#setKeyProvider(KeyProvider)
+ */
+public interface KeyProvider {
+    /**
+     * @return True if the master key exists, otherwise false
+     */
+    boolean keyExists() throws SecureStorageException;
+
+    /**
+     * Generates the master key if it does not exist yet
+     *
+     * @param context Context is used internally
+     */
+    void generateKey(@NonNull Context context) throws SecureStorageException;
+
+    /**
+     * Deletes the master key, everything encrypted with it can't be decrypted anymore
+     *
+     * @param context Context is used internally
+     */
+    void deleteKey(@NonNull Context context) throws SecureStorageException;
+
+    /**
+     * Resolves everything the first {@link #encrypt(Context, byte[])} or {@link #decrypt(Context, byte[])}
+     * would otherwise resolve lazily
+     *
+     * @param context Context is used internally
+     */
+    void prewarm(@NonNull Context context) throws SecureStorageException;
+
+    /**
+     * @param context    Context is used internally
+     * @param plainBytes Bytes to encrypt, owned by the caller
+     * @return The encrypted bytes
+     */
+    @NonNull
+    byte[] encrypt(@NonNull Context context, @NonNull byte[] plainBytes) throws SecureStorageException;
+
+    /**
+     * @param context        Context is used internally
+     * @param encryptedBytes Bytes returned by {@link #encrypt(Context, byte[])}
+     * @return The plain bytes, which should be zeroed by the caller after use
+     */
+    @NonNull
+    byte[] decrypt(@NonNull Context context, @NonNull byte[] encryptedBytes) throws SecureStorageException;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION;
+
+/**
+ * Re-encrypts the values of one store with the current data key version in the background and deletes the
+ * previous versions afterwards. The values are processed in small batches, each holding the locks of its keys
+ * only, so reads and writes of the store continue while the values are re-encrypted.
+ * Values written in the meantime are encrypted with the current version already.
+ */
+final class KeyRotation {
+    private static final int BATCH_SIZE = 32;
+    private static final String THREAD_NAME = "SecureStorageKeyRotation";
+
+    private static final ExecutorService ROTATION_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @NonNull
+    private final SecureStore store;
+    @NonNull
+    private final Context context;
+
+    // Task re-encrypting the values, null while nothing is to do. Guarded by this.
+    @Nullable
+    private FutureTask<Void> task;
+    // Whether another pass over all values is needed, e.g. because the key has been rotated again
+    private boolean requested;
+
+    KeyRotation(@NonNull SecureStore store, @NonNull Context context) {
+        this.store = store;
+        this.context = context;
+    }
+
+    /**
+     * Starts re-encrypting all values, or makes the running task do another pass
+     *
+     * @return Future which completes when all values are encrypted with the current data key version
+     */
+    @NonNull
+    synchronized Future<Void> start() {
+        requested = true;
+        if (task == null) {
+            task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws SecureStorageException {
+                    run();
+                    return null;
+                }
+            });
+            ROTATION_EXECUTOR.execute(task);
+        }
+        return task;
+    }
+
+    private void run() throws SecureStorageException {
+        boolean finished = false;
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!requested) {
+                        task = null;
+                        finished = true;
+                        return;
+                    }
+                    requested = false;
+                }
+                if (!reencryptAll()) {
+                    synchronized (this) {
+                        requested = true;
+                    }
+                }
+            }
+        } finally {
+            if (!finished) {
+                synchronized (this) {
+                    // the next call of start tries again
+                    task = null;
+                    requested = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the data key has been rotated again in the meantime, otherwise true
+     */
+    private boolean reencryptAll() throws SecureStorageException {
+        int keyVersion = store.getCurrentKeyVersion();
+        // changes which have not been written yet may have been encrypted with a previous version
+        flush();
+        List<String> keys = store.getStoredKeys();
+        Set<Integer> usedKeyVersions = new HashSet<>();
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            store.reencrypt(keys.subList(i, Math.min(i + BATCH_SIZE, keys.size())), usedKeyVersions);
+        }
+        // the previous versions are only deleted once no value on disk depends on them anymore
+        flush();
+        return store.retireDataKeys(keyVersion, usedKeyVersions);
+    }
+
+    private void flush() throws SecureStorageException {
+        if (!store.flush()) {
+            throw new SecureStorageException(context.getString(R.string.message_problem_write), null, INTERNAL_LIBRARY_EXCEPTION);
+        }
+    }
+}
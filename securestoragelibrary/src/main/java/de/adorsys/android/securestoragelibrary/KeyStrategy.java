@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+/**
+ * Kind of master key kept by the {@link AndroidKeyStoreKeyProvider}, ordered from the most protected
+ * to the most compatible one. If the device doesn't support a strategy, the provider falls back to the next one.
+ *
+ * @see AndroidKeyStoreKeyProvider#AndroidKeyStoreKeyProvider(KeyStrategy)
+ */
+public enum KeyStrategy {
+    /**
+     * AES/GCM key in a StrongBox secure element (API 28+ on devices with StrongBox).
+     * The best protection, but every use of the key is considerably slower.
+     */
+    AES_GCM_STRONGBOX,
+    /**
+     * AES/GCM key in the AndroidKeyStore (API 23+), the default
+     */
+    AES_GCM,
+    /**
+     * RSA key pair with PKCS1 padding in the AndroidKeyStore, the only strategy before API 23
+     * and the one of all installations which have created their key with an older version of the library
+     */
+    RSA_PKCS1
+}
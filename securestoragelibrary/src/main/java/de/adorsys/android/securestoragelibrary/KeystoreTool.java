@@ -17,257 +17,941 @@
 package de.adorsys.android.securestoragelibrary;
 
 import android.content.Context;
-import android.content.res.Configuration;
+import android.content.SharedPreferences;
 import android.os.Build.VERSION;
-import android.security.KeyPairGeneratorSpec;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyProperties;
 import android.util.Base64;
-import android.util.Log;
-import android.view.View;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
-import java.security.KeyPairGenerator;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.UnrecoverableKeyException;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.List;
-import java.util.Locale;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.security.auth.x500.X500Principal;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
-import androidx.annotation.RequiresApi;
 
+import static android.content.Context.MODE_MULTI_PROCESS;
+import static android.content.Context.MODE_PRIVATE;
+import static android.os.Build.VERSION_CODES.KITKAT;
 import static android.os.Build.VERSION_CODES.M;
 import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.CRYPTO_EXCEPTION;
 import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION;
 import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.KEYSTORE_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.CIPHER_INIT;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.DECRYPT;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.ENCRYPT;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.KEY_GENERATION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.KEY_LOAD;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.KEY_LOOKUP;
 
 final class KeystoreTool {
-    private static final String KEY_ALIAS = "adorsysKeyPair";
-    private static final String KEY_ENCRYPTION_ALGORITHM = "RSA";
-    private static final String KEY_CHARSET = "UTF-8";
-    private static final String KEY_KEYSTORE_NAME = "AndroidKeyStore";
-    private static final String KEY_CIPHER_JELLYBEAN_PROVIDER = "AndroidOpenSSL";
-    private static final String KEY_CIPHER_MARSHMALLOW_PROVIDER = "AndroidKeyStoreBCWorkaround";
-    private static final String KEY_TRANSFORMATION_ALGORITHM = "RSA/ECB/PKCS1Padding";
-    private static final String KEY_X500PRINCIPAL = "CN=SecureDeviceStorage, O=Adorsys, C=Germany";
+    // The wrapped data key of the default store is stored under the alias of the original key pair
+    static final String DEFAULT_KEY_ALIAS = "adorsysKeyPair";
+    private static final Charset KEY_CHARSET = Charset.forName("UTF-8");
+    private static final String KEY_DATA_KEY_PREFERENCES_NAME = "SecurePreferencesDataKey";
+    // Data keys created by a rotation are stored under alias#version, the version used for new values under alias#current.
+    // The first data key of a store keeps the plain alias and version 0.
+    private static final String KEY_VERSION_SEPARATOR = "#";
+    private static final String KEY_CURRENT_VERSION_POSTFIX = KEY_VERSION_SEPARATOR + "current";
+    // Locked by every process of the app while it generates a key
+    private static final String KEY_LOCK_FILE_NAME = "SecurePreferencesKeys.lock";
+    private static final String KEY_DATA_KEY_ALGORITHM = "AES";
+    private static final String KEY_DATA_TRANSFORMATION_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int DATA_KEY_SIZE = 256;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    // Larger plain values get a one-off buffer so the pooled ones stay small
+    private static final int MAX_POOLED_BUFFER_SIZE = 16 * 1024;
+
+    // Marker of values which have been encoded with the ValueCodec before encrypting them with the wrapped AES data key.
+    // ':' is not part of the Base64 alphabet, so legacy RSA values can never start with it.
+    private static final String TYPED_ENVELOPE_PREFIX = "v3:";
+    // Marker of typed values encrypted with a data key created by a rotation, which carry the key version
+    private static final String VERSIONED_ENVELOPE_PREFIX = "v4:";
+    // First byte of typed values stored as raw bytes in a BinarySecureStorageBackend.
+    // Values stored as String start with a printable character, so they can be told apart.
+    private static final byte BINARY_VALUE_MARKER = 3;
+    private static final byte VERSIONED_BINARY_VALUE_MARKER = 4;
+    private static final int KEY_VERSION_LENGTH = 4;
+
+    /**
+     * Returned by {@link #getKeyVersion(Object)} for values which don't depend on a data key
+     */
+    static final int NO_KEY_VERSION = -1;
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    // Cipher instances are not thread safe, so every thread keeps its own reusable instance.
+    // They are initialized with the current key before every use.
+    private static final ThreadLocal<Cipher> DATA_CIPHER = new ThreadLocal<>();
+    // Reusable per thread buffer for decrypted bytes, zeroed after every use
+    private static final ThreadLocal<byte[]> PLAIN_BUFFER = new ThreadLocal<>();
+
+    // Owner of the master key which wraps the data key
+    @NonNull
+    private static volatile KeyProvider keyProvider = new AndroidKeyStoreKeyProvider();
+    // Whether the master key of the provider is known to exist, so that checking for it doesn't ask the provider
+    // again. Only changed while the keys are locked, see keyPairExists.
+    private static volatile boolean keyPairKnown;
+
+    // Unwrapped AES data keys mapped by their name (alias and version), kept in memory so that only
+    // the first access of every store pays for the keystore operation
+    private static final Map<String, SecretKey> DATA_KEYS = new ConcurrentHashMap<>();
+    // Versions of the data keys used for new values, mapped by their alias
+    private static final Map<String, Integer> CURRENT_KEY_VERSIONS = new ConcurrentHashMap<>();
+
+    // Guards the key lifecycle: operations using the keys share the read lock, generating and deleting
+    // keys takes the write lock, so keys never appear or disappear in the middle of an operation
+    private static final ReentrantReadWriteLock KEY_LOCK = new ReentrantReadWriteLock();
 
     // hidden constructor to disable initialization
     private KeystoreTool() {
     }
 
-    @Nullable
-    static String encryptMessage(@NonNull Context context, @NonNull String plainMessage) throws SecureStorageException {
+    static void setKeyProvider(@NonNull KeyProvider keyProvider) {
+        Lock lock = lockKeysExclusively();
         try {
-            Cipher input;
-            if (VERSION.SDK_INT >= M) {
-                input = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM, KEY_CIPHER_MARSHMALLOW_PROVIDER);
-            } else {
-                input = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM, KEY_CIPHER_JELLYBEAN_PROVIDER);
+            KeystoreTool.keyProvider = keyProvider;
+            keyPairKnown = false;
+            // the current data keys have been unwrapped with the previous provider
+            DATA_KEYS.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the keys from being generated or deleted until the returned lock is unlocked.
+     * Any number of threads can hold it at the same time.
+     */
+    @NonNull
+    static Lock lockKeys() {
+        Lock lock = KEY_LOCK.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Like {@link #lockKeys()}, but generates the key pair first if it doesn't exist,
+     * so it is guaranteed to exist until the returned lock is unlocked
+     */
+    @NonNull
+    static Lock lockKeyPair(@NonNull Context context) throws SecureStorageException {
+        Lock lock = lockKeys();
+        boolean exists = false;
+        try {
+            exists = keyPairExists();
+        } finally {
+            if (!exists) {
+                lock.unlock();
             }
+        }
+        if (exists) {
+            return lock;
+        }
+        if (KEY_LOCK.getReadHoldCount() > 0) {
+            // upgrading a read lock would deadlock
+            throw new SecureStorageException("The key pair can't be generated while the keys are locked", null, INTERNAL_LIBRARY_EXCEPTION);
+        }
 
-            input.init(Cipher.ENCRYPT_MODE, getPublicKey(context));
+        Lock writeLock = lockKeysExclusively();
+        try {
+            FileLock processLock = lockProcesses(context);
+            try {
+                if (!keyPairExists()) {
+                    generateKeyPair(context);
+                }
+            } finally {
+                release(processLock);
+            }
+            // downgrade, the key pair can't be deleted in between
+            lock.lock();
+        } finally {
+            writeLock.unlock();
+        }
+        return lock;
+    }
 
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(
-                    outputStream, input);
-            cipherOutputStream.write(plainMessage.getBytes(KEY_CHARSET));
-            cipherOutputStream.close();
+    /**
+     * Waits until no other thread uses the keys and keeps them from using the keys until the returned lock
+     * is unlocked. Must not be called while holding {@link #lockKeys()}.
+     */
+    @NonNull
+    static Lock lockKeysExclusively() {
+        Lock lock = KEY_LOCK.writeLock();
+        lock.lock();
+        return lock;
+    }
 
-            byte[] values = outputStream.toByteArray();
-            return Base64.encodeToString(values, Base64.DEFAULT);
+    /**
+     * Encodes the given plain value with {@link ValueCodec} and encrypts it with the current AES data key
+     *
+     * @param value String, Boolean, Integer, Long, Float, Set(type: String) or byte[] value
+     * @return the Base64 encoded ciphertext
+     */
+    @NonNull
+    static String encryptValue(@NonNull Context context,
+                               @NonNull String keyAlias,
+                               @NonNull Object value) throws SecureStorageException {
+        return encryptValue(context, keyAlias, getCurrentKeyVersion(context, keyAlias), value);
+    }
 
-        } catch (Exception e) {
-            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+    /**
+     * Like {@link #encryptValue(Context, String, Object)}, but encrypts with the given version of the data key
+     */
+    @NonNull
+    static String encryptValue(@NonNull Context context,
+                               @NonNull String keyAlias,
+                               int keyVersion,
+                               @NonNull Object value) throws SecureStorageException {
+        byte[] values = encryptValueToBytes(context, keyAlias, keyVersion, value);
+        // skip the binary marker, the prefix marks the format of String values
+        String prefix = keyVersion == 0 ? TYPED_ENVELOPE_PREFIX : VERSIONED_ENVELOPE_PREFIX;
+        return Base64Codec.encode(prefix, values, 1, values.length - 1);
+    }
+
+    /**
+     * Like {@link #encryptValue(Context, String, Object)}, but returns the raw ciphertext for a {@link BinarySecureStorageBackend}
+     */
+    @NonNull
+    static byte[] encryptValueToBytes(@NonNull Context context,
+                                      @NonNull String keyAlias,
+                                      @NonNull Object value) throws SecureStorageException {
+        return encryptValueToBytes(context, keyAlias, getCurrentKeyVersion(context, keyAlias), value);
+    }
+
+    /**
+     * Like {@link #encryptValueToBytes(Context, String, Object)}, but encrypts with the given version of the data key
+     */
+    @NonNull
+    static byte[] encryptValueToBytes(@NonNull Context context,
+                                      @NonNull String keyAlias,
+                                      int keyVersion,
+                                      @NonNull Object value) throws SecureStorageException {
+        byte[] plainBytes = ValueCodec.encode(value);
+        try {
+            return encryptEnvelope(context, keyAlias, keyVersion, plainBytes);
+        } finally {
+            Arrays.fill(plainBytes, (byte) 0);
         }
     }
 
+    /**
+     * @return marker (1 byte), key version (4 bytes, only if it is not 0), IV and ciphertext
+     */
     @NonNull
-    static String decryptMessage(@NonNull Context context, @NonNull String encryptedMessage) throws SecureStorageException {
+    private static byte[] encryptEnvelope(@NonNull Context context,
+                                          @NonNull String keyAlias,
+                                          int keyVersion,
+                                          @NonNull byte[] plainBytes) throws SecureStorageException {
+        long start = MetricsRecorder.start(ENCRYPT);
         try {
-            Cipher output;
-            if (VERSION.SDK_INT >= M) {
-                output = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM, KEY_CIPHER_MARSHMALLOW_PROVIDER);
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            SECURE_RANDOM.nextBytes(iv);
+
+            Cipher input = initDataCipher(context, keyAlias, keyVersion, Cipher.ENCRYPT_MODE, getGcmParameterSpec(iv));
+
+            // header, IV and ciphertext share one array, the cipher writes directly behind the IV
+            int headerLength = keyVersion == 0 ? 1 : 1 + KEY_VERSION_LENGTH;
+            byte[] values = new byte[headerLength + GCM_IV_LENGTH + input.getOutputSize(plainBytes.length)];
+            if (keyVersion == 0) {
+                values[0] = BINARY_VALUE_MARKER;
             } else {
-                output = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM, KEY_CIPHER_JELLYBEAN_PROVIDER);
+                values[0] = VERSIONED_BINARY_VALUE_MARKER;
+                writeKeyVersion(keyVersion, values, 1);
             }
-            output.init(Cipher.DECRYPT_MODE, getPrivateKey(context));
+            System.arraycopy(iv, 0, values, headerLength, GCM_IV_LENGTH);
+            int length = input.doFinal(plainBytes, 0, plainBytes.length, values, headerLength + GCM_IV_LENGTH);
+            return length == values.length - headerLength - GCM_IV_LENGTH ? values : Arrays.copyOf(values, headerLength + GCM_IV_LENGTH + length);
+
+        } catch (SecureStorageException e) {
+            MetricsRecorder.failure(ENCRYPT, e);
+            throw e;
+        } catch (Exception e) {
+            SecureStorageException exception = new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+            MetricsRecorder.failure(ENCRYPT, exception);
+            throw exception;
+        } finally {
+            MetricsRecorder.end(ENCRYPT, start, plainBytes.length);
+        }
+    }
 
-            CipherInputStream cipherInputStream = new CipherInputStream(
-                    new ByteArrayInputStream(Base64.decode(encryptedMessage, Base64.DEFAULT)), output);
-            List<Byte> values = new ArrayList<>();
+    /**
+     * Decrypts a value written by {@link #encryptValue(Context, String, Object)}. Values written by older versions
+     * are returned as String, like they have been stored.
+     *
+     * @return the decrypted String, Boolean, Integer, Long, Float, Set(type: String) or byte[] value
+     */
+    @NonNull
+    static Object decryptValue(@NonNull Context context,
+                               @NonNull String keyAlias,
+                               @NonNull String encryptedMessage) throws SecureStorageException {
+        if (!isTypedValue(encryptedMessage)) {
+            return decryptMessage(context, keyAlias, encryptedMessage);
+        }
+        byte[] values;
+        int length;
+        try {
+            // both prefixes have the same length
+            values = Base64Codec.obtainDecodeBuffer(encryptedMessage, TYPED_ENVELOPE_PREFIX.length());
+            length = Base64Codec.decode(encryptedMessage, TYPED_ENVELOPE_PREFIX.length(), values);
+            if (encryptedMessage.startsWith(VERSIONED_ENVELOPE_PREFIX)) {
+                return decryptTypedEnvelope(context, keyAlias, readKeyVersion(values, 0, length),
+                        values, KEY_VERSION_LENGTH, length - KEY_VERSION_LENGTH);
+            }
+        } catch (IllegalArgumentException e) {
+            SecureStorageException exception = new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
+            MetricsRecorder.failure(DECRYPT, exception);
+            throw exception;
+        }
+        return decryptTypedEnvelope(context, keyAlias, 0, values, 0, length);
+    }
 
-            int nextByte;
-            while ((nextByte = cipherInputStream.read()) != -1) { //NOPMD
-                values.add((byte) nextByte);
+    /**
+     * Decrypts a value written by {@link #encryptValueToBytes(Context, String, Object)}
+     *
+     * @return the decrypted String, Boolean, Integer, Long, Float, Set(type: String) or byte[] value
+     */
+    @NonNull
+    static Object decryptValue(@NonNull Context context,
+                               @NonNull String keyAlias,
+                               @NonNull byte[] encryptedValue) throws SecureStorageException {
+        if (encryptedValue.length == 0) {
+            SecureStorageException exception = new SecureStorageException("Empty encrypted value", null, CRYPTO_EXCEPTION);
+            MetricsRecorder.failure(DECRYPT, exception);
+            throw exception;
+        }
+        if (encryptedValue[0] == VERSIONED_BINARY_VALUE_MARKER) {
+            int keyVersion;
+            try {
+                keyVersion = readKeyVersion(encryptedValue, 1, encryptedValue.length - 1);
+            } catch (IllegalArgumentException e) {
+                SecureStorageException exception = new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
+                MetricsRecorder.failure(DECRYPT, exception);
+                throw exception;
             }
+            return decryptTypedEnvelope(context, keyAlias, keyVersion, encryptedValue,
+                    1 + KEY_VERSION_LENGTH, encryptedValue.length - 1 - KEY_VERSION_LENGTH);
+        }
+        return decryptTypedEnvelope(context, keyAlias, 0, encryptedValue, 1, encryptedValue.length - 1);
+    }
 
-            byte[] bytes = new byte[values.size()];
-            for (int i = 0; i < bytes.length; i++) {
-                bytes[i] = values.get(i);
+    @NonNull
+    private static Object decryptTypedEnvelope(@NonNull Context context,
+                                               @NonNull String keyAlias,
+                                               int keyVersion,
+                                               @NonNull byte[] values,
+                                               int offset,
+                                               int length) throws SecureStorageException {
+        long start = MetricsRecorder.start(DECRYPT);
+        try {
+            Cipher output = initDataCipher(context, keyAlias, keyVersion, Cipher.DECRYPT_MODE, getGcmParameterSpec(values, offset, GCM_IV_LENGTH));
+
+            int outputSize = output.getOutputSize(length - GCM_IV_LENGTH);
+            byte[] buffer = obtainPlainBuffer(outputSize);
+            try {
+                int plainLength = output.doFinal(values, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH, buffer, 0);
+                return ValueCodec.decode(buffer, 0, plainLength);
+            } finally {
+                Arrays.fill(buffer, 0, outputSize, (byte) 0);
             }
+        } catch (SecureStorageException e) {
+            MetricsRecorder.failure(DECRYPT, e);
+            throw e;
+        } catch (Exception e) {
+            SecureStorageException exception = new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
+            MetricsRecorder.failure(DECRYPT, exception);
+            throw exception;
+        } finally {
+            MetricsRecorder.end(DECRYPT, start, length);
+        }
+    }
 
-            return new String(bytes, 0, bytes.length, KEY_CHARSET);
+    @NonNull
+    static String decryptMessage(@NonNull Context context,
+                                 @NonNull String keyAlias,
+                                 @NonNull String encryptedMessage) throws SecureStorageException {
+        long start = MetricsRecorder.start(DECRYPT);
+        try {
+            return decryptLegacyMessage(context, encryptedMessage);
+        } catch (SecureStorageException e) {
+            MetricsRecorder.failure(DECRYPT, e);
+            throw e;
+        } finally {
+            MetricsRecorder.end(DECRYPT, start, encryptedMessage.length());
+        }
+    }
 
+    /**
+     * En- or decrypts one segment of an {@link EncryptedBlobStore} file with the data key
+     *
+     * @param keyVersion Version of the data key the file is encrypted with
+     * @param iv     IV of the segment, which must never be used twice for encryption
+     * @param output buffer for the result, large enough for the input length plus the 16 byte tag
+     * @return the number of bytes written to the output
+     */
+    static int doFinalSegment(@NonNull Context context,
+                              @NonNull String keyAlias,
+                              int keyVersion,
+                              boolean encrypt,
+                              @NonNull byte[] iv,
+                              @NonNull byte[] input,
+                              int inputLength,
+                              @NonNull byte[] output) throws SecureStorageException {
+        SecureStorageMetrics.Operation operation = encrypt ? ENCRYPT : DECRYPT;
+        long start = MetricsRecorder.start(operation);
+        // streams run outside of the SecureStore operations, so every segment locks the keys on its own
+        Lock lock = lockKeys();
+        try {
+            Cipher cipher = initDataCipher(context, keyAlias, keyVersion, encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, getGcmParameterSpec(iv));
+            return cipher.doFinal(input, 0, inputLength, output, 0);
+        } catch (SecureStorageException e) {
+            MetricsRecorder.failure(operation, e);
+            throw e;
         } catch (Exception e) {
+            SecureStorageException exception = new SecureStorageException(e.getMessage(), e,
+                    encrypt ? KEYSTORE_EXCEPTION : CRYPTO_EXCEPTION);
+            MetricsRecorder.failure(operation, exception);
+            throw exception;
+        } finally {
+            lock.unlock();
+            MetricsRecorder.end(operation, start, inputLength);
+        }
+    }
+
+    /**
+     * @return true if the given value has been written by {@link #encryptValue(Context, String, Object)}
+     */
+    static boolean isTypedValue(@NonNull String encryptedMessage) {
+        return encryptedMessage.startsWith(TYPED_ENVELOPE_PREFIX) || encryptedMessage.startsWith(VERSIONED_ENVELOPE_PREFIX);
+    }
+
+    /**
+     * @return true if the given bytes of a {@link BinarySecureStorageBackend} have been written by
+     * {@link #encryptValueToBytes(Context, String, Object)}, false if they are the UTF-8 bytes of a String value
+     */
+    static boolean isBinaryValue(@NonNull byte[] storedValue) {
+        return storedValue.length > 0
+                && (storedValue[0] == BINARY_VALUE_MARKER || storedValue[0] == VERSIONED_BINARY_VALUE_MARKER);
+    }
+
+    /**
+     * @param encryptedValue Encrypted String value or raw bytes of a {@link BinarySecureStorageBackend}
+     *                       as returned by {@link #isBinaryValue(byte[])}
+     * @return the version of the data key the value has been encrypted with, or {@link #NO_KEY_VERSION}
+     * for legacy values encrypted directly with the key pair and for malformed values
+     */
+    static int getKeyVersion(@NonNull Object encryptedValue) {
+        try {
+            if (encryptedValue instanceof byte[]) {
+                byte[] values = (byte[]) encryptedValue;
+                if (values.length == 0) {
+                    return NO_KEY_VERSION;
+                }
+                return values[0] == VERSIONED_BINARY_VALUE_MARKER ? readKeyVersion(values, 1, values.length - 1) : 0;
+            }
+            String encryptedMessage = (String) encryptedValue;
+            if (encryptedMessage.startsWith(VERSIONED_ENVELOPE_PREFIX)) {
+                // 8 Base64 characters encode the first 6 bytes, which start with the version
+                int end = VERSIONED_ENVELOPE_PREFIX.length() + 8;
+                if (encryptedMessage.length() < end) {
+                    return NO_KEY_VERSION;
+                }
+                byte[] header = Base64.decode(encryptedMessage.substring(VERSIONED_ENVELOPE_PREFIX.length(), end), Base64.DEFAULT);
+                return readKeyVersion(header, 0, header.length);
+            }
+            return isTypedValue(encryptedMessage) ? 0 : NO_KEY_VERSION;
+        } catch (IllegalArgumentException e) {
+            return NO_KEY_VERSION;
+        }
+    }
+
+    @NonNull
+    private static String decryptLegacyMessage(@NonNull Context context, @NonNull String encryptedMessage) throws SecureStorageException {
+        byte[] plainBytes;
+        try {
+            plainBytes = keyProvider.decrypt(context, Base64.decode(encryptedMessage, Base64.DEFAULT));
+        } catch (IllegalArgumentException e) {
             throw new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
         }
+        try {
+            return new String(plainBytes, KEY_CHARSET);
+        } finally {
+            Arrays.fill(plainBytes, (byte) 0);
+        }
     }
 
-    static boolean keyPairExists() throws SecureStorageException {
+    /**
+     * Does everything the first encryption or decryption in a process would have to do: generates or loads
+     * the master key, unwraps (or creates) the data key and looks up the cipher providers
+     */
+    static void prewarm(@NonNull Context context, @NonNull String keyAlias) throws SecureStorageException {
+        Lock lock = lockKeyPair(context);
         try {
-            return getKeyStoreInstance().getKey(KEY_ALIAS, null) != null;
-        } catch (NoSuchAlgorithmException e) {
+            keyProvider.prewarm(context);
+            getDataKey(context, keyAlias, getCurrentKeyVersion(context, keyAlias));
+            getDataCipher();
+        } catch (GeneralSecurityException e) {
             throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
-        } catch (KeyStoreException | UnrecoverableKeyException e) {
-            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Has to be called while the keys are locked, so the key pair can't be deleted in between
+     */
+    static boolean keyPairExists() throws SecureStorageException {
+        if (keyPairKnown) {
+            return true;
+        }
+        long start = MetricsRecorder.start(KEY_LOOKUP);
+        try {
+            boolean exists = keyProvider.keyExists();
+            keyPairKnown = exists;
+            return exists;
+        } catch (SecureStorageException e) {
+            MetricsRecorder.failure(KEY_LOOKUP, e);
+            throw e;
+        } finally {
+            MetricsRecorder.end(KEY_LOOKUP, start, 0);
         }
     }
 
     static void generateKeyPair(@NonNull Context context) throws SecureStorageException {
-        // Create new key if needed
-        if (!keyPairExists()) {
-            if (VERSION.SDK_INT >= M) {
-                generateKeyPairForMarshmallow(context);
-            } else {
-                PRNGFixes.apply();
-                generateKeyPairUnderMarshmallow(context);
+        Lock lock = lockKeysExclusively();
+        long start = MetricsRecorder.start(KEY_GENERATION);
+        try {
+            KeyProvider keyProvider = KeystoreTool.keyProvider;
+            if (!keyProvider.keyExists()) {
+                // Data keys left over from a previous key pair can never be unwrapped again
+                deleteDataKeys(context);
             }
-        } else if (BuildConfig.DEBUG) {
-            Log.e(KeystoreTool.class.getName(),
-                    context.getString(R.string.message_keypair_already_exists));
+            keyProvider.generateKey(context);
+        } catch (SecureStorageException e) {
+            MetricsRecorder.failure(KEY_GENERATION, e);
+            throw e;
+        } finally {
+            MetricsRecorder.end(KEY_GENERATION, start, 0);
+            lock.unlock();
         }
     }
 
     static void deleteKeyPair(@NonNull Context context) throws SecureStorageException {
-        // Delete Key from Keystore
-        if (keyPairExists()) {
+        Lock lock = lockKeysExclusively();
+        try {
+            // The data keys are useless without the key pair which wrapped them
+            deleteDataKeys(context);
+            keyPairKnown = false;
+            keyProvider.deleteKey(context);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the version of the data key of the given alias which encrypts new values, 0 until the key is rotated
+     */
+    static int getCurrentKeyVersion(@NonNull Context context, @NonNull String keyAlias) {
+        Integer keyVersion = CURRENT_KEY_VERSIONS.get(keyAlias);
+        if (keyVersion == null) {
+            keyVersion = readCurrentKeyVersion(context
+                    .getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE), keyAlias);
+            CURRENT_KEY_VERSIONS.put(keyAlias, keyVersion);
+        }
+        return keyVersion;
+    }
+
+    /**
+     * Creates a new version of the data key of the given alias, which encrypts all values written from now on.
+     * The previous versions are kept to decrypt the values encrypted with them.
+     *
+     * @return the version of the new data key
+     */
+    @SuppressWarnings("deprecation")
+    static int rotateDataKey(@NonNull Context context, @NonNull String keyAlias) throws SecureStorageException {
+        // the new data key is wrapped with the key pair
+        lockKeyPair(context).unlock();
+        Lock lock = lockKeysExclusively();
+        try {
+            FileLock processLock = lockProcesses(context);
             try {
-                getKeyStoreInstance().deleteEntry(KEY_ALIAS);
-            } catch (KeyStoreException e) {
-                throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+                // reloads the file if another process has rotated the key in the meantime
+                SharedPreferences preferences = context
+                        .getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE | MODE_MULTI_PROCESS);
+                int keyVersion = readCurrentKeyVersion(preferences, keyAlias) + 1;
+                SecretKey key = generateDataKey();
+                // commit synchronously: every value written from now on depends on this key
+                boolean stored = preferences.edit()
+                        .putString(getDataKeyName(keyAlias, keyVersion), wrapDataKey(context, key))
+                        .putString(keyAlias + KEY_CURRENT_VERSION_POSTFIX, String.valueOf(keyVersion))
+                        .commit();
+                if (!stored) {
+                    throw new SecureStorageException(context.getString(R.string.message_problem_encryption), null, KEYSTORE_EXCEPTION);
+                }
+                DATA_KEYS.put(getDataKeyName(keyAlias, keyVersion), key);
+                CURRENT_KEY_VERSIONS.put(keyAlias, keyVersion);
+                return keyVersion;
+            } finally {
+                release(processLock);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the data key of the given alias has versions besides the current one
+     */
+    static boolean hasRetiredDataKeys(@NonNull Context context, @NonNull String keyAlias) {
+        int currentVersion = getCurrentKeyVersion(context, keyAlias);
+        for (String name : context.getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE).getAll().keySet()) {
+            int keyVersion = parseKeyVersion(keyAlias, name);
+            if (keyVersion != NO_KEY_VERSION && keyVersion != currentVersion) {
+                return true;
             }
-        } else if (BuildConfig.DEBUG) {
-            Log.e(KeystoreTool.class.getName(),
-                    context.getString(R.string.message_keypair_does_not_exist));
         }
+        return false;
     }
 
-    @Nullable
-    private static PublicKey getPublicKey(@NonNull Context context) throws SecureStorageException {
-        PublicKey publicKey;
+    /**
+     * Deletes all versions of the data key of the given alias except the current one and the given ones
+     *
+     * @param currentVersion Version which has to be the current one, e.g. because all values have been
+     *                       re-encrypted with it
+     * @return false if the data key has been rotated in the meantime and nothing has been deleted, otherwise true
+     */
+    static boolean retireDataKeys(@NonNull Context context,
+                                  @NonNull String keyAlias,
+                                  int currentVersion,
+                                  @NonNull Set<Integer> keepVersions) {
+        Lock lock = lockKeysExclusively();
         try {
-            if (keyPairExists()) {
-                publicKey = getKeyStoreInstance().getCertificate(KEY_ALIAS).getPublicKey();
-            } else {
-                if (BuildConfig.DEBUG) {
-                    Log.e(KeystoreTool.class.getName(), context.getString(R.string.message_keypair_does_not_exist));
+            if (getCurrentKeyVersion(context, keyAlias) != currentVersion) {
+                return false;
+            }
+            SharedPreferences preferences = context.getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE);
+            SharedPreferences.Editor editor = preferences.edit();
+            for (String name : preferences.getAll().keySet()) {
+                int keyVersion = parseKeyVersion(keyAlias, name);
+                if (keyVersion != NO_KEY_VERSION && keyVersion != currentVersion && !keepVersions.contains(keyVersion)) {
+                    DATA_KEYS.remove(name);
+                    editor.remove(name);
                 }
-                throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
             }
-        } catch (Exception e) {
-            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+            editor.commit();
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return publicKey;
     }
 
-    @Nullable
-    private static PrivateKey getPrivateKey(@NonNull Context context) throws SecureStorageException {
-        PrivateKey privateKey;
+    /**
+     * Returns the given version of the AES data key of the given alias used for encrypting values. The first version
+     * is generated on first use, every version is stored wrapped (encrypted) with the key of the key provider
+     * and unwrapped once per process.
+     */
+    @NonNull
+    private static SecretKey getDataKey(@NonNull Context context,
+                                        @NonNull String keyAlias,
+                                        int keyVersion) throws SecureStorageException {
+        String name = getDataKeyName(keyAlias, keyVersion);
+        SecretKey key = DATA_KEYS.get(name);
+        if (key != null) {
+            return key;
+        }
+
+        synchronized (KeystoreTool.class) {
+            key = DATA_KEYS.get(name);
+            if (key == null) {
+                long start = MetricsRecorder.start(KEY_LOAD);
+                try {
+                    SharedPreferences preferences = context
+                            .getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE);
+                    String wrappedKey = preferences.getString(name, null);
+                    if (wrappedKey == null) {
+                        key = loadOrGenerateDataKey(context, keyAlias, keyVersion);
+                    } else {
+                        key = unwrapDataKey(context, wrappedKey);
+                    }
+                    DATA_KEYS.put(name, key);
+                } finally {
+                    MetricsRecorder.end(KEY_LOAD, start, 0);
+                }
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Loads the data key written by another process of the app in the meantime, or generates the first version
+     */
+    @NonNull
+    @SuppressWarnings("deprecation")
+    private static SecretKey loadOrGenerateDataKey(@NonNull Context context,
+                                                   @NonNull String keyAlias,
+                                                   int keyVersion) throws SecureStorageException {
+        String name = getDataKeyName(keyAlias, keyVersion);
+        FileLock processLock = lockProcesses(context);
         try {
-            if (keyPairExists()) {
-                privateKey = (PrivateKey) getKeyStoreInstance().getKey(KEY_ALIAS, null);
-            } else {
-                if (BuildConfig.DEBUG) {
-                    Log.e(KeystoreTool.class.getName(), context.getString(R.string.message_keypair_does_not_exist));
+            // reloads the file if another process has changed it since it has been read
+            SharedPreferences preferences = context
+                    .getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE | MODE_MULTI_PROCESS);
+            String wrappedKey = preferences.getString(name, null);
+            if (wrappedKey != null) {
+                return unwrapDataKey(context, wrappedKey);
+            }
+            if (keyVersion != 0 || readCurrentKeyVersion(preferences, keyAlias) != 0) {
+                // only the first version is generated on demand, the others have been deleted after a rotation
+                throw new SecureStorageException("Data key version " + keyVersion + " does not exist", null, CRYPTO_EXCEPTION);
+            }
+            SecretKey key = generateDataKey();
+            // commit synchronously: every value written from now on depends on this key
+            boolean stored = preferences.edit()
+                    .putString(name, wrapDataKey(context, key))
+                    .commit();
+            if (!stored) {
+                throw new SecureStorageException(context.getString(R.string.message_problem_encryption), null, KEYSTORE_EXCEPTION);
+            }
+            return key;
+        } finally {
+            release(processLock);
+        }
+    }
+
+    /**
+     * Excludes the other processes of the app, which share the keystore and the wrapped data keys,
+     * from generating keys at the same time
+     */
+    @NonNull
+    private static FileLock lockProcesses(@NonNull Context context) throws SecureStorageException {
+        RandomAccessFile lockFile = null;
+        try {
+            lockFile = new RandomAccessFile(new File(context.getFilesDir(), KEY_LOCK_FILE_NAME), "rw");
+            return lockFile.getChannel().lock();
+        } catch (IOException e) {
+            if (lockFile != null) {
+                try {
+                    lockFile.close();
+                } catch (IOException closeException) {
+                    // the lock has not been acquired
                 }
-                throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
             }
-        } catch (Exception e) {
-            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+            throw new SecureStorageException(e.getMessage(), e, INTERNAL_LIBRARY_EXCEPTION);
         }
-        return privateKey;
     }
 
-    private static boolean isRTL(@NonNull Context context) {
-        Configuration config = context.getResources().getConfiguration();
-        return config.getLayoutDirection() == View.LAYOUT_DIRECTION_RTL;
+    private static void release(@NonNull FileLock lock) {
+        try {
+            // closing the channel releases the lock
+            lock.channel().close();
+        } catch (IOException e) {
+            // the lock is released when the process ends at the latest
+        }
     }
 
-    @RequiresApi(api = M)
-    private static void generateKeyPairForMarshmallow(@NonNull Context context) throws SecureStorageException {
+    /**
+     * Deletes all versions of the data key of the given alias, which makes all values encrypted with it unreadable
+     */
+    static void deleteDataKey(@NonNull Context context, @NonNull String keyAlias) {
+        Lock lock = lockKeysExclusively();
         try {
-            if (isRTL(context)) {
-                Locale.setDefault(Locale.US);
+            SharedPreferences preferences = context.getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE);
+            SharedPreferences.Editor editor = preferences.edit();
+            for (String name : preferences.getAll().keySet()) {
+                if (parseKeyVersion(keyAlias, name) != NO_KEY_VERSION) {
+                    DATA_KEYS.remove(name);
+                    editor.remove(name);
+                }
             }
+            CURRENT_KEY_VERSIONS.remove(keyAlias);
+            editor.remove(keyAlias + KEY_CURRENT_VERSION_POSTFIX).commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the aliases of all data keys, including the ones of stores which have not been opened by this process
+     */
+    @NonNull
+    static Set<String> getDataKeyAliases(@NonNull Context context) {
+        Lock lock = lockKeys();
+        try {
+            Set<String> keyAliases = new HashSet<>();
+            SharedPreferences preferences = context.getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE);
+            for (String name : preferences.getAll().keySet()) {
+                int separatorIndex = name.indexOf(KEY_VERSION_SEPARATOR);
+                keyAliases.add(separatorIndex < 0 ? name : name.substring(0, separatorIndex));
+            }
+            return keyAliases;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // only called while holding the write lock
+    private static void deleteDataKeys(@NonNull Context context) {
+        DATA_KEYS.clear();
+        CURRENT_KEY_VERSIONS.clear();
+        context.getSharedPreferences(KEY_DATA_KEY_PREFERENCES_NAME, MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    @NonNull
+    private static String getDataKeyName(@NonNull String keyAlias, int keyVersion) {
+        return keyVersion == 0 ? keyAlias : keyAlias + KEY_VERSION_SEPARATOR + keyVersion;
+    }
+
+    /**
+     * @return the version of the data key stored under the given name if it is a data key of the alias,
+     * otherwise {@link #NO_KEY_VERSION}
+     */
+    private static int parseKeyVersion(@NonNull String keyAlias, @NonNull String name) {
+        if (name.equals(keyAlias)) {
+            return 0;
+        }
+        String prefix = keyAlias + KEY_VERSION_SEPARATOR;
+        if (!name.startsWith(prefix) || name.equals(keyAlias + KEY_CURRENT_VERSION_POSTFIX)) {
+            return NO_KEY_VERSION;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return NO_KEY_VERSION;
+        }
+    }
 
-            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ENCRYPTION_ALGORITHM, KEY_KEYSTORE_NAME);
+    private static int readCurrentKeyVersion(@NonNull SharedPreferences preferences, @NonNull String keyAlias) {
+        String keyVersion = preferences.getString(keyAlias + KEY_CURRENT_VERSION_POSTFIX, null);
+        return keyVersion == null ? 0 : Integer.parseInt(keyVersion);
+    }
+
+    private static int readKeyVersion(@NonNull byte[] values, int offset, int length) {
+        if (length < KEY_VERSION_LENGTH) {
+            throw new IllegalArgumentException("Invalid value length " + length);
+        }
+        return ((values[offset] & 0xFF) << 24) | ((values[offset + 1] & 0xFF) << 16)
+                | ((values[offset + 2] & 0xFF) << 8) | (values[offset + 3] & 0xFF);
+    }
 
-            KeyGenParameterSpec keyGenParameterSpec =
-                    new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1)
-                            .build();
+    private static void writeKeyVersion(int keyVersion, @NonNull byte[] values, int offset) {
+        values[offset] = (byte) (keyVersion >>> 24);
+        values[offset + 1] = (byte) (keyVersion >>> 16);
+        values[offset + 2] = (byte) (keyVersion >>> 8);
+        values[offset + 3] = (byte) keyVersion;
+    }
 
-            generator.initialize(keyGenParameterSpec);
-            generator.generateKeyPair();
+    @NonNull
+    private static SecretKey generateDataKey() throws SecureStorageException {
+        try {
+            if (VERSION.SDK_INT < M) {
+                PRNGFixes.apply();
+            }
+            KeyGenerator generator = KeyGenerator.getInstance(KEY_DATA_KEY_ALGORITHM);
+            generator.init(DATA_KEY_SIZE, SECURE_RANDOM);
+            return generator.generateKey();
         } catch (Exception e) {
             throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
         }
     }
 
-    private static void generateKeyPairUnderMarshmallow(@NonNull Context context) throws SecureStorageException {
+    @NonNull
+    private static String wrapDataKey(@NonNull Context context, @NonNull SecretKey key) throws SecureStorageException {
+        byte[] encoded = key.getEncoded();
         try {
-            if (isRTL(context)) {
-                Locale.setDefault(Locale.US);
-            }
+            return Base64.encodeToString(keyProvider.encrypt(context, encoded), Base64.DEFAULT);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
 
-            Calendar start = Calendar.getInstance();
-            Calendar end = Calendar.getInstance();
-            end.add(Calendar.YEAR, 99);
-
-            KeyPairGeneratorSpec spec = new KeyPairGeneratorSpec.Builder(context)
-                    .setAlias(KEY_ALIAS)
-                    .setSubject(new X500Principal(KEY_X500PRINCIPAL))
-                    .setSerialNumber(BigInteger.TEN)
-                    .setStartDate(start.getTime())
-                    .setEndDate(end.getTime())
-                    .build();
-
-            KeyPairGenerator generator
-                    = KeyPairGenerator.getInstance(KEY_ENCRYPTION_ALGORITHM, KEY_KEYSTORE_NAME);
-            generator.initialize(spec);
-            generator.generateKeyPair();
+    @NonNull
+    private static SecretKey unwrapDataKey(@NonNull Context context, @NonNull String wrappedKey) throws SecureStorageException {
+        try {
+            byte[] encoded = keyProvider.decrypt(context, Base64.decode(wrappedKey, Base64.DEFAULT));
+            try {
+                // SecretKeySpec keeps its own copy of the key material
+                return new SecretKeySpec(encoded, KEY_DATA_KEY_ALGORITHM);
+            } finally {
+                Arrays.fill(encoded, (byte) 0);
+            }
+        } catch (SecureStorageException e) {
+            throw e;
         } catch (Exception e) {
-            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+            throw new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    private static byte[] obtainPlainBuffer(int size) {
+        if (size > MAX_POOLED_BUFFER_SIZE) {
+            return new byte[size];
+        }
+        byte[] buffer = PLAIN_BUFFER.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+            PLAIN_BUFFER.set(buffer);
         }
+        return buffer;
     }
 
     @NonNull
-    private static KeyStore getKeyStoreInstance() throws SecureStorageException {
+    private static Cipher initDataCipher(@NonNull Context context,
+                                         @NonNull String keyAlias,
+                                         int keyVersion,
+                                         int mode,
+                                         @NonNull AlgorithmParameterSpec parameterSpec) throws SecureStorageException, GeneralSecurityException {
+        SecretKey key = getDataKey(context, keyAlias, keyVersion);
+        long start = MetricsRecorder.start(CIPHER_INIT);
         try {
-            // Get the AndroidKeyStore instance
-            KeyStore keyStore = KeyStore.getInstance(KEY_KEYSTORE_NAME);
+            Cipher cipher = getDataCipher();
+            cipher.init(mode, key, parameterSpec);
+            return cipher;
+        } finally {
+            MetricsRecorder.end(CIPHER_INIT, start, 0);
+        }
+    }
 
-            // Relict of the JCA API - you have to call load even
-            // if you do not have an input stream you want to load or it'll crash
-            keyStore.load(null);
+    @NonNull
+    private static Cipher getDataCipher() throws GeneralSecurityException {
+        Cipher cipher = DATA_CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(KEY_DATA_TRANSFORMATION_ALGORITHM);
+            DATA_CIPHER.set(cipher);
+        }
+        return cipher;
+    }
 
-            return keyStore;
-        } catch (Exception e) {
-            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+    @NonNull
+    private static AlgorithmParameterSpec getGcmParameterSpec(@NonNull byte[] iv) {
+        return getGcmParameterSpec(iv, 0, iv.length);
+    }
+
+    @NonNull
+    private static AlgorithmParameterSpec getGcmParameterSpec(@NonNull byte[] buffer, int offset, int length) {
+        if (VERSION.SDK_INT >= KITKAT) {
+            return new GCMParameterSpec(GCM_TAG_LENGTH, buffer, offset, length);
+        } else {
+            // GCMParameterSpec is not available on Api 18, the BouncyCastle GCM implementation
+            // accepts a plain IV and uses a 128 bit tag by default
+            return new IvParameterSpec(buffer, offset, length);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Record format of the log files written by {@link AppendOnlyFileBackend} and {@link IndexedFileBackend}:
+ * type (1 byte), key length (4 bytes), key, [value length (4 bytes), value,] CRC32 of everything before (4 bytes)
+ */
+final class LogRecords {
+    static final Charset CHARSET = Charset.forName("UTF-8");
+    static final byte RECORD_PUT = 1;
+    static final byte RECORD_REMOVE = 2;
+    static final int RECORD_OVERHEAD = 1 + 4 + 4;
+    static final int CRC_LENGTH = 4;
+
+    // hidden constructor to disable initialization
+    private LogRecords() {
+    }
+
+    /**
+     * @param value Value of the key, or null for a record removing the key
+     */
+    @NonNull
+    static byte[] encode(@NonNull String key, @Nullable byte[] value) {
+        byte[] keyBytes = key.getBytes(CHARSET);
+        int length = RECORD_OVERHEAD + keyBytes.length + (value == null ? 0 : 4 + value.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(value == null ? RECORD_REMOVE : RECORD_PUT);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        if (value != null) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    // Estimation of the record length, exact for ASCII keys
+    static long length(@NonNull String key, @NonNull byte[] value) {
+        return RECORD_OVERHEAD + 4 + key.length() + value.length;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation;
+
+/**
+ * Forwards measurements to the installed {@link SecureStorageMetrics} and writes android.os.Trace sections.
+ * Without a listener and with tracing disabled every call only reads two volatile fields. Usage:
+ * <pre>
+ * long start = MetricsRecorder.start(operation);
+ * try {
+ *     ...
+ * } finally {
+ *     MetricsRecorder.end(operation, start, bytes);
+ * }
+ * </pre>
+ */
+final class MetricsRecorder {
+    // Lowest bit of the token returned by start(), set if a trace section has been begun
+    private static final long TRACED_FLAG = 1;
+    // Token for operations which are not recorded
+    private static final long NOT_RECORDED = 0;
+
+    @Nullable
+    private static volatile SecureStorageMetrics metrics;
+    private static volatile boolean tracingEnabled;
+
+    // hidden constructor to disable initialization
+    private MetricsRecorder() {
+    }
+
+    static void setMetrics(@Nullable SecureStorageMetrics metrics) {
+        MetricsRecorder.metrics = metrics;
+    }
+
+    static void setTracingEnabled(boolean tracingEnabled) {
+        MetricsRecorder.tracingEnabled = tracingEnabled;
+    }
+
+    /**
+     * @return a token holding the start time of the operation and whether a trace section has been begun,
+     * or 0 if nothing is recorded
+     */
+    static long start(@NonNull Operation operation) {
+        boolean traced = tracingEnabled;
+        if (metrics == null && !traced) {
+            return NOT_RECORDED;
+        }
+        if (traced) {
+            Trace.beginSection(operation.traceSectionName);
+        }
+        long start = System.nanoTime() & ~TRACED_FLAG;
+        if (traced) {
+            return start | TRACED_FLAG;
+        }
+        // 0 is reserved for "not recorded"
+        return start == NOT_RECORDED ? 2 : start;
+    }
+
+    /**
+     * Ends the section begun by {@link #start(Operation)} even if tracing has been toggled in the meantime
+     */
+    static void end(@NonNull Operation operation, long start, int bytes) {
+        if (start == NOT_RECORDED) {
+            return;
+        }
+        if ((start & TRACED_FLAG) != 0) {
+            Trace.endSection();
+        }
+        SecureStorageMetrics metrics = MetricsRecorder.metrics;
+        if (metrics != null) {
+            metrics.onOperation(operation, System.nanoTime() - (start & ~TRACED_FLAG), bytes);
+        }
+    }
+
+    static void cacheAccess(boolean hit) {
+        SecureStorageMetrics metrics = MetricsRecorder.metrics;
+        if (metrics != null) {
+            metrics.onCacheAccess(hit);
+        }
+    }
+
+    static void failure(@NonNull Operation operation, @NonNull SecureStorageException e) {
+        SecureStorageMetrics metrics = MetricsRecorder.metrics;
+        if (metrics != null) {
+            metrics.onFailure(operation, e.type);
+        }
+    }
+}
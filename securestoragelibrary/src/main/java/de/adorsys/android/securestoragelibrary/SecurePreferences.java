@@ -18,24 +18,43 @@ package de.adorsys.android.securestoragelibrary;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.text.TextUtils;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import static android.content.Context.MODE_PRIVATE;
-import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.CRYPTO_EXCEPTION;
-
 /**
  * Handles every use case for the developer using Secure Storage.
  * Encryption, Decryption, Storage, Removal etc.
  */
 public final class SecurePreferences {
-    private static final String KEY_SHARED_PREFERENCES_NAME = "SecurePreferences";
-    private static final String KEY_SET_COUNT_POSTFIX = "_count";
+    private static final Pattern STORE_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+    // Named stores, created on first access
+    private static final Map<String, SecureStore> STORES = new HashMap<>();
+
+    // Store used by the static methods, created on first use
+    @Nullable
+    private static volatile SecureStore defaultStore;
+
+    // Backend for the default store, which may be set before the store has been created
+    @Nullable
+    private static SecureStorageBackend defaultStorageBackend;
 
     // hidden constructor to disable initialization
     private SecurePreferences() {
@@ -51,17 +70,7 @@ public final class SecurePreferences {
     public static void setValue(@NonNull Context context,
                                 @NonNull String key,
                                 @NonNull String value) throws SecureStorageException {
-        Context applicationContext = context.getApplicationContext();
-        if (!KeystoreTool.keyPairExists()) {
-            KeystoreTool.generateKeyPair(applicationContext);
-        }
-
-        String transformedValue = KeystoreTool.encryptMessage(applicationContext, value);
-        if (TextUtils.isEmpty(transformedValue)) {
-            throw new SecureStorageException(context.getString(R.string.message_problem_encryption), null, CRYPTO_EXCEPTION);
-        } else {
-            setSecureValue(applicationContext, key, transformedValue);
-        }
+        getDefaultStore(context).setValue(key, value);
     }
 
     /**
@@ -74,7 +83,7 @@ public final class SecurePreferences {
     public static void setValue(@NonNull Context context,
                                 @NonNull String key,
                                 boolean value) throws SecureStorageException {
-        setValue(context, key, String.valueOf(value));
+        getDefaultStore(context).setValue(key, value);
     }
 
     /**
@@ -87,7 +96,7 @@ public final class SecurePreferences {
     public static void setValue(@NonNull Context context,
                                 @NonNull String key,
                                 float value) throws SecureStorageException {
-        setValue(context, key, String.valueOf(value));
+        getDefaultStore(context).setValue(key, value);
     }
 
     /**
@@ -100,7 +109,7 @@ public final class SecurePreferences {
     public static void setValue(@NonNull Context context,
                                 @NonNull String key,
                                 long value) throws SecureStorageException {
-        setValue(context, key, String.valueOf(value));
+        getDefaultStore(context).setValue(key, value);
     }
 
     /**
@@ -113,7 +122,7 @@ public final class SecurePreferences {
     public static void setValue(@NonNull Context context,
                                 @NonNull String key,
                                 int value) throws SecureStorageException {
-        setValue(context, key, String.valueOf(value));
+        getDefaultStore(context).setValue(key, value);
     }
 
     /**
@@ -126,12 +135,38 @@ public final class SecurePreferences {
     public static void setValue(@NonNull Context context,
                                 @NonNull String key,
                                 @NonNull Set<String> value) throws SecureStorageException {
-        setValue(context, key + KEY_SET_COUNT_POSTFIX, String.valueOf(value.size()));
+        getDefaultStore(context).setValue(key, value);
+    }
 
-        int i = 0;
-        for (String s : value) {
-            setValue(context, key + "_" + (i++), s);
-        }
+    /**
+     * Takes plain byte array, encrypts it and stores it encrypted in the SecureStorage on the Android Device.
+     * Values larger than 64 KiB are encrypted into a file like {@link #openEncryptedOutputStream(Context, String)} does.
+     * The value is kept in memory while encrypting it, use {@link #openEncryptedOutputStream(Context, String)}
+     * for values which don't fit into memory.
+     *
+     * @param context Context is used internally
+     * @param key     Key used to identify the stored value in SecureStorage
+     * @param value   Plain byte array value that will be encrypted and stored in the SecureStorage
+     */
+    public static void setBytes(@NonNull Context context,
+                                @NonNull String key,
+                                @NonNull byte[] value) throws SecureStorageException {
+        getDefaultStore(context).setBytes(key, value);
+    }
+
+    /**
+     * Opens a stream which encrypts everything written to it into a file in the app's private files directory,
+     * in segments of 64 KiB, so any amount of data can be stored with constant memory. The value replaces
+     * the current value of the key once the stream has been closed successfully, until then the previous value stays readable.
+     *
+     * @param context Context is used internally
+     * @param key     Key used to identify the stored value in SecureStorage
+     * @return Stream for the plain value, which has to be closed to store the value
+     */
+    @NonNull
+    public static OutputStream openEncryptedOutputStream(@NonNull Context context,
+                                                         @NonNull String key) throws SecureStorageException {
+        return getDefaultStore(context).openEncryptedOutputStream(key);
     }
 
     /**
@@ -139,24 +174,28 @@ public final class SecurePreferences {
      *
      * @param context  Context is used internally
      * @param key      Key used to identify the stored value in SecureStorage
-     * @param defValue Default String value that will be returned if the value with given key doesn't exist or an exception is thrown
+     * @param defValue Default String value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
      * @return Decrypted String value associated with given key from SecureStorage
      */
     @Nullable
     public static String getStringValue(@NonNull Context context,
                                         @NonNull String key,
                                         @Nullable String defValue) {
-        Context applicationContext = context.getApplicationContext();
-        String result = getSecureValue(applicationContext, key);
-        try {
-            if (!TextUtils.isEmpty(result)) {
-                return KeystoreTool.decryptMessage(applicationContext, result);
-            } else {
-                return defValue;
-            }
-        } catch (SecureStorageException e) {
-            return defValue;
-        }
+        return getDefaultStore(context).getStringValue(key, defValue);
+    }
+
+    /**
+     * Gets the encrypted String values for all given keys from the SecureStorage on the Android Device in one pass,
+     * decrypts them and returns them
+     *
+     * @param context Context is used internally
+     * @param keys    Keys used to identify the stored values in SecureStorage
+     * @return Decrypted String values mapped by their key. Keys which don't exist or can't be decrypted are not contained
+     */
+    @NonNull
+    public static Map<String, String> getValues(@NonNull Context context,
+                                                @NonNull Collection<String> keys) {
+        return getDefaultStore(context).getValues(keys);
     }
 
     /**
@@ -164,13 +203,13 @@ public final class SecurePreferences {
      *
      * @param context  Context is used internally
      * @param key      Key used to identify the stored value in SecureStorage
-     * @param defValue Default boolean value that will be returned if the value with given key doesn't exist or an exception is thrown
+     * @param defValue Default boolean value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
      * @return Decrypted boolean value associated with given key from SecureStorage
      */
     public static boolean getBooleanValue(@NonNull Context context,
                                           @NonNull String key,
                                           boolean defValue) {
-        return Boolean.parseBoolean(getStringValue(context, key, String.valueOf(defValue)));
+        return getDefaultStore(context).getBooleanValue(key, defValue);
     }
 
     /**
@@ -178,13 +217,13 @@ public final class SecurePreferences {
      *
      * @param context  Context is used internally
      * @param key      Key used to identify the stored value in SecureStorage
-     * @param defValue Default float value that will be returned if the value with given key doesn't exist or an exception is thrown
+     * @param defValue Default float value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
      * @return Decrypted float value associated with given key from SecureStorage
      */
     public static float getFloatValue(@NonNull Context context,
                                       @NonNull String key,
                                       float defValue) {
-        return Float.parseFloat(getStringValue(context, key, String.valueOf(defValue)));
+        return getDefaultStore(context).getFloatValue(key, defValue);
     }
 
     /**
@@ -192,13 +231,13 @@ public final class SecurePreferences {
      *
      * @param context  Context is used internally
      * @param key      Key used to identify the stored value in SecureStorage
-     * @param defValue Default long value that will be returned if the value with given key doesn't exist or an exception is thrown
+     * @param defValue Default long value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
      * @return Decrypted long value associated with given key from SecureStorage
      */
     public static long getLongValue(@NonNull Context context,
                                     @NonNull String key,
                                     long defValue) {
-        return Long.parseLong(getStringValue(context, key, String.valueOf(defValue)));
+        return getDefaultStore(context).getLongValue(key, defValue);
     }
 
     /**
@@ -206,13 +245,44 @@ public final class SecurePreferences {
      *
      * @param context  Context is used internally
      * @param key      Key used to identify the stored value in SecureStorage
-     * @param defValue Default int value that will be returned if the value with given key doesn't exist or an exception is thrown
+     * @param defValue Default int value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
      * @return Decrypted int value associated with given key from SecureStorage
      */
     public static int getIntValue(@NonNull Context context,
                                   @NonNull String key,
                                   int defValue) {
-        return Integer.parseInt(getStringValue(context, key, String.valueOf(defValue)));
+        return getDefaultStore(context).getIntValue(key, defValue);
+    }
+
+    /**
+     * Gets encrypted byte array value for given key from the SecureStorage on the Android Device, decrypts it and returns it.
+     * Values written with {@link #openEncryptedOutputStream(Context, String)} are read completely into memory.
+     *
+     * @param context  Context is used internally
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default byte array value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted byte array value associated with given key from SecureStorage
+     */
+    @Nullable
+    public static byte[] getBytes(@NonNull Context context,
+                                  @NonNull String key,
+                                  @Nullable byte[] defValue) {
+        return getDefaultStore(context).getBytes(key, defValue);
+    }
+
+    /**
+     * Opens a stream which decrypts the value for given key segment by segment while it is read, so any amount
+     * of data can be read with constant memory. Every segment is authenticated before it is returned, reading
+     * a modified or truncated value fails with an IOException.
+     *
+     * @param context Context is used internally
+     * @param key     Key used to identify the stored value in SecureStorage
+     * @return Stream of the decrypted byte array value associated with given key, or null if the value doesn't exist or has a different type
+     */
+    @Nullable
+    public static InputStream openDecryptedInputStream(@NonNull Context context,
+                                                       @NonNull String key) throws SecureStorageException {
+        return getDefaultStore(context).openDecryptedInputStream(key);
     }
 
     /**
@@ -220,25 +290,14 @@ public final class SecurePreferences {
      *
      * @param context  Context is used internally
      * @param key      Key used to identify the stored value in SecureStorage
-     * @param defValue Default Set(type: String) value that will be returned if the value with given key doesn't exist or an exception is thrown
+     * @param defValue Default Set(type: String) value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
      * @return Decrypted Set(type: String) value associated with given key from SecureStorage
      */
     @NonNull
     public static Set<String> getStringSetValue(@NonNull Context context,
                                                 @NonNull String key,
                                                 @NonNull Set<String> defValue) {
-        int size = getIntValue(context, key + KEY_SET_COUNT_POSTFIX, -1);
-
-        if (size == -1) {
-            return defValue;
-        }
-
-        Set<String> res = new HashSet<>(size);
-        for (int i = 0; i < size; i++) {
-            res.add(getStringValue(context, key + "_" + i, ""));
-        }
-
-        return res;
+        return getDefaultStore(context).getStringSetValue(key, defValue);
     }
 
     /**
@@ -250,14 +309,7 @@ public final class SecurePreferences {
      */
     public static boolean contains(@NonNull Context context,
                                    @NonNull String key) {
-        Context applicationContext = context.getApplicationContext();
-        SharedPreferences preferences = applicationContext
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        try {
-            return preferences.contains(key) && KeystoreTool.keyPairExists();
-        } catch (SecureStorageException e) {
-            return false;
-        }
+        return getDefaultStore(context).contains(key);
     }
 
     /**
@@ -265,39 +317,298 @@ public final class SecurePreferences {
      *
      * @param context Context is used internally
      * @param key     Key used to identify the stored value in SecureStorage
+     * @see SecureStore#removeValue(String)
      */
     public static void removeValue(@NonNull Context context,
                                    @NonNull String key) {
-        Context applicationContext = context.getApplicationContext();
-        removeSecureValue(applicationContext, key);
+        getDefaultStore(context).removeValue(key);
     }
 
     /**
      * Clears all values from the SecureStorage on the Android Device and deletes the en/decryption keys
-     * Means new keys/keypairs have to be generated for the library to be able to work
+     * Means new keys/keypairs have to be generated for the library to be able to work.
+     * The values of all named stores are cleared as well, use {@link SecureStore#clear()}
+     * to clear a single store without deleting the master key.
      *
      * @param context Context is used internally
      */
     public static void clearAllValues(@NonNull Context context) throws SecureStorageException {
+        SecureStore store = getDefaultStore(context);
+        // waits for running operations, no other thread may use the keys in between
+        Lock lock = KeystoreTool.lockKeysExclusively();
+        try {
+            // stores which have not been opened yet are only known by their data keys
+            String namedKeyAliasPrefix = KeystoreTool.DEFAULT_KEY_ALIAS + "_";
+            for (String keyAlias : KeystoreTool.getDataKeyAliases(context)) {
+                if (keyAlias.startsWith(namedKeyAliasPrefix)) {
+                    String name = keyAlias.substring(namedKeyAliasPrefix.length());
+                    if (STORE_NAME_PATTERN.matcher(name).matches()) {
+                        getStore(context, name);
+                    }
+                }
+            }
+            if (KeystoreTool.keyPairExists()) {
+                KeystoreTool.deleteKeyPair(context.getApplicationContext());
+            }
+            store.clear();
+            for (SecureStore namedStore : getStores()) {
+                namedStore.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the store with the given name, which keeps its values in its own file encrypted with its own data key.
+     * Unrelated parts of an app can use separate stores to write in parallel and to clear their values
+     * (e.g. on logout) with {@link SecureStore#clear()} without touching any other store.
+     *
+     * @param context Context is used internally
+     * @param name    Name of the store, consisting of letters, digits, '_' and '-' only
+     * @return the store with the given name, the same instance for every call with the same name
+     * @throws IllegalArgumentException if the name contains other characters
+     */
+    @NonNull
+    public static SecureStore getStore(@NonNull Context context,
+                                       @NonNull String name) {
+        if (!STORE_NAME_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid store name " + name);
+        }
         Context applicationContext = context.getApplicationContext();
-        if (KeystoreTool.keyPairExists()) {
-            KeystoreTool.deleteKeyPair(applicationContext);
+        synchronized (STORES) {
+            SecureStore store = STORES.get(name);
+            if (store == null || !store.belongsTo(applicationContext)) {
+                store = new SecureStore(applicationContext, name);
+                STORES.put(name, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Enables an in-memory cache for decrypted values, so repeated reads of the same key do not have to
+     * decrypt the value again. The cache is disabled by default. It is invalidated on every change
+     * of the SecureStorage and wiped completely when the system asks the app to trim its memory.
+     * Calling this method again replaces the current cache with an empty one using the new bounds.
+     *
+     * @param context    Context is used internally
+     * @param maxEntries Maximum number of decrypted values kept in memory
+     * @param maxBytes   Maximum estimated memory in bytes used by the cached keys and values
+     */
+    public static void enableValueCache(@NonNull Context context,
+                                        int maxEntries,
+                                        long maxBytes) {
+        getDefaultStore(context).enableValueCache(maxEntries, maxBytes);
+    }
+
+    /**
+     * Disables the cache for decrypted values and drops all cached values
+     *
+     * @param context Context is used internally
+     */
+    public static void disableValueCache(@NonNull Context context) {
+        getDefaultStore(context).disableValueCache();
+    }
+
+    /**
+     * Drops all decrypted values from the cache (if enabled) while keeping it enabled,
+     * e.g. when the user logs out or the app moves to the background
+     */
+    public static void clearValueCache() {
+        SecureStore store = defaultStore;
+        if (store != null) {
+            store.clearValueCache();
+        }
+    }
+
+    /**
+     * Creates an editor to store and remove several values at once. All values are encrypted in one pass
+     * and written to the SecureStorage with a single write when calling {@link Editor#apply()} or {@link Editor#commit()}
+     *
+     * @param context Context is used internally
+     * @return Editor collecting the changes
+     */
+    @NonNull
+    public static Editor edit(@NonNull Context context) {
+        return getDefaultStore(context).edit();
+    }
+
+    /**
+     * Sets when changes are written to disk. By default setValue, removeValue and {@link Editor#apply()}
+     * hand the changes to the backend right away, which writes them asynchronously ({@link WritePolicy#APPLY}).
+     * {@link WritePolicy#COALESCE} writes the changes of 100 ms at once.
+     *
+     * @param context Context is used internally
+     * @param policy  Policy for all following changes
+     */
+    public static void setWritePolicy(@NonNull Context context,
+                                      @NonNull WritePolicy policy) {
+        getDefaultStore(context).setWritePolicy(policy);
+    }
+
+    /**
+     * Sets when changes are written to disk, see {@link #setWritePolicy(Context, WritePolicy)}
+     *
+     * @param context                Context is used internally
+     * @param policy                 Policy for all following changes
+     * @param coalescingWindowMillis Time in milliseconds changes are kept in memory with {@link WritePolicy#COALESCE}
+     */
+    public static void setWritePolicy(@NonNull Context context,
+                                      @NonNull WritePolicy policy,
+                                      long coalescingWindowMillis) {
+        getDefaultStore(context).setWritePolicy(policy, coalescingWindowMillis);
+    }
+
+    /**
+     * Writes all changes of the SecureStorage and of all named stores which have not been written yet
+     * and waits until all changes are on disk, e.g. before the process is shut down
+     *
+     * @param context Context is used internally
+     * @return True if all changes have been written successfully, otherwise false
+     */
+    public static boolean flush(@NonNull Context context) {
+        boolean result = getDefaultStore(context).flush();
+        for (SecureStore store : getStores()) {
+            result &= store.flush();
+        }
+        return result;
+    }
+
+    /**
+     * Upgrades all values written by older versions of the library to the current storage format in small batches
+     * on a background thread. Values are also upgraded one by one when they are read, this sweep upgrades the
+     * remaining ones, e.g. so that they no longer need the slower RSA decryption. It saves its progress after
+     * every batch, an interrupted sweep is resumed by the next call or by {@link #prewarm(Context, String...)}.
+     * Values stay readable during the whole migration.
+     *
+     * @param context Context is used internally
+     * @return Future which completes when all values have the current format
+     */
+    @NonNull
+    public static Future<Void> migrate(@NonNull Context context) {
+        return getDefaultStore(context).migrate();
+    }
+
+    /**
+     * Replaces the data key of the SecureStorage. Values written from now on are encrypted with the new key,
+     * the stored values are re-encrypted in small batches on a background thread while they stay readable.
+     * The previous key is deleted once no value depends on it anymore. An interrupted re-encryption
+     * is resumed by {@link #prewarm(Context, String...)}. Named stores have their own data key,
+     * see {@link SecureStore#rotateKey()}.
+     *
+     * @param context Context is used internally
+     * @return Future which completes when all values have been re-encrypted and the previous key is deleted
+     * @throws SecureStorageException if the store uses an {@link IndexedFileBackend} in multi-process mode,
+     *                                other processes would keep encrypting with the deleted key
+     */
+    @NonNull
+    public static Future<Void> rotateKey(@NonNull Context context) throws SecureStorageException {
+        return getDefaultStore(context).rotateKey();
+    }
+
+    /**
+     * Replaces the backend which stores the encrypted values. By default they are stored in a private
+     * SharedPreferences file. Set the backend before accessing the SecureStorage for the first time,
+     * values stored in the previous backend are not migrated.
+     *
+     * @param backend Backend which will store the encrypted values from now on
+     * @see AppendOnlyFileBackend
+     */
+    public static void setStorageBackend(@NonNull SecureStorageBackend backend) {
+        synchronized (SecurePreferences.class) {
+            defaultStorageBackend = backend;
+            SecureStore store = defaultStore;
+            if (store != null) {
+                store.setStorageBackend(backend);
+            }
         }
-        clearAllSecureValues(applicationContext);
     }
 
     /**
-     * Registers SecureStorageChangeListener to listen to any changes in SecureStorage
+     * Replaces the provider of the master key, which wraps the key encrypting the values. By default the key pair
+     * is kept in the AndroidKeyStore. Set the provider before accessing the SecureStorage for the first time,
+     * values stored with the key of a different provider can't be decrypted anymore.
+     *
+     * @param keyProvider Provider of the master key from now on
+     * @see SoftwareKeyProvider
+     */
+    public static void setKeyProvider(@NonNull KeyProvider keyProvider) {
+        KeystoreTool.setKeyProvider(keyProvider);
+        clearValueCache();
+        for (SecureStore store : getStores()) {
+            store.clearValueCache();
+        }
+    }
+
+    /**
+     * Installs a listener receiving timings, payload sizes, cache hits and failures of the internal operations.
+     * Without a listener the measurements cost next to nothing.
+     *
+     * @param metrics Listener receiving the measurements, or null to remove the current one
+     */
+    public static void setMetrics(@Nullable SecureStorageMetrics metrics) {
+        MetricsRecorder.setMetrics(metrics);
+    }
+
+    /**
+     * Enables android.os.Trace sections for the internal operations, which show up in systrace and the
+     * Android Studio profiler. Tracing is disabled by default.
+     *
+     * @param enabled True to write trace sections, otherwise false
+     */
+    public static void setTracingEnabled(boolean enabled) {
+        MetricsRecorder.setTracingEnabled(enabled);
+    }
+
+    /**
+     * Prepares everything the first access to the SecureStorage would otherwise do lazily: generates or loads
+     * the keys, looks up the cipher providers and loads the stored values from disk. If the value cache is enabled
+     * the given hot keys are decrypted into it as well. Call this e.g. from Application.onCreate on a background thread,
+     * or use {@link AsyncSecurePreferences#prewarm(Context, SecureStorageCallback, String...)} to be able to await it.
+     *
+     * @param context Context is used internally
+     * @param hotKeys Keys which will be decrypted into the value cache (only if the cache is enabled)
+     */
+    public static void prewarm(@NonNull Context context,
+                                @NonNull String... hotKeys) throws SecureStorageException {
+        getDefaultStore(context).prewarm(hotKeys);
+    }
+
+    /**
+     * Returns the asynchronous variant of SecurePreferences, which runs every operation on a dedicated
+     * background thread and delivers the results on the main thread
+     *
+     * @return AsyncSecurePreferences delivering results on the main thread
+     */
+    @NonNull
+    public static AsyncSecurePreferences async() {
+        return async(null);
+    }
+
+    /**
+     * Returns the asynchronous variant of SecurePreferences, which runs every operation on a dedicated
+     * background thread and delivers the results on the given executor
+     *
+     * @param callbackExecutor Executor the callbacks are invoked on, null for the main thread
+     * @return AsyncSecurePreferences delivering results on the given executor
+     */
+    @NonNull
+    public static AsyncSecurePreferences async(@Nullable Executor callbackExecutor) {
+        return new AsyncSecurePreferences(callbackExecutor);
+    }
+
+    /**
+     * Registers SecureStorageChangeListener to listen to any changes in SecureStorage.
+     * Only changes stored with the default SharedPreferences backend are reported. The listener receives the keys
+     * of the encrypted entries, use {@link #observe(Context, String, SecureStorageObserver)} to receive decrypted values.
      *
      * @param context  Context is used internally
      * @param listener Provided listener with given behaviour from the developer that will be registered
      */
     public static void registerOnSharedPreferenceChangeListener(@NonNull Context context,
                                                                 @NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
-        Context applicationContext = context.getApplicationContext();
-        SharedPreferences preferences = applicationContext
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        preferences.registerOnSharedPreferenceChangeListener(listener);
+        getDefaultStore(context).registerOnSharedPreferenceChangeListener(listener);
     }
 
     /**
@@ -308,38 +619,316 @@ public final class SecurePreferences {
      */
     public static void unregisterOnSharedPreferenceChangeListener(@NonNull Context context,
                                                                   @NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        getDefaultStore(context).unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Observes the decrypted value of a key. The observer receives the current value right away and the new value
+     * after every change made through the SecurePreferences, on the main thread. Changes in quick succession
+     * are delivered once with the latest value, which is decrypted once for all observers of the key.
+     *
+     * @param context  Context is used internally
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param observer Observer receiving the current value and every change of it
+     */
+    public static void observe(@NonNull Context context,
+                               @NonNull String key,
+                               @NonNull SecureStorageObserver observer) {
+        observe(context, key, observer, AsyncSecurePreferences.mainThreadExecutor());
+    }
+
+    /**
+     * Like {@link #observe(Context, String, SecureStorageObserver)}, but calls the observer on the given executor
+     *
+     * @param context  Context is used internally
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param observer Observer receiving the current value and every change of it
+     * @param executor Executor the observer is called on
+     */
+    public static void observe(@NonNull Context context,
+                               @NonNull String key,
+                               @NonNull SecureStorageObserver observer,
+                               @NonNull Executor executor) {
+        getDefaultStore(context).observe(key, observer, executor);
+    }
+
+    /**
+     * Stops the observer from receiving values. Removed on the thread it is called on, it doesn't receive
+     * any value afterwards.
+     *
+     * @param context  Context is used internally
+     * @param key      Key the observer has been added for
+     * @param observer Observer which will be removed
+     */
+    public static void removeObserver(@NonNull Context context,
+                                      @NonNull String key,
+                                      @NonNull SecureStorageObserver observer) {
+        getDefaultStore(context).removeObserver(key, observer);
+    }
+
+    @NonNull
+    private static SecureStore getDefaultStore(@NonNull Context context) {
         Context applicationContext = context.getApplicationContext();
-        SharedPreferences preferences = applicationContext
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        preferences.unregisterOnSharedPreferenceChangeListener(listener);
+        SecureStore store = defaultStore;
+        if (store != null && store.belongsTo(applicationContext)) {
+            return store;
+        }
+        synchronized (SecurePreferences.class) {
+            if (defaultStore == null || !defaultStore.belongsTo(applicationContext)) {
+                store = new SecureStore(applicationContext, null);
+                if (defaultStorageBackend != null) {
+                    store.setStorageBackend(defaultStorageBackend);
+                }
+                defaultStore = store;
+            }
+            return defaultStore;
+        }
     }
 
-    private static void setSecureValue(@NonNull Context context,
-                                       @NonNull String key,
-                                       @NonNull String value) {
-        SharedPreferences preferences = context
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        preferences.edit().putString(key, value).apply();
+    @NonNull
+    private static List<SecureStore> getStores() {
+        synchronized (STORES) {
+            return new ArrayList<>(STORES.values());
+        }
     }
 
+    /**
+     * @return the decrypted value for the key or null if it doesn't exist or can't be decrypted
+     */
     @Nullable
-    private static String getSecureValue(@NonNull Context context,
-                                         @NonNull String key) {
-        SharedPreferences preferences = context
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        return preferences.getString(key, null);
+    static Object getTypedValue(@NonNull Context context,
+                                @NonNull String key) {
+        return getDefaultStore(context).getTypedValue(key);
     }
 
-    private static void removeSecureValue(@NonNull Context context,
-                                          @NonNull String key) {
-        SharedPreferences preferences = context
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        preferences.edit().remove(key).apply();
+    // The conversions accept the typed value as well as the String values written by older versions
+
+    @Nullable
+    static String toStringValue(@Nullable Object value, @Nullable String defValue) {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Boolean || value instanceof Integer || value instanceof Long || value instanceof Float) {
+            return String.valueOf(value);
+        }
+        return defValue;
+    }
+
+    static boolean toBooleanValue(@Nullable Object value, boolean defValue) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof String) {
+            if (Boolean.TRUE.toString().equals(value)) {
+                return true;
+            } else if (Boolean.FALSE.toString().equals(value)) {
+                return false;
+            }
+        }
+        return defValue;
+    }
+
+    static float toFloatValue(@Nullable Object value, float defValue) {
+        if (value instanceof Float) {
+            return (Float) value;
+        }
+        if (value instanceof String) {
+            try {
+                return Float.parseFloat((String) value);
+            } catch (NumberFormatException e) {
+                return defValue;
+            }
+        }
+        return defValue;
+    }
+
+    static long toLongValue(@Nullable Object value, long defValue) {
+        if (value instanceof Long || value instanceof Integer) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return defValue;
+            }
+        }
+        return defValue;
+    }
+
+    static int toIntValue(@Nullable Object value, int defValue) {
+        if (value instanceof Integer) {
+            return (Integer) value;
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return defValue;
+            }
+        }
+        return defValue;
     }
 
-    private static void clearAllSecureValues(@NonNull Context context) {
-        SharedPreferences preferences = context
-                .getSharedPreferences(KEY_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        preferences.edit().clear().apply();
+    /**
+     * Collects several values to store or remove and writes all of them with a single write to the SecureStorage.
+     * The values are only encrypted when calling {@link #apply()} or {@link #commit()}.
+     */
+    public static final class Editor {
+        private final SecureStore store;
+        // Plain values or null for keys which should be removed
+        private final Map<String, Object> modifications = new LinkedHashMap<>();
+
+        Editor(@NonNull SecureStore store) {
+            this.store = store;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain String value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putString(@NonNull String key, @NonNull String value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain boolean value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putBoolean(@NonNull String key, boolean value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain float value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putFloat(@NonNull String key, float value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain long value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putLong(@NonNull String key, long value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain int value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putInt(@NonNull String key, int value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain Set(type: String) value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putStringSet(@NonNull String key, @NonNull Set<String> value) {
+            // copy the set, it is encoded only when writing the changes
+            modifications.put(key, new HashSet<>(value));
+            for (String legacyKey : store.getLegacySetKeys(key)) {
+                modifications.put(legacyKey, null);
+            }
+            return this;
+        }
+
+        /**
+         * @param key   Key used to identify the stored value in SecureStorage
+         * @param value Plain byte array value that will be encrypted and stored in the SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor putBytes(@NonNull String key, @NonNull byte[] value) {
+            // copy the array, it is encoded only when writing the changes
+            modifications.put(key, value.clone());
+            return this;
+        }
+
+        /**
+         * @param values Plain values that will be encrypted and stored in the SecureStorage mapped by their key.
+         *               Supported are String, Boolean, Float, Long, Integer, Set(type: String) and byte[] values
+         * @return this editor
+         * @throws IllegalArgumentException if a value has an unsupported type
+         */
+        @NonNull
+        @SuppressWarnings("unchecked")
+        public Editor putAll(@NonNull Map<String, ?> values) {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    putString(entry.getKey(), (String) value);
+                } else if (value instanceof Boolean || value instanceof Float
+                        || value instanceof Long || value instanceof Integer) {
+                    modifications.put(entry.getKey(), value);
+                } else if (value instanceof Set) {
+                    putStringSet(entry.getKey(), (Set<String>) value);
+                } else if (value instanceof byte[]) {
+                    putBytes(entry.getKey(), (byte[]) value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported value type for key " + entry.getKey());
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @param key Key used to identify the value that will be removed from SecureStorage
+         * @return this editor
+         */
+        @NonNull
+        public Editor remove(@NonNull String key) {
+            modifications.put(key, null);
+            return this;
+        }
+
+        /**
+         * Encrypts all values and writes the changes synchronously to the SecureStorage
+         *
+         * @return True if the changes have been written successfully to disk, otherwise false
+         */
+        public boolean commit() throws SecureStorageException {
+            return write(true);
+        }
+
+        /**
+         * Encrypts all values and writes the changes asynchronously to the SecureStorage
+         *
+         * @throws SecureStorageException if the backend failed to write the changes
+         */
+        public void apply() throws SecureStorageException {
+            write(false);
+        }
+
+        private boolean write(boolean synchronous) throws SecureStorageException {
+            boolean result = store.write(modifications, synchronous);
+            for (Object value : modifications.values()) {
+                if (value instanceof byte[]) {
+                    Arrays.fill((byte[]) value, (byte) 0);
+                }
+            }
+            modifications.clear();
+            return result;
+        }
     }
-}
\ No newline at end of file
+}
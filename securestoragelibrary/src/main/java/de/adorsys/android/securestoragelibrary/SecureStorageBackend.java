@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Persists the already encrypted values of the SecureStorage. The backend never sees plain values.
+ * Implementations have to be thread safe.
+ *
+ * @see SharedPreferencesBackend
+ * @see AppendOnlyFileBackend
+ * @see SecurePreferences#setStorageBackend(SecureStorageBackend)
+ */
+public interface SecureStorageBackend {
+    /**
+     * @param key Key used to identify the stored value
+     * @return The encrypted value stored for the key or null if there is none
+     */
+    @Nullable
+    String getValue(@NonNull String key);
+
+    /**
+     * @param key Key used to identify the stored value
+     * @return True if a value is stored for the key, otherwise false
+     */
+    boolean contains(@NonNull String key);
+
+    /**
+     * @return All keys which have a value stored
+     */
+    @NonNull
+    Set<String> getKeys();
+
+    /**
+     * Stores all given changes at once
+     *
+     * @param changes     Encrypted values mapped by their key, null values mark keys which should be removed
+     * @param synchronous True if the changes have to be on disk when this method returns,
+     *                    false if they may be written asynchronously. A synchronous write without changes
+     *                    has to wait until all previous writes are on disk.
+     * @return True if the changes have been written successfully, otherwise false
+     */
+    boolean write(@NonNull Map<String, String> changes, boolean synchronous);
+
+    /**
+     * Removes all stored values
+     *
+     * @return True if the values have been removed successfully, otherwise false
+     */
+    boolean clear();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Receives the result of an asynchronous SecureStorage operation
+ *
+ * @param <T> Type of the result
+ * @see AsyncSecurePreferences
+ */
+public interface SecureStorageCallback<T> {
+    /**
+     * Called when the operation finished successfully
+     *
+     * @param result Result of the operation, null for operations without result
+     */
+    void onSuccess(@Nullable T result);
+
+    /**
+     * Called when the operation failed
+     *
+     * @param e Exception describing the failure
+     */
+    void onError(@NonNull SecureStorageException e);
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives timings and counters of the internal SecureStorage operations, e.g. to report them to an analytics backend.
+ * All methods are called synchronously on the thread doing the operation, so implementations have to be
+ * thread safe and should only record the values.
+ *
+ * @see SecurePreferences#setMetrics(SecureStorageMetrics)
+ */
+public interface SecureStorageMetrics {
+    /**
+     * Called after an operation finished, also if it failed
+     *
+     * @param operation     The finished operation
+     * @param durationNanos Duration of the operation in nanoseconds
+     * @param bytes         Size of the processed payload in bytes, 0 for operations without payload
+     */
+    void onOperation(@NonNull Operation operation, long durationNanos, int bytes);
+
+    /**
+     * Called on every lookup in the value cache (only if it is enabled)
+     *
+     * @param hit True if the decrypted value has been found in the cache, false if it had to be decrypted
+     */
+    void onCacheAccess(boolean hit);
+
+    /**
+     * Called when an operation failed, also if the failure is hidden by returning the default value
+     *
+     * @param operation The failed operation
+     * @param type      Type of the exception describing the failure
+     */
+    void onFailure(@NonNull Operation operation, @NonNull SecureStorageException.ExceptionType type);
+
+    /**
+     * Measured operations
+     */
+    enum Operation {
+        /**
+         * Checking if the master key exists in the keystore
+         */
+        KEY_LOOKUP("SecureStorage:keyLookup"),
+        /**
+         * Generating the master key
+         */
+        KEY_GENERATION("SecureStorage:keyGeneration"),
+        /**
+         * Loading the data key, which unwraps it with the master key (or creates it on first use)
+         */
+        KEY_LOAD("SecureStorage:keyLoad"),
+        /**
+         * Initializing the cipher with the data key and a new IV
+         */
+        CIPHER_INIT("SecureStorage:cipherInit"),
+        /**
+         * Encrypting a value, the payload is the plain value
+         */
+        ENCRYPT("SecureStorage:encrypt"),
+        /**
+         * Decrypting a value, the payload is the encrypted value
+         */
+        DECRYPT("SecureStorage:decrypt"),
+        /**
+         * Reading an encrypted value from the storage backend
+         */
+        BACKEND_READ("SecureStorage:backendRead"),
+        /**
+         * Writing encrypted values to the storage backend, the payload is the sum of all written values
+         */
+        BACKEND_WRITE("SecureStorage:backendWrite");
+
+        @NonNull
+        final String traceSectionName;
+
+        Operation(@NonNull String traceSectionName) {
+            this.traceSectionName = traceSectionName;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Receives the decrypted value of an observed key whenever it changes
+ *
+ * @see SecurePreferences#observe(android.content.Context, String, SecureStorageObserver)
+ */
+public interface SecureStorageObserver {
+    /**
+     * Called with the current value right after the observer has been added and after every change of the value.
+     * Changes in quick succession are reported once with the latest value.
+     *
+     * @param key   Observed key
+     * @param value Decrypted value: String, Boolean, Float, Long, Integer, an unmodifiable Set(type: String)
+     *              or a byte array. Large values written with an encrypted output stream are delivered as an
+     *              InputStream which decrypts the value while it is read and has to be closed by the observer.
+     *              Null if the key doesn't exist or the value can't be decrypted.
+     */
+    void onChanged(@NonNull String key, @Nullable Object value);
+}
@@ -0,0 +1,1140 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static android.content.Context.MODE_PRIVATE;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.CRYPTO_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.BACKEND_READ;
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.BACKEND_WRITE;
+
+/**
+ * A namespace of the SecureStorage with its own backing file, data key, value cache and large value files.
+ * Stores don't share any state except the master key, so they can be written in parallel and clearing one
+ * store leaves all other stores untouched. Get a store with {@link SecurePreferences#getStore(Context, String)},
+ * the static methods of {@link SecurePreferences} work on the default store.
+ */
+public final class SecureStore {
+    private static final String DEFAULT_PREFERENCES_NAME = "SecurePreferences";
+    private static final String DEFAULT_BLOB_DIRECTORY_NAME = "SecurePreferencesBlobs";
+    private static final String NAME_SEPARATOR = "_";
+    // Sets used to be stored as key_count plus one entry key_i per element
+    private static final String KEY_SET_COUNT_POSTFIX = "_count";
+    private static final String KEY_SET_ELEMENT_SEPARATOR = "_";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int KEY_LOCK_STRIPES = 32;
+    // Default value telling a missing set apart from an empty one
+    private static final Set<String> NO_SET = Collections.unmodifiableSet(new HashSet<String>());
+
+    @NonNull
+    private final Context context;
+    @Nullable
+    private final String name;
+    @NonNull
+    private final String preferencesName;
+    @NonNull
+    private final String keyAlias;
+    @NonNull
+    private final EncryptedBlobStore blobStore;
+    // Serializes changes of the same key, e.g. so that deleting the files of a previous value
+    // can't delete the file of a value committed in the meantime
+    @NonNull
+    private final StripedLock keyLocks = new StripedLock(KEY_LOCK_STRIPES);
+    @NonNull
+    private final KeyIndex keyIndex = new KeyIndex();
+    @NonNull
+    private final WriteBuffer writeBuffer = new WriteBuffer(keyIndex);
+    @NonNull
+    private final KeyRotation keyRotation;
+    @NonNull
+    private final FormatMigration formatMigration;
+    @NonNull
+    private final ValueObservers valueObservers = new ValueObservers(this);
+
+    // Backend storing the encrypted values, the SharedPreferences backend is created on first use
+    @Nullable
+    private volatile SecureStorageBackend storageBackend;
+
+    // Cache for decrypted values, null as long as it has not been enabled
+    @Nullable
+    private volatile DecryptedValueCache valueCache;
+
+    /**
+     * @param context Application context
+     * @param name    Name of the store, null for the default store which uses the files of previous versions
+     */
+    SecureStore(@NonNull Context context, @Nullable String name) {
+        this.context = context;
+        this.name = name;
+        String postfix = name == null ? "" : NAME_SEPARATOR + name;
+        this.preferencesName = DEFAULT_PREFERENCES_NAME + postfix;
+        this.keyAlias = KeystoreTool.DEFAULT_KEY_ALIAS + postfix;
+        this.blobStore = new EncryptedBlobStore(this, context, keyAlias, DEFAULT_BLOB_DIRECTORY_NAME + postfix);
+        this.keyRotation = new KeyRotation(this, context);
+        this.formatMigration = new FormatMigration(this, context, preferencesName);
+    }
+
+    /**
+     * @return Name of the store, null for the default store
+     */
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Takes plain string value, encrypts it and stores it encrypted in this store
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain String value that will be encrypted and stored in the SecureStorage
+     */
+    public void setValue(@NonNull String key,
+                         @NonNull String value) throws SecureStorageException {
+        setTypedValue(key, value);
+    }
+
+    /**
+     * Takes plain boolean value, encrypts it and stores it encrypted in this store
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain boolean value that will be encrypted and stored in the SecureStorage
+     */
+    public void setValue(@NonNull String key,
+                         boolean value) throws SecureStorageException {
+        setTypedValue(key, value);
+    }
+
+    /**
+     * Takes plain float value, encrypts it and stores it encrypted in this store
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain float value that will be encrypted and stored in the SecureStorage
+     */
+    public void setValue(@NonNull String key,
+                         float value) throws SecureStorageException {
+        setTypedValue(key, value);
+    }
+
+    /**
+     * Takes plain long value, encrypts it and stores it encrypted in this store
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain long value that will be encrypted and stored in the SecureStorage
+     */
+    public void setValue(@NonNull String key,
+                         long value) throws SecureStorageException {
+        setTypedValue(key, value);
+    }
+
+    /**
+     * Takes plain int value, encrypts it and stores it encrypted in this store
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain int value that will be encrypted and stored in the SecureStorage
+     */
+    public void setValue(@NonNull String key,
+                         int value) throws SecureStorageException {
+        setTypedValue(key, value);
+    }
+
+    /**
+     * Takes plain Set(type: String) value, encrypts it and stores it encrypted in this store
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain Set(type: String) value that will be encrypted and stored in the SecureStorage
+     */
+    public void setValue(@NonNull String key,
+                         @NonNull Set<String> value) throws SecureStorageException {
+        edit().putStringSet(key, value).apply();
+    }
+
+    /**
+     * Takes plain byte array, encrypts it and stores it encrypted in this store.
+     * Values larger than 64 KiB are encrypted into a file like {@link #openEncryptedOutputStream(String)} does,
+     * so they don't bloat the backend. The value is kept in memory while encrypting it,
+     * use {@link #openEncryptedOutputStream(String)} for values which don't fit into memory.
+     *
+     * @param key   Key used to identify the stored value in SecureStorage
+     * @param value Plain byte array value that will be encrypted and stored in the SecureStorage
+     */
+    public void setBytes(@NonNull String key,
+                         @NonNull byte[] value) throws SecureStorageException {
+        if (value.length <= EncryptedBlobStore.MAX_INLINE_LENGTH) {
+            setTypedValue(key, value);
+            return;
+        }
+        // the data key can't be rotated while the file is written
+        Lock lock = KeystoreTool.lockKeyPair(context);
+        try {
+            blobStore.write(key, value, KeystoreTool.getCurrentKeyVersion(context, keyAlias));
+        } catch (IOException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SecureStorageException) {
+                // storing the reference failed
+                throw (SecureStorageException) cause;
+            }
+            throw new SecureStorageException(e.getMessage(), e, INTERNAL_LIBRARY_EXCEPTION);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens a stream which encrypts everything written to it into a file of this store, see
+     * {@link SecurePreferences#openEncryptedOutputStream(Context, String)}
+     *
+     * @param key Key used to identify the stored value in SecureStorage
+     * @return Stream for the plain value, which has to be closed to store the value
+     */
+    @NonNull
+    public OutputStream openEncryptedOutputStream(@NonNull String key) throws SecureStorageException {
+        // the data key can't be rotated before the stream has registered its version
+        Lock lock = KeystoreTool.lockKeyPair(context);
+        try {
+            return blobStore.openOutputStream(key, KeystoreTool.getCurrentKeyVersion(context, keyAlias));
+        } catch (IOException e) {
+            throw new SecureStorageException(e.getMessage(), e, INTERNAL_LIBRARY_EXCEPTION);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default String value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted String value associated with given key from this store
+     */
+    @Nullable
+    public String getStringValue(@NonNull String key,
+                                 @Nullable String defValue) {
+        return SecurePreferences.toStringValue(getTypedValue(key), defValue);
+    }
+
+    /**
+     * @param keys Keys used to identify the stored values in SecureStorage
+     * @return Decrypted String values from this store mapped by their key. Keys which don't exist or can't be decrypted are not contained
+     */
+    @NonNull
+    public Map<String, String> getValues(@NonNull Collection<String> keys) {
+        SecureStorageBackend backend = getStorageBackend();
+        Map<String, String> values = new HashMap<>(keys.size());
+        Lock lock = KeystoreTool.lockKeys();
+        try {
+            for (String key : keys) {
+                Object result = readValue(backend, key);
+                if (result == null) {
+                    continue;
+                }
+                try {
+                    String value = SecurePreferences.toStringValue(decryptValue(key, result), null);
+                    if (value != null) {
+                        values.put(key, value);
+                    }
+                } catch (SecureStorageException e) {
+                    // skip values which can't be decrypted like getStringValue falls back to its default
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return values;
+    }
+
+    /**
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default boolean value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted boolean value associated with given key from this store
+     */
+    public boolean getBooleanValue(@NonNull String key,
+                                   boolean defValue) {
+        return SecurePreferences.toBooleanValue(getTypedValue(key), defValue);
+    }
+
+    /**
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default float value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted float value associated with given key from this store
+     */
+    public float getFloatValue(@NonNull String key,
+                               float defValue) {
+        return SecurePreferences.toFloatValue(getTypedValue(key), defValue);
+    }
+
+    /**
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default long value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted long value associated with given key from this store
+     */
+    public long getLongValue(@NonNull String key,
+                             long defValue) {
+        return SecurePreferences.toLongValue(getTypedValue(key), defValue);
+    }
+
+    /**
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default int value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted int value associated with given key from this store
+     */
+    public int getIntValue(@NonNull String key,
+                           int defValue) {
+        return SecurePreferences.toIntValue(getTypedValue(key), defValue);
+    }
+
+    /**
+     * Values written with {@link #openEncryptedOutputStream(String)} are read completely into memory.
+     *
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default byte array value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted byte array value associated with given key from this store
+     */
+    @Nullable
+    public byte[] getBytes(@NonNull String key,
+                           @Nullable byte[] defValue) {
+        Object value = getTypedValue(key);
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        if (!(value instanceof EncryptedBlobStore.Reference)) {
+            return defValue;
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        try (InputStream inputStream = blobStore.openInputStream(key, (EncryptedBlobStore.Reference) value)) {
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) { //NOPMD
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            return defValue;
+        } finally {
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    /**
+     * Opens a stream which decrypts the value for given key while it is read, see
+     * {@link SecurePreferences#openDecryptedInputStream(Context, String)}
+     *
+     * @param key Key used to identify the stored value in SecureStorage
+     * @return Stream of the decrypted byte array value associated with given key, or null if the value doesn't exist or has a different type
+     */
+    @Nullable
+    public InputStream openDecryptedInputStream(@NonNull String key) throws SecureStorageException {
+        Object value = getTypedValue(key);
+        if (value instanceof byte[]) {
+            return new ByteArrayInputStream((byte[]) value);
+        }
+        if (!(value instanceof EncryptedBlobStore.Reference)) {
+            return null;
+        }
+        try {
+            return blobStore.openInputStream(key, (EncryptedBlobStore.Reference) value);
+        } catch (IOException e) {
+            throw new SecureStorageException(e.getMessage(), e, INTERNAL_LIBRARY_EXCEPTION);
+        }
+    }
+
+    /**
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param defValue Default Set(type: String) value that will be returned if the value with given key doesn't exist, has a different type or an exception is thrown
+     * @return Decrypted Set(type: String) value associated with given key from this store
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSetValue(@NonNull String key,
+                                         @NonNull Set<String> defValue) {
+        Lock lock = KeystoreTool.lockKeys();
+        try {
+            Object result = readValue(getStorageBackend(), key);
+            if (result != null) {
+                Object value = decryptValue(key, result);
+                return value instanceof Set ? (Set<String>) value : defValue;
+            }
+        } catch (SecureStorageException e) {
+            return defValue;
+        } finally {
+            lock.unlock();
+        }
+
+        // Fall back to the legacy layout with one entry per element
+        int size = getIntValue(key + KEY_SET_COUNT_POSTFIX, -1);
+
+        if (size == -1) {
+            return defValue;
+        }
+
+        Set<String> res = new HashSet<>(size);
+        for (int i = 0; i < size; i++) {
+            res.add(getStringValue(key + KEY_SET_ELEMENT_SEPARATOR + i, ""));
+        }
+
+        // Migrate to the compact layout, which also removes the legacy entries
+        try {
+            edit().putStringSet(key, res).apply();
+        } catch (SecureStorageException e) {
+            // keep the legacy layout, it is still readable
+        }
+
+        return res;
+    }
+
+    /**
+     * @param key Key used to identify the stored value in SecureStorage
+     * @return True if value exists in this store, otherwise false
+     */
+    public boolean contains(@NonNull String key) {
+        if (!containsValue(getStorageBackend(), key)) {
+            return false;
+        }
+        Lock lock = KeystoreTool.lockKeys();
+        try {
+            return KeystoreTool.keyPairExists();
+        } catch (SecureStorageException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the value for a given key from this store. If the backend rejects the change the value is kept
+     * and the failure is reported to the {@link SecureStorageMetrics}.
+     *
+     * @param key Key used to identify the stored value in SecureStorage
+     */
+    public void removeValue(@NonNull String key) {
+        ReentrantLock lock = keyLocks.lock(key);
+        try {
+            if (!writeBuffer.write(getStorageBackend(), Collections.singletonMap(key, null), false)) {
+                MetricsRecorder.failure(BACKEND_WRITE, new SecureStorageException(
+                        context.getString(R.string.message_problem_write), null, INTERNAL_LIBRARY_EXCEPTION));
+                return;
+            }
+            blobStore.delete(key, null);
+            DecryptedValueCache cache = valueCache;
+            if (cache != null) {
+                cache.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        valueObservers.onChanged(Collections.singleton(key));
+    }
+
+    /**
+     * Clears all values of this store and deletes its data key. The master key and all other stores are kept,
+     * so this only takes time proportional to the size of this store.
+     */
+    public void clear() {
+        // no other thread may decrypt a value of the store in between
+        Lock lock = KeystoreTool.lockKeysExclusively();
+        try {
+            writeBuffer.discard();
+            SecureStorageBackend backend = getStorageBackend();
+            backend.clear();
+            keyIndex.clear(backend);
+            KeystoreTool.deleteDataKey(context, keyAlias);
+            blobStore.deleteAll();
+            clearValueCache();
+            formatMigration.markCompleted();
+        } finally {
+            lock.unlock();
+        }
+        valueObservers.onAllChanged();
+    }
+
+    /**
+     * Enables an in-memory cache for decrypted values of this store,
+     * see {@link SecurePreferences#enableValueCache(Context, int, long)}
+     *
+     * @param maxEntries Maximum number of decrypted values kept in memory
+     * @param maxBytes   Maximum estimated memory in bytes used by the cached keys and values
+     */
+    public void enableValueCache(int maxEntries,
+                                 long maxBytes) {
+        DecryptedValueCache cache = new DecryptedValueCache(maxEntries, maxBytes);
+        synchronized (this) {
+            disableValueCache();
+            // SharedPreferences only keeps a weak reference, the field keeps the listener alive
+            context.getSharedPreferences(preferencesName, MODE_PRIVATE)
+                    .registerOnSharedPreferenceChangeListener(cache);
+            context.registerComponentCallbacks(cache);
+            valueCache = cache;
+        }
+    }
+
+    /**
+     * Disables the cache for decrypted values of this store and drops all cached values
+     */
+    public void disableValueCache() {
+        synchronized (this) {
+            DecryptedValueCache cache = valueCache;
+            if (cache == null) {
+                return;
+            }
+            valueCache = null;
+            cache.clear();
+            context.getSharedPreferences(preferencesName, MODE_PRIVATE)
+                    .unregisterOnSharedPreferenceChangeListener(cache);
+            context.unregisterComponentCallbacks(cache);
+        }
+    }
+
+    /**
+     * Drops all decrypted values from the cache of this store (if enabled) while keeping it enabled
+     */
+    public void clearValueCache() {
+        DecryptedValueCache cache = valueCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Creates an editor to store and remove several values of this store at once
+     *
+     * @return Editor collecting the changes
+     */
+    @NonNull
+    public SecurePreferences.Editor edit() {
+        return new SecurePreferences.Editor(this);
+    }
+
+    /**
+     * Replaces the backend which stores the encrypted values of this store. By default they are stored
+     * in a private SharedPreferences file named after the store. Set the backend before accessing the store
+     * for the first time, values stored in the previous backend are not migrated.
+     *
+     * @param backend Backend which will store the encrypted values from now on
+     */
+    public void setStorageBackend(@NonNull SecureStorageBackend backend) {
+        synchronized (this) {
+            // changes which have not been written yet belong to the previous backend
+            writeBuffer.writePending();
+            storageBackend = backend;
+        }
+        clearValueCache();
+        valueObservers.onAllChanged();
+    }
+
+    /**
+     * Sets when changes of this store are written to disk, see {@link SecurePreferences#setWritePolicy(Context, WritePolicy)}.
+     * {@link WritePolicy#COALESCE} writes the changes of 100 ms at once.
+     *
+     * @param policy Policy for all following changes
+     */
+    public void setWritePolicy(@NonNull WritePolicy policy) {
+        writeBuffer.setPolicy(policy, WriteBuffer.DEFAULT_COALESCING_WINDOW_MILLIS);
+    }
+
+    /**
+     * Sets when changes of this store are written to disk, see {@link SecurePreferences#setWritePolicy(Context, WritePolicy, long)}
+     *
+     * @param policy                 Policy for all following changes
+     * @param coalescingWindowMillis Time in milliseconds changes are kept in memory with {@link WritePolicy#COALESCE}
+     */
+    public void setWritePolicy(@NonNull WritePolicy policy,
+                               long coalescingWindowMillis) {
+        writeBuffer.setPolicy(policy, coalescingWindowMillis);
+    }
+
+    /**
+     * Writes all changes of this store which have not been written yet and waits until all changes are on disk
+     *
+     * @return True if all changes have been written successfully, otherwise false
+     */
+    public boolean flush() {
+        return writeBuffer.flush(getStorageBackend());
+    }
+
+    /**
+     * Loads the values and the data key of this store, see {@link SecurePreferences#prewarm(Context, String...)}
+     *
+     * @param hotKeys Keys which will be decrypted into the value cache (only if the cache is enabled)
+     */
+    public void prewarm(@NonNull String... hotKeys) throws SecureStorageException {
+        // Blocks until the stored values have been loaded from disk
+        keyIndex.load(getStorageBackend());
+        KeystoreTool.prewarm(context, keyAlias);
+        if (hotKeys.length > 0 && valueCache != null) {
+            getValues(Arrays.asList(hotKeys));
+        }
+        if (KeystoreTool.hasRetiredDataKeys(context, keyAlias)) {
+            // a previous rotation has been interrupted, e.g. because the process has been killed
+            keyRotation.start();
+        }
+        if (formatMigration.hasCheckpoint()) {
+            formatMigration.start();
+        }
+    }
+
+    /**
+     * Upgrades all values of this store written in an older storage format, see {@link SecurePreferences#migrate(Context)}
+     *
+     * @return Future which completes when all values have the current format
+     */
+    @NonNull
+    public Future<Void> migrate() {
+        return formatMigration.start();
+    }
+
+    /**
+     * Replaces the data key of this store, see {@link SecurePreferences#rotateKey(Context)}
+     *
+     * @return Future which completes when all values have been re-encrypted and the previous keys are deleted
+     * @throws SecureStorageException if the store uses an {@link IndexedFileBackend} in multi-process mode
+     */
+    @NonNull
+    public Future<Void> rotateKey() throws SecureStorageException {
+        SecureStorageBackend backend = getStorageBackend();
+        if (backend instanceof IndexedFileBackend && ((IndexedFileBackend) backend).isMultiProcess()) {
+            // every process caches the current key version, the others would keep encrypting with the retired one
+            throw new SecureStorageException("The key of a store shared by several processes can't be rotated",
+                    null, INTERNAL_LIBRARY_EXCEPTION);
+        }
+        KeystoreTool.rotateDataKey(context, keyAlias);
+        return keyRotation.start();
+    }
+
+    /**
+     * Registers a listener for changes of this store.
+     * Only changes stored with the default SharedPreferences backend are reported.
+     *
+     * @param listener Provided listener with given behaviour from the developer that will be registered
+     */
+    public void registerOnSharedPreferenceChangeListener(@NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        context.getSharedPreferences(preferencesName, MODE_PRIVATE)
+                .registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * @param listener Provided listener with given behaviour from the developer that will be unregistered
+     */
+    public void unregisterOnSharedPreferenceChangeListener(@NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        context.getSharedPreferences(preferencesName, MODE_PRIVATE)
+                .unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Observes the decrypted value of a key of this store, see {@link SecurePreferences#observe(Context, String, SecureStorageObserver, Executor)}
+     *
+     * @param key      Key used to identify the stored value in SecureStorage
+     * @param observer Observer receiving the current value and every change of it
+     * @param executor Executor the observer is called on
+     */
+    public void observe(@NonNull String key,
+                        @NonNull SecureStorageObserver observer,
+                        @NonNull Executor executor) {
+        valueObservers.add(key, observer, executor);
+    }
+
+    /**
+     * @param key      Key the observer has been added for
+     * @param observer Observer which will not receive any value anymore
+     */
+    public void removeObserver(@NonNull String key,
+                               @NonNull SecureStorageObserver observer) {
+        valueObservers.remove(key, observer);
+    }
+
+    /**
+     * @return true if the store has been created for the given application context. There is only one
+     * in a real app, but e.g. Robolectric creates a new one for every test.
+     */
+    boolean belongsTo(@NonNull Context applicationContext) {
+        return context == applicationContext;
+    }
+
+    /**
+     * @return the decrypted value for the key or null if it doesn't exist or can't be decrypted
+     */
+    @Nullable
+    Object getTypedValue(@NonNull String key) {
+        // the value is read and decrypted with the same keys
+        Lock lock = KeystoreTool.lockKeys();
+        try {
+            Object result = readValue(getStorageBackend(), key);
+            if (result == null) {
+                return null;
+            }
+            return decryptValue(key, result);
+        } catch (SecureStorageException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the decrypted value for the key as handed to a {@link SecureStorageObserver}
+     * or null if it doesn't exist or can't be decrypted. Values stored in an {@link EncryptedBlobStore} file
+     * are returned as their reference, every observer opens its own stream with {@link #openObservedStream}.
+     */
+    @Nullable
+    Object getObservedValue(@NonNull String key) {
+        Object value = getTypedValue(key);
+        if (value == null) {
+            // sets may still be stored in the legacy layout
+            Set<String> set = getStringSetValue(key, NO_SET);
+            return set == NO_SET ? null : set;
+        }
+        return value;
+    }
+
+    /**
+     * @return a stream decrypting the file of the reference while it is read,
+     * or null if the file has been replaced in the meantime
+     */
+    @Nullable
+    InputStream openObservedStream(@NonNull String key,
+                                   @NonNull EncryptedBlobStore.Reference reference) {
+        try {
+            return blobStore.openInputStream(key, reference);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the reference to a completely written {@link EncryptedBlobStore} file as value of the key
+     * and deletes the files of previous values
+     */
+    void commitBlob(@NonNull String key,
+                    @NonNull EncryptedBlobStore.Reference reference) throws SecureStorageException {
+        Lock keyLock = KeystoreTool.lockKeys();
+        try {
+            SecureStorageBackend backend = getStorageBackend();
+            // the reference is encrypted with the key version of its file
+            Object transformedValue = encryptValue(backend, reference, reference.keyVersion);
+            ReentrantLock lock = keyLocks.lock(key);
+            try {
+                if (!blobStore.exists(key, reference)) {
+                    throw new SecureStorageException("The value has been replaced while it was written", null, INTERNAL_LIBRARY_EXCEPTION);
+                }
+                // synchronously, the files of the previous value are deleted right afterwards
+                if (!writeBuffer.write(backend, Collections.singletonMap(key, transformedValue), true)) {
+                    throw new SecureStorageException(context.getString(R.string.message_problem_encryption), null, INTERNAL_LIBRARY_EXCEPTION);
+                }
+                blobStore.delete(key, reference);
+                DecryptedValueCache cache = valueCache;
+                if (cache != null) {
+                    cache.put(key, transformedValue, reference);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        valueObservers.onChanged(Collections.singleton(key));
+    }
+
+    /**
+     * Called when an output stream of the {@link EncryptedBlobStore} has been closed. Resumes the re-encryption
+     * if the stream has written a value with a data key version which has been replaced in the meantime.
+     */
+    void onKeyVersionReleased(int keyVersion) {
+        if (keyVersion != KeystoreTool.getCurrentKeyVersion(context, keyAlias)) {
+            keyRotation.start();
+        }
+    }
+
+    int getCurrentKeyVersion() {
+        return KeystoreTool.getCurrentKeyVersion(context, keyAlias);
+    }
+
+    /**
+     * @return the keys of all values in the backend, changes which have not been written yet excluded
+     */
+    @NonNull
+    List<String> getStoredKeys() {
+        return new ArrayList<>(getStorageBackend().getKeys());
+    }
+
+    /**
+     * Re-encrypts the values of the keys which are encrypted with another data key version than the current one
+     * and writes them synchronously with a single write
+     *
+     * @param usedKeyVersions Receives the versions of the values which could not be re-encrypted
+     */
+    void reencrypt(@NonNull List<String> keys,
+                   @NonNull Set<Integer> usedKeyVersions) throws SecureStorageException {
+        Lock keyLock = KeystoreTool.lockKeys();
+        try {
+            SecureStorageBackend backend = getStorageBackend();
+            int currentVersion = KeystoreTool.getCurrentKeyVersion(context, keyAlias);
+            Map<String, Object> encryptedValues = new LinkedHashMap<>();
+            Map<String, Object> plainValues = new HashMap<>();
+            List<ReentrantLock> locks = keyLocks.lockAll(keys);
+            try {
+                for (String key : keys) {
+                    Object encryptedValue = readValue(backend, key);
+                    int keyVersion = encryptedValue == null
+                            ? KeystoreTool.NO_KEY_VERSION : KeystoreTool.getKeyVersion(encryptedValue);
+                    if (keyVersion == KeystoreTool.NO_KEY_VERSION || keyVersion == currentVersion) {
+                        continue;
+                    }
+                    try {
+                        // untyped values are upgraded to the current format on the way
+                        FormatMigration.Step step = FormatMigration.findStep(encryptedValue);
+                        Object value = step == null
+                                ? decryptValue(encryptedValue) : step.decrypt(context, keyAlias, encryptedValue);
+                        if (value instanceof EncryptedBlobStore.Reference) {
+                            // stores the new reference right away
+                            blobStore.reencrypt(key, (EncryptedBlobStore.Reference) value, currentVersion);
+                        } else {
+                            encryptedValues.put(key, encryptValue(backend, value, currentVersion));
+                            plainValues.put(key, value);
+                        }
+                    } catch (SecureStorageException | IOException e) {
+                        usedKeyVersions.add(keyVersion);
+                    }
+                }
+
+                if (encryptedValues.isEmpty()) {
+                    return;
+                }
+                if (!writeBuffer.write(backend, encryptedValues, true)) {
+                    throw new SecureStorageException(context.getString(R.string.message_problem_write), null, INTERNAL_LIBRARY_EXCEPTION);
+                }
+                DecryptedValueCache cache = valueCache;
+                if (cache != null) {
+                    for (Map.Entry<String, Object> entry : encryptedValues.entrySet()) {
+                        cache.put(entry.getKey(), entry.getValue(), plainValues.get(entry.getKey()));
+                    }
+                }
+            } finally {
+                StripedLock.unlockAll(locks);
+            }
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the values of the keys which have been written in an older storage format with the current format
+     * and writes them synchronously with a single write
+     *
+     * @return false if a value could not be read, otherwise true
+     */
+    boolean upgradeFormat(@NonNull List<String> keys) throws SecureStorageException {
+        Lock keyLock = KeystoreTool.lockKeys();
+        try {
+            SecureStorageBackend backend = getStorageBackend();
+            Map<String, Object> encryptedValues = new LinkedHashMap<>();
+            Map<String, Object> plainValues = new HashMap<>();
+            boolean result = true;
+            // the values can't be changed between reading and replacing them
+            List<ReentrantLock> locks = keyLocks.lockAll(keys);
+            try {
+                for (String key : keys) {
+                    Object encryptedValue = readValue(backend, key);
+                    FormatMigration.Step step = encryptedValue == null ? null : FormatMigration.findStep(encryptedValue);
+                    if (step == null) {
+                        continue;
+                    }
+                    try {
+                        Object value = step.decrypt(context, keyAlias, encryptedValue);
+                        encryptedValues.put(key, encryptValue(backend, value));
+                        plainValues.put(key, value);
+                    } catch (SecureStorageException e) {
+                        result = false;
+                    }
+                }
+
+                if (encryptedValues.isEmpty()) {
+                    return result;
+                }
+                if (!writeBuffer.write(backend, encryptedValues, true)) {
+                    throw new SecureStorageException(context.getString(R.string.message_problem_write), null, INTERNAL_LIBRARY_EXCEPTION);
+                }
+                DecryptedValueCache cache = valueCache;
+                if (cache != null) {
+                    for (Map.Entry<String, Object> entry : encryptedValues.entrySet()) {
+                        cache.put(entry.getKey(), entry.getValue(), plainValues.get(entry.getKey()));
+                    }
+                }
+                return result;
+            } finally {
+                StripedLock.unlockAll(locks);
+            }
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes all data key versions except the current one, the given ones and the ones of open output streams
+     *
+     * @return false if the data key has been rotated again and nothing has been deleted, otherwise true
+     */
+    boolean retireDataKeys(int currentVersion,
+                           @NonNull Set<Integer> usedKeyVersions) {
+        // no output stream can be opened in between
+        Lock lock = KeystoreTool.lockKeysExclusively();
+        try {
+            Set<Integer> keepVersions = new HashSet<>(usedKeyVersions);
+            keepVersions.addAll(blobStore.getOpenKeyVersions());
+            return KeystoreTool.retireDataKeys(context, keyAlias, currentVersion, keepVersions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the keys of a set stored in the legacy layout (key_count and key_i), including
+     * orphaned element entries left behind when a legacy set shrank
+     */
+    @NonNull
+    List<String> getLegacySetKeys(@NonNull String key) {
+        SecureStorageBackend backend = getStorageBackend();
+        List<String> keys = new ArrayList<>();
+        if (!containsValue(backend, key + KEY_SET_COUNT_POSTFIX)) {
+            return keys;
+        }
+        keys.add(key + KEY_SET_COUNT_POSTFIX);
+        String elementPrefix = key + KEY_SET_ELEMENT_SEPARATOR;
+        for (String storedKey : backend.getKeys()) {
+            if (storedKey.length() > elementPrefix.length()
+                    && storedKey.startsWith(elementPrefix)
+                    && TextUtils.isDigitsOnly(storedKey.substring(elementPrefix.length()))) {
+                keys.add(storedKey);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Encrypts the plain values and writes all of them with a single write
+     *
+     * @param modifications Plain values or null for keys which should be removed
+     * @return True if the changes have been written successfully to disk, otherwise false
+     * @throws SecureStorageException if an asynchronous write failed, the caller has no other way to find out
+     */
+    boolean write(@NonNull Map<String, Object> modifications,
+                  boolean synchronous) throws SecureStorageException {
+        SecureStorageBackend backend = getStorageBackend();
+        Map<String, Object> encryptedValues = new LinkedHashMap<>(modifications.size());
+        // removing values doesn't need the key pair
+        Lock keyLock = hasValues(modifications) ? KeystoreTool.lockKeyPair(context) : KeystoreTool.lockKeys();
+        try {
+            for (Map.Entry<String, Object> entry : modifications.entrySet()) {
+                Object value = entry.getValue();
+                encryptedValues.put(entry.getKey(), value == null ? null : encryptValue(backend, value));
+            }
+
+            List<ReentrantLock> locks = keyLocks.lockAll(encryptedValues.keySet());
+            try {
+                boolean result = writeBuffer.write(backend, encryptedValues, synchronous);
+                if (!result && !synchronous) {
+                    throw new SecureStorageException(context.getString(R.string.message_problem_write), null, INTERNAL_LIBRARY_EXCEPTION);
+                }
+                for (String key : encryptedValues.keySet()) {
+                    blobStore.delete(key, null);
+                }
+
+                DecryptedValueCache cache = valueCache;
+                if (cache != null) {
+                    for (Map.Entry<String, Object> entry : encryptedValues.entrySet()) {
+                        Object value = modifications.get(entry.getKey());
+                        if (value == null) {
+                            cache.remove(entry.getKey());
+                        } else {
+                            cache.put(entry.getKey(), entry.getValue(), value);
+                        }
+                    }
+                }
+                return result;
+            } finally {
+                StripedLock.unlockAll(locks);
+            }
+        } finally {
+            keyLock.unlock();
+            valueObservers.onChanged(modifications.keySet());
+        }
+    }
+
+    private void setTypedValue(@NonNull String key,
+                               @NonNull Object value) throws SecureStorageException {
+        Lock keyLock = KeystoreTool.lockKeyPair(context);
+        try {
+            SecureStorageBackend backend = getStorageBackend();
+            Object transformedValue = encryptValue(backend, value);
+            ReentrantLock lock = keyLocks.lock(key);
+            try {
+                if (!writeBuffer.write(backend, Collections.singletonMap(key, transformedValue), false)) {
+                    throw new SecureStorageException(context.getString(R.string.message_problem_write), null, INTERNAL_LIBRARY_EXCEPTION);
+                }
+                blobStore.delete(key, null);
+                DecryptedValueCache cache = valueCache;
+                if (cache != null) {
+                    cache.put(key, transformedValue, value);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        valueObservers.onChanged(Collections.singleton(key));
+    }
+
+    private static boolean hasValues(@NonNull Map<String, Object> modifications) {
+        for (Object value : modifications.values()) {
+            if (value != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Encrypted values are raw bytes for a BinarySecureStorageBackend and Strings for any other backend
+
+    @NonNull
+    private Object encryptValue(@NonNull SecureStorageBackend backend,
+                                @NonNull Object value) throws SecureStorageException {
+        return encryptValue(backend, value, KeystoreTool.getCurrentKeyVersion(context, keyAlias));
+    }
+
+    @NonNull
+    private Object encryptValue(@NonNull SecureStorageBackend backend,
+                                @NonNull Object value,
+                                int keyVersion) throws SecureStorageException {
+        formatMigration.beforeWrite();
+        if (backend instanceof BinarySecureStorageBackend) {
+            return KeystoreTool.encryptValueToBytes(context, keyAlias, keyVersion, value);
+        }
+        String transformedValue = KeystoreTool.encryptValue(context, keyAlias, keyVersion, value);
+        if (TextUtils.isEmpty(transformedValue)) {
+            throw new SecureStorageException(context.getString(R.string.message_problem_encryption), null, CRYPTO_EXCEPTION);
+        }
+        return transformedValue;
+    }
+
+    @NonNull
+    private Object decryptValue(@NonNull String key,
+                                @NonNull Object encryptedValue) throws SecureStorageException {
+        DecryptedValueCache cache = valueCache;
+        if (cache == null) {
+            Object value = decryptValue(encryptedValue);
+            formatMigration.upgradeLater(key, encryptedValue);
+            return value;
+        }
+        Object value = cache.get(key, encryptedValue);
+        MetricsRecorder.cacheAccess(value != null);
+        if (value == null) {
+            value = decryptValue(encryptedValue);
+            cache.put(key, encryptedValue, value);
+            formatMigration.upgradeLater(key, encryptedValue);
+        }
+        return value;
+    }
+
+    @NonNull
+    private Object decryptValue(@NonNull Object encryptedValue) throws SecureStorageException {
+        if (encryptedValue instanceof byte[]) {
+            return KeystoreTool.decryptValue(context, keyAlias, (byte[]) encryptedValue);
+        }
+        return KeystoreTool.decryptValue(context, keyAlias, (String) encryptedValue);
+    }
+
+    @NonNull
+    private SecureStorageBackend getStorageBackend() {
+        SecureStorageBackend backend = storageBackend;
+        if (backend != null) {
+            return backend;
+        }
+        synchronized (this) {
+            if (storageBackend == null) {
+                storageBackend = new SharedPreferencesBackend(context, preferencesName);
+            }
+            return storageBackend;
+        }
+    }
+
+    private boolean containsValue(@NonNull SecureStorageBackend backend,
+                                  @NonNull String key) {
+        Object pendingValue = writeBuffer.getPending(key);
+        return pendingValue == WriteBuffer.NOT_PENDING ? keyIndex.contains(backend, key) : pendingValue != null;
+    }
+
+    /**
+     * @return the encrypted value for the key or null if there is none, changes which have not been written yet included. Values of a {@link BinarySecureStorageBackend}
+     * written as String (e.g. by older versions) are returned as String as well.
+     */
+    @Nullable
+    private Object readValue(@NonNull SecureStorageBackend backend,
+                             @NonNull String key) {
+        Object pendingValue = writeBuffer.getPending(key);
+        if (pendingValue != WriteBuffer.NOT_PENDING) {
+            return pendingValue;
+        }
+        if (!keyIndex.contains(backend, key)) {
+            // missing keys are answered from memory
+            return null;
+        }
+        long start = MetricsRecorder.start(BACKEND_READ);
+        int length = 0;
+        try {
+            if (backend instanceof BinarySecureStorageBackend) {
+                byte[] value = ((BinarySecureStorageBackend) backend).getBytes(key);
+                if (value == null || value.length == 0) {
+                    return null;
+                }
+                length = value.length;
+                return KeystoreTool.isBinaryValue(value) ? value : new String(value, CHARSET);
+            }
+            String value = backend.getValue(key);
+            if (TextUtils.isEmpty(value)) {
+                return null;
+            }
+            length = value.length();
+            return value;
+        } finally {
+            MetricsRecorder.end(BACKEND_READ, start, length);
+        }
+    }
+}
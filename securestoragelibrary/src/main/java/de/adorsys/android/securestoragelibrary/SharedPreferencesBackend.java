@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Default backend, which stores the encrypted values in a private SharedPreferences file
+ */
+public final class SharedPreferencesBackend implements SecureStorageBackend {
+    @NonNull
+    private final SharedPreferences preferences;
+
+    /**
+     * @param context Context is used internally
+     * @param name    Name of the private SharedPreferences file
+     */
+    public SharedPreferencesBackend(@NonNull Context context, @NonNull String name) {
+        this.preferences = context.getApplicationContext().getSharedPreferences(name, MODE_PRIVATE);
+    }
+
+    @NonNull
+    SharedPreferences getPreferences() {
+        return preferences;
+    }
+
+    @Nullable
+    @Override
+    public String getValue(@NonNull String key) {
+        return preferences.getString(key, null);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return preferences.contains(key);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getKeys() {
+        return new HashSet<>(preferences.getAll().keySet());
+    }
+
+    @Override
+    public boolean write(@NonNull Map<String, String> changes, boolean synchronous) {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            if (entry.getValue() == null) {
+                editor.remove(entry.getKey());
+            } else {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+        }
+        if (synchronous) {
+            return editor.commit();
+        }
+        editor.apply();
+        return true;
+    }
+
+    @Override
+    public boolean clear() {
+        preferences.edit().clear().apply();
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import javax.crypto.Cipher;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.CRYPTO_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION;
+import static de.adorsys.android.securestoragelibrary.SecureStorageException.ExceptionType.KEYSTORE_EXCEPTION;
+
+/**
+ * Key provider which keeps an RSA key pair in memory, using only the default JCA providers.
+ * It works on a plain JVM and in Robolectric, so the SecureStorage can be unit tested and benchmarked
+ * off-device. The key pair does not survive the process, so never use it for values which have to be persisted.
+ */
+public final class SoftwareKeyProvider implements KeyProvider {
+    private static final String KEY_ENCRYPTION_ALGORITHM = "RSA";
+    private static final String KEY_TRANSFORMATION_ALGORITHM = "RSA/ECB/PKCS1Padding";
+    private static final int KEY_SIZE = 2048;
+
+    @Nullable
+    private volatile KeyPair keyPair;
+
+    @Override
+    public boolean keyExists() {
+        return keyPair != null;
+    }
+
+    @Override
+    public synchronized void generateKey(@NonNull Context context) throws SecureStorageException {
+        if (keyPair != null) {
+            return;
+        }
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ENCRYPTION_ALGORITHM);
+            generator.initialize(KEY_SIZE);
+            keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+    }
+
+    @Override
+    public void deleteKey(@NonNull Context context) {
+        keyPair = null;
+    }
+
+    @Override
+    public void prewarm(@NonNull Context context) {
+        // nothing to resolve, the key pair is kept in memory
+    }
+
+    @NonNull
+    @Override
+    public byte[] encrypt(@NonNull Context context, @NonNull byte[] plainBytes) throws SecureStorageException {
+        try {
+            Cipher input = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM);
+            input.init(Cipher.ENCRYPT_MODE, getKeyPair(context).getPublic());
+            return input.doFinal(plainBytes);
+        } catch (GeneralSecurityException e) {
+            throw new SecureStorageException(e.getMessage(), e, KEYSTORE_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    @Override
+    public byte[] decrypt(@NonNull Context context, @NonNull byte[] encryptedBytes) throws SecureStorageException {
+        try {
+            Cipher output = Cipher.getInstance(KEY_TRANSFORMATION_ALGORITHM);
+            output.init(Cipher.DECRYPT_MODE, getKeyPair(context).getPrivate());
+            return output.doFinal(encryptedBytes);
+        } catch (GeneralSecurityException e) {
+            throw new SecureStorageException(e.getMessage(), e, CRYPTO_EXCEPTION);
+        }
+    }
+
+    @NonNull
+    private KeyPair getKeyPair(@NonNull Context context) throws SecureStorageException {
+        KeyPair keyPair = this.keyPair;
+        if (keyPair == null) {
+            throw new SecureStorageException(context.getString(R.string.message_keypair_does_not_exist), null, INTERNAL_LIBRARY_EXCEPTION);
+        }
+        return keyPair;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Serializes a Set(type: String) into one compact byte array, so the whole set can be encrypted as a single value.
+ * Layout: format version (1 byte), element count (4 bytes), then per element its UTF-8 length (4 bytes) and bytes.
+ */
+final class StringSetCodec {
+    private static final byte FORMAT_VERSION = 1;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // hidden constructor to disable initialization
+    private StringSetCodec() {
+    }
+
+    @NonNull
+    static byte[] encode(@NonNull Set<String> values) {
+        byte[][] elements = new byte[values.size()][];
+        int size = 1 + 4;
+        int i = 0;
+        for (String value : values) {
+            elements[i] = value.getBytes(CHARSET);
+            size += 4 + elements[i].length;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(elements.length);
+        for (byte[] element : elements) {
+            buffer.putInt(element.length);
+            buffer.put(element);
+            Arrays.fill(element, (byte) 0);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the given range of the bytes is not a serialized set
+     */
+    @NonNull
+    static Set<String> decode(@NonNull byte[] bytes, int offset, int length) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            if (buffer.get() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown set format version");
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4) {
+                throw new IllegalArgumentException("Invalid set element count " + count);
+            }
+
+            Set<String> values = new HashSet<>(count);
+            for (int i = 0; i < count; i++) {
+                int elementLength = buffer.getInt();
+                if (elementLength < 0 || elementLength > buffer.remaining()) {
+                    throw new IllegalArgumentException("Invalid set element length " + elementLength);
+                }
+                values.add(new String(bytes, buffer.position(), elementLength, CHARSET));
+                buffer.position(buffer.position() + elementLength);
+            }
+            return values;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated set", e);
+        }
+    }
+}
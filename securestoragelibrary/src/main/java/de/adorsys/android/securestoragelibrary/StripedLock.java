@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A fixed number of locks shared by all keys, so changes of the same key are serialized
+ * while changes of different keys usually run in parallel
+ */
+final class StripedLock {
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param stripeCount Number of locks, a power of two
+     */
+    StripedLock(int stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripeCount);
+        }
+        stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return the locked stripe of the key, which has to be unlocked by the caller
+     */
+    @NonNull
+    ReentrantLock lock(@NonNull String key) {
+        ReentrantLock lock = stripes[indexOf(key)];
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Locks the stripes of all keys in ascending order, so callers locking several keys can't deadlock
+     *
+     * @return the locked stripes, which have to be unlocked with {@link #unlockAll(List)}
+     */
+    @NonNull
+    List<ReentrantLock> lockAll(@NonNull Collection<String> keys) {
+        boolean[] used = new boolean[stripes.length];
+        for (String key : keys) {
+            used[indexOf(key)] = true;
+        }
+        List<ReentrantLock> locks = new ArrayList<>();
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                stripes[i].lock();
+                locks.add(stripes[i]);
+            }
+        }
+        return locks;
+    }
+
+    static void unlockAll(@NonNull List<ReentrantLock> locks) {
+        List<ReentrantLock> reversed = new ArrayList<>(locks);
+        Collections.reverse(reversed);
+        for (ReentrantLock lock : reversed) {
+            lock.unlock();
+        }
+    }
+
+    private int indexOf(@NonNull String key) {
+        int hash = key.hashCode();
+        // spread the higher bits like HashMap, only the lowest bits select the stripe
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+}
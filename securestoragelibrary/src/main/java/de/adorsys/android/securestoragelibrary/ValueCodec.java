@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Serializes plain values into a compact tagged binary format, so they can be encrypted without
+ * formatting or parsing Strings. Layout: type (1 byte), then the value:
+ * UTF-8 bytes for Strings, 1 byte for booleans, 4 bytes for ints and floats, 8 bytes for longs
+ * the {@link StringSetCodec} format for sets, the raw bytes for byte arrays
+ * and the nonce prefix plus the data key version (unless it is 0) for references to {@link EncryptedBlobStore} files.
+ */
+final class ValueCodec {
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_STRING_SET = 6;
+    private static final byte TYPE_BYTES = 7;
+    private static final byte TYPE_BLOB_REFERENCE = 8;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // hidden constructor to disable initialization
+    private ValueCodec() {
+    }
+
+    /**
+     * @param value String, Boolean, Integer, Long, Float, Set(type: String), byte[] or blob reference value
+     * @throws IllegalArgumentException if the value has an unsupported type
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    static byte[] encode(@NonNull Object value) {
+        if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(CHARSET);
+            try {
+                return ByteBuffer.allocate(1 + bytes.length).put(TYPE_STRING).put(bytes).array();
+            } finally {
+                Arrays.fill(bytes, (byte) 0);
+            }
+        } else if (value instanceof Boolean) {
+            return new byte[]{TYPE_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        } else if (value instanceof Integer) {
+            return ByteBuffer.allocate(1 + 4).put(TYPE_INT).putInt((Integer) value).array();
+        } else if (value instanceof Long) {
+            return ByteBuffer.allocate(1 + 8).put(TYPE_LONG).putLong((Long) value).array();
+        } else if (value instanceof Float) {
+            return ByteBuffer.allocate(1 + 4).put(TYPE_FLOAT).putFloat((Float) value).array();
+        } else if (value instanceof Set) {
+            byte[] bytes = StringSetCodec.encode((Set<String>) value);
+            try {
+                return ByteBuffer.allocate(1 + bytes.length).put(TYPE_STRING_SET).put(bytes).array();
+            } finally {
+                Arrays.fill(bytes, (byte) 0);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            return ByteBuffer.allocate(1 + bytes.length).put(TYPE_BYTES).put(bytes).array();
+        } else if (value instanceof EncryptedBlobStore.Reference) {
+            EncryptedBlobStore.Reference reference = (EncryptedBlobStore.Reference) value;
+            if (reference.keyVersion == 0) {
+                // the layout of references written before the data key could be rotated
+                return ByteBuffer.allocate(1 + reference.noncePrefix.length)
+                        .put(TYPE_BLOB_REFERENCE).put(reference.noncePrefix).array();
+            }
+            return ByteBuffer.allocate(1 + reference.noncePrefix.length + 4)
+                    .put(TYPE_BLOB_REFERENCE).put(reference.noncePrefix).putInt(reference.keyVersion).array();
+        }
+        throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+    }
+
+    /**
+     * @return the decoded String, Boolean, Integer, Long, Float, Set(type: String), byte[] or blob reference value
+     * @throws IllegalArgumentException if the bytes are not an encoded value
+     */
+    @NonNull
+    static Object decode(@NonNull byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the decoded String, Boolean, Integer, Long, Float, Set(type: String), byte[] or blob reference value
+     * @throws IllegalArgumentException if the given range of the bytes is not an encoded value
+     */
+    @NonNull
+    static Object decode(@NonNull byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Empty value");
+        }
+        byte type = bytes[offset];
+        switch (type) {
+            case TYPE_STRING:
+                return new String(bytes, offset + 1, length - 1, CHARSET);
+            case TYPE_BOOLEAN:
+                checkLength(length, 1);
+                return bytes[offset + 1] != 0;
+            case TYPE_INT:
+                checkLength(length, 4);
+                return ByteBuffer.wrap(bytes, offset + 1, 4).getInt();
+            case TYPE_LONG:
+                checkLength(length, 8);
+                return ByteBuffer.wrap(bytes, offset + 1, 8).getLong();
+            case TYPE_FLOAT:
+                checkLength(length, 4);
+                return ByteBuffer.wrap(bytes, offset + 1, 4).getFloat();
+            case TYPE_STRING_SET:
+                return StringSetCodec.decode(bytes, offset + 1, length - 1);
+            case TYPE_BYTES:
+                return Arrays.copyOfRange(bytes, offset + 1, offset + length);
+            case TYPE_BLOB_REFERENCE:
+                int noncePrefixEnd = offset + 1 + EncryptedBlobStore.NONCE_PREFIX_LENGTH;
+                if (length == 1 + EncryptedBlobStore.NONCE_PREFIX_LENGTH) {
+                    return new EncryptedBlobStore.Reference(Arrays.copyOfRange(bytes, offset + 1, noncePrefixEnd), 0);
+                }
+                checkLength(length, EncryptedBlobStore.NONCE_PREFIX_LENGTH + 4);
+                return new EncryptedBlobStore.Reference(Arrays.copyOfRange(bytes, offset + 1, noncePrefixEnd),
+                        ByteBuffer.wrap(bytes, noncePrefixEnd, 4).getInt());
+            default:
+                throw new IllegalArgumentException("Unknown value type " + type);
+        }
+    }
+
+    private static void checkLength(int length, int valueLength) {
+        if (length != 1 + valueLength) {
+            throw new IllegalArgumentException("Invalid value length " + (length - 1));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Delivers the values of observed keys of one store to their {@link SecureStorageObserver}s. A change schedules
+ * the delivery at the end of a short time window, so a burst of changes is delivered once with the latest value.
+ * The value is decrypted once per delivery and shared by all observers of the key. Values stored in files are
+ * not decrypted on the delivery thread, every observer gets its own stream which decrypts while it is read.
+ * Observers only hear about their key, never about the entries of the legacy set layout behind it.
+ */
+final class ValueObservers {
+    static final long DELIVERY_WINDOW_MILLIS = 50;
+
+    private static final String THREAD_NAME = "SecureStorageObserver";
+
+    private static final ScheduledExecutorService DELIVERY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @NonNull
+    private final SecureStore store;
+
+    // Observers mapped by the key they observe. Guarded by this.
+    private final Map<String, KeyObservers> observers = new HashMap<>();
+    // Lets writes skip the monitor as long as nothing is observed
+    private volatile boolean hasObservers;
+
+    ValueObservers(@NonNull SecureStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Adds the observer and delivers the current value to it
+     */
+    void add(@NonNull final String key,
+             @NonNull SecureStorageObserver observer,
+             @NonNull Executor executor) {
+        final Registration registration = new Registration(observer, executor);
+        synchronized (this) {
+            KeyObservers keyObservers = observers.get(key);
+            if (keyObservers == null) {
+                keyObservers = new KeyObservers();
+                observers.put(key, keyObservers);
+            }
+            keyObservers.registrations.add(registration);
+            hasObservers = true;
+        }
+        DELIVERY_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                registration.deliver(store, key, readValue(key));
+            }
+        });
+    }
+
+    /**
+     * Removes the observer, it doesn't receive any value afterwards if it is removed on the thread of its executor
+     */
+    synchronized void remove(@NonNull String key,
+                             @NonNull SecureStorageObserver observer) {
+        KeyObservers keyObservers = observers.get(key);
+        if (keyObservers == null) {
+            return;
+        }
+        Iterator<Registration> iterator = keyObservers.registrations.iterator();
+        while (iterator.hasNext()) {
+            Registration registration = iterator.next();
+            if (registration.observer == observer) {
+                registration.removed = true;
+                iterator.remove();
+            }
+        }
+        if (keyObservers.registrations.isEmpty()) {
+            if (keyObservers.scheduledDelivery != null) {
+                keyObservers.scheduledDelivery.cancel(false);
+            }
+            observers.remove(key);
+            hasObservers = !observers.isEmpty();
+        }
+    }
+
+    /**
+     * Called after the values of the keys have been changed or removed
+     */
+    void onChanged(@NonNull Collection<String> keys) {
+        if (!hasObservers) {
+            return;
+        }
+        synchronized (this) {
+            for (String key : keys) {
+                schedule(key);
+            }
+        }
+    }
+
+    /**
+     * Called after all values may have been changed, e.g. because the store has been cleared
+     */
+    synchronized void onAllChanged() {
+        for (String key : observers.keySet()) {
+            schedule(key);
+        }
+    }
+
+    private void schedule(@NonNull final String key) {
+        final KeyObservers keyObservers = observers.get(key);
+        if (keyObservers == null || keyObservers.scheduledDelivery != null) {
+            // not observed or the scheduled delivery will read the latest value anyway
+            return;
+        }
+        keyObservers.scheduledDelivery = DELIVERY_EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<Registration> registrations;
+                synchronized (ValueObservers.this) {
+                    // changes from now on schedule another delivery
+                    keyObservers.scheduledDelivery = null;
+                    registrations = new ArrayList<>(keyObservers.registrations);
+                }
+                if (registrations.isEmpty()) {
+                    return;
+                }
+                Object value = readValue(key);
+                for (Registration registration : registrations) {
+                    registration.deliver(store, key, value);
+                }
+            }
+        }, DELIVERY_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private Object readValue(@NonNull String key) {
+        Object value = store.getObservedValue(key);
+        // shared by all observers, so it must not be changed by one of them
+        return value instanceof Set ? Collections.unmodifiableSet((Set<String>) value) : value;
+    }
+
+    private static final class KeyObservers {
+        final List<Registration> registrations = new ArrayList<>();
+        // Delivery of the latest value at the end of the time window, null if no change is pending
+        @Nullable
+        ScheduledFuture<?> scheduledDelivery;
+    }
+
+    private static final class Registration {
+        @NonNull
+        final SecureStorageObserver observer;
+        @NonNull
+        final Executor executor;
+        volatile boolean removed;
+
+        Registration(@NonNull SecureStorageObserver observer, @NonNull Executor executor) {
+            this.observer = observer;
+            this.executor = executor;
+        }
+
+        void deliver(@NonNull final SecureStore store,
+                     @NonNull final String key,
+                     @Nullable final Object value) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (removed) {
+                        return;
+                    }
+                    if (value instanceof EncryptedBlobStore.Reference) {
+                        InputStream inputStream = store.openObservedStream(key, (EncryptedBlobStore.Reference) value);
+                        // null if the value has been replaced, the next delivery is already scheduled
+                        if (inputStream != null) {
+                            observer.onChanged(key, inputStream);
+                        }
+                        return;
+                    }
+                    // byte arrays are mutable, every observer gets its own copy
+                    observer.onChanged(key, value instanceof byte[] ? ((byte[]) value).clone() : value);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static de.adorsys.android.securestoragelibrary.SecureStorageMetrics.Operation.BACKEND_WRITE;
+
+/**
+ * Writes the encrypted changes of one store to its backend according to the {@link WritePolicy}.
+ * With {@link WritePolicy#COALESCE} the changes are kept until the time window is over and then written
+ * with a single write. Synchronous writes include all pending changes, so the backend always receives
+ * the changes in the order they have been made.
+ */
+final class WriteBuffer {
+    /**
+     * Returned by {@link #getPending(String)} for keys without a pending change
+     */
+    static final Object NOT_PENDING = new Object();
+
+    static final long DEFAULT_COALESCING_WINDOW_MILLIS = 100;
+
+    private static final String THREAD_NAME = "SecureStorageWriter";
+
+    private static final ScheduledExecutorService WRITE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @NonNull
+    private final KeyIndex keyIndex;
+
+    @NonNull
+    private volatile WritePolicy policy = WritePolicy.APPLY;
+    private volatile long coalescingWindowMillis = DEFAULT_COALESCING_WINDOW_MILLIS;
+
+    // Encrypted changes which have not been written yet, null values mark removed keys
+    private final Map<String, Object> pending = new LinkedHashMap<>();
+    // Backend the pending changes have been encrypted for
+    @Nullable
+    private SecureStorageBackend pendingBackend;
+    // Lets writes and reads skip the monitor as long as nothing is pending
+    private volatile boolean hasPending;
+    // Write of the pending changes at the end of the time window
+    @Nullable
+    private ScheduledFuture<?> scheduledWrite;
+
+    private final Runnable pendingWriter = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WriteBuffer.this) {
+                writePendingLocked(false);
+            }
+        }
+    };
+
+    /**
+     * @param keyIndex Index of the keys stored in the backend, which is updated after every write
+     */
+    WriteBuffer(@NonNull KeyIndex keyIndex) {
+        this.keyIndex = keyIndex;
+    }
+
+    /**
+     * Changes written with a different policy before are written asynchronously right away
+     *
+     * @param coalescingWindowMillis Time in milliseconds changes are kept in memory with {@link WritePolicy#COALESCE}
+     */
+    void setPolicy(@NonNull WritePolicy policy, long coalescingWindowMillis) {
+        if (coalescingWindowMillis < 0) {
+            throw new IllegalArgumentException("coalescingWindowMillis must not be negative");
+        }
+        synchronized (this) {
+            this.coalescingWindowMillis = coalescingWindowMillis;
+            this.policy = policy;
+            if (policy != WritePolicy.COALESCE) {
+                writePendingLocked(false);
+            }
+        }
+    }
+
+    /**
+     * @param changes     Encrypted values for the backend, null for keys which should be removed
+     * @param synchronous True if the changes have to be on disk when this method returns,
+     *                    false if the write policy decides
+     * @return True if the changes have been written or buffered successfully, otherwise false
+     */
+    boolean write(@NonNull SecureStorageBackend backend,
+                  @NonNull Map<String, ?> changes,
+                  boolean synchronous) {
+        WritePolicy currentPolicy = policy;
+        boolean durable = synchronous || currentPolicy == WritePolicy.COMMIT;
+        if (currentPolicy != WritePolicy.COALESCE && !hasPending) {
+            return writeValues(backend, changes, durable);
+        }
+        synchronized (this) {
+            if (pendingBackend != null && pendingBackend != backend) {
+                // the backend has been replaced in the meantime
+                writePendingLocked(false);
+            }
+            if (!durable && currentPolicy == WritePolicy.COALESCE) {
+                pending.putAll(changes);
+                pendingBackend = backend;
+                hasPending = true;
+                if (scheduledWrite == null) {
+                    scheduledWrite = WRITE_EXECUTOR.schedule(pendingWriter, coalescingWindowMillis, TimeUnit.MILLISECONDS);
+                }
+                return true;
+            }
+            Map<String, Object> batch = new LinkedHashMap<>(pending);
+            batch.putAll(changes);
+            clearPendingLocked();
+            return writeValues(backend, batch, durable);
+        }
+    }
+
+    /**
+     * Writes all pending changes synchronously and waits until all previous writes are on disk
+     *
+     * @return True if all changes have been written successfully, otherwise false
+     */
+    synchronized boolean flush(@NonNull SecureStorageBackend backend) {
+        boolean result = true;
+        if (pendingBackend != null && pendingBackend != backend) {
+            result = writePendingLocked(true);
+        }
+        Map<String, Object> batch = new LinkedHashMap<>(pending);
+        clearPendingLocked();
+        // an empty synchronous write waits for the previous asynchronous writes of the backend
+        return writeValues(backend, batch, true) && result;
+    }
+
+    /**
+     * Writes all pending changes asynchronously, e.g. before the backend is replaced
+     */
+    synchronized void writePending() {
+        writePendingLocked(false);
+    }
+
+    /**
+     * Drops all pending changes, e.g. because the store is cleared
+     */
+    synchronized void discard() {
+        clearPendingLocked();
+    }
+
+    /**
+     * @return the pending encrypted value of the key, null if the key is going to be removed
+     * or {@link #NOT_PENDING} if there is no pending change for the key
+     */
+    @Nullable
+    Object getPending(@NonNull String key) {
+        if (!hasPending) {
+            return NOT_PENDING;
+        }
+        synchronized (this) {
+            return pending.containsKey(key) ? pending.get(key) : NOT_PENDING;
+        }
+    }
+
+    private boolean writePendingLocked(boolean synchronous) {
+        SecureStorageBackend backend = pendingBackend;
+        if (backend == null) {
+            return true;
+        }
+        Map<String, Object> batch = new LinkedHashMap<>(pending);
+        clearPendingLocked();
+        return writeValues(backend, batch, synchronous);
+    }
+
+    private void clearPendingLocked() {
+        pending.clear();
+        pendingBackend = null;
+        hasPending = false;
+        if (scheduledWrite != null) {
+            scheduledWrite.cancel(false);
+            scheduledWrite = null;
+        }
+    }
+
+    /**
+     * @param changes Encrypted values for the backend, raw bytes for a {@link BinarySecureStorageBackend}
+     *                and Strings otherwise, null for keys which should be removed
+     */
+    private boolean writeValues(@NonNull SecureStorageBackend backend,
+                                @NonNull Map<String, ?> changes,
+                                boolean synchronous) {
+        boolean written = writeValuesToBackend(backend, changes, synchronous);
+        if (!changes.isEmpty() || !written) {
+            keyIndex.update(backend, changes, written);
+        }
+        return written;
+    }
+
+    private static boolean writeValuesToBackend(@NonNull SecureStorageBackend backend,
+                                                @NonNull Map<String, ?> changes,
+                                                boolean synchronous) {
+        long start = MetricsRecorder.start(BACKEND_WRITE);
+        int length = 0;
+        try {
+            if (backend instanceof BinarySecureStorageBackend) {
+                Map<String, byte[]> byteChanges = new LinkedHashMap<>(changes.size());
+                for (Map.Entry<String, ?> entry : changes.entrySet()) {
+                    byte[] value = (byte[]) entry.getValue();
+                    length += value == null ? 0 : value.length;
+                    byteChanges.put(entry.getKey(), value);
+                }
+                return ((BinarySecureStorageBackend) backend).writeBytes(byteChanges, synchronous);
+            }
+            Map<String, String> stringChanges = new LinkedHashMap<>(changes.size());
+            for (Map.Entry<String, ?> entry : changes.entrySet()) {
+                String value = (String) entry.getValue();
+                length += value == null ? 0 : value.length();
+                stringChanges.put(entry.getKey(), value);
+            }
+            return backend.write(stringChanges, synchronous);
+        } finally {
+            MetricsRecorder.end(BACKEND_WRITE, start, length);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+/**
+ * Defines when the values passed to setValue, removeValue and {@link SecurePreferences.Editor#apply()}
+ * are written to disk. {@link SecurePreferences.Editor#commit()} always writes synchronously.
+ *
+ * @see SecurePreferences#setWritePolicy(Context, WritePolicy)
+ * @see SecureStore#setWritePolicy(WritePolicy)
+ */
+public enum WritePolicy {
+    /**
+     * Every change is on disk when the method returns, setValue throws if it could not be written
+     */
+    COMMIT,
+    /**
+     * Every change is handed to the backend right away and written asynchronously (the default)
+     */
+    APPLY,
+    /**
+     * Changes are kept in memory and all changes of a time window are written with a single asynchronous write.
+     * Reads see the changes right away. Call {@link SecurePreferences#flush(Context)} to write them immediately,
+     * e.g. before the process is shut down.
+     */
+    COALESCE
+}
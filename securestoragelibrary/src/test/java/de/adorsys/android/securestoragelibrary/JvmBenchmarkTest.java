@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+/**
+ * Measures the p50/p99 latency and the allocated bytes per operation of the hot paths on the JVM with the
+ * {@link SoftwareKeyProvider} and an in-memory backend, so only the work of the library itself is measured.
+ * The results are written to the directory of the system property "jvmBenchmarkReportDir",
+ * checkJvmBenchmarkBaseline compares the allocations with jvm-benchmark-baseline.json once it exists.
+ * Timings on shared CI machines are too noisy to compare, they are only reported.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class JvmBenchmarkTest {
+    private static final String REPORT_DIR_PROPERTY = "jvmBenchmarkReportDir";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 20000;
+    // Batches are measured with fewer iterations, so every batch size writes about as many keys
+    private static final int MIN_BATCH_ITERATIONS = 50;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000, 10000};
+
+    private Context context;
+    private SecureStore store;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        SecurePreferences.setKeyProvider(new SoftwareKeyProvider());
+        store = SecurePreferences.getStore(context, "benchmark");
+        store.setStorageBackend(new MemoryBackend());
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.clearAllValues(context);
+    }
+
+    @Test
+    public void setStringValue() throws Exception {
+        measure("setStringValue", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setValue("KEY_STRING", "SAMPLE STRING VALUE");
+            }
+        });
+    }
+
+    @Test
+    public void getStringValue() throws Exception {
+        store.setValue("KEY_STRING", "SAMPLE STRING VALUE");
+        measure("getStringValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getStringValue("KEY_STRING", null);
+            }
+        });
+    }
+
+    @Test
+    public void setIntValue() throws Exception {
+        measure("setIntValue", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setValue("KEY_INT", iteration);
+            }
+        });
+    }
+
+    @Test
+    public void getIntValue() throws Exception {
+        store.setValue("KEY_INT", 42);
+        measure("getIntValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getIntValue("KEY_INT", 0);
+            }
+        });
+    }
+
+    @Test
+    public void setLongValue() throws Exception {
+        measure("setLongValue", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setValue("KEY_LONG", (long) iteration);
+            }
+        });
+    }
+
+    @Test
+    public void getLongValue() throws Exception {
+        store.setValue("KEY_LONG", 42L);
+        measure("getLongValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getLongValue("KEY_LONG", 0L);
+            }
+        });
+    }
+
+    @Test
+    public void setFloatValue() throws Exception {
+        measure("setFloatValue", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setValue("KEY_FLOAT", (float) iteration);
+            }
+        });
+    }
+
+    @Test
+    public void getFloatValue() throws Exception {
+        store.setValue("KEY_FLOAT", 4.2f);
+        measure("getFloatValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getFloatValue("KEY_FLOAT", 0f);
+            }
+        });
+    }
+
+    @Test
+    public void setBooleanValue() throws Exception {
+        measure("setBooleanValue", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setValue("KEY_BOOLEAN", iteration % 2 == 0);
+            }
+        });
+    }
+
+    @Test
+    public void getBooleanValue() throws Exception {
+        store.setValue("KEY_BOOLEAN", true);
+        measure("getBooleanValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getBooleanValue("KEY_BOOLEAN", false);
+            }
+        });
+    }
+
+    @Test
+    public void setStringSetValue() throws Exception {
+        final Set<String> value = new HashSet<>(Arrays.asList("first", "second", "third"));
+        measure("setStringSetValue", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setValue("KEY_SET", value);
+            }
+        });
+    }
+
+    @Test
+    public void getStringSetValue() throws Exception {
+        store.setValue("KEY_SET", new HashSet<>(Arrays.asList("first", "second", "third")));
+        final Set<String> defValue = new HashSet<>();
+        measure("getStringSetValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getStringSetValue("KEY_SET", defValue);
+            }
+        });
+    }
+
+    @Test
+    public void setBytes() throws Exception {
+        final byte[] value = new byte[1024];
+        new Random(1).nextBytes(value);
+        measure("setBytes", new Operation() {
+            @Override
+            public void run(int iteration) throws SecureStorageException {
+                store.setBytes("KEY_BYTES", value);
+            }
+        });
+    }
+
+    @Test
+    public void getBytes() throws Exception {
+        byte[] value = new byte[1024];
+        new Random(1).nextBytes(value);
+        store.setBytes("KEY_BYTES", value);
+        measure("getBytes", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getBytes("KEY_BYTES", null);
+            }
+        });
+    }
+
+    @Test
+    public void commitBatch() throws Exception {
+        for (int size : BATCH_SIZES) {
+            final List<String> keys = createKeys(size);
+            measureBatch("commitBatch_" + size, size, new Operation() {
+                @Override
+                public void run(int iteration) throws SecureStorageException {
+                    writeBatch(keys);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void getValues() throws Exception {
+        for (int size : BATCH_SIZES) {
+            final List<String> keys = createKeys(size);
+            writeBatch(keys);
+            measureBatch("getValues_" + size, size, new Operation() {
+                @Override
+                public void run(int iteration) {
+                    store.getValues(keys);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void containsExistingKey() throws Exception {
+        store.setValue("KEY_STRING", "SAMPLE STRING VALUE");
+        measure("containsExistingKey", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.contains("KEY_STRING");
+            }
+        });
+    }
+
+    @Test
+    public void getMissingStringValue() throws Exception {
+        measure("getMissingStringValue", new Operation() {
+            @Override
+            public void run(int iteration) {
+                store.getStringValue("KEY_MISSING", null);
+            }
+        });
+    }
+
+    private void writeBatch(@NonNull List<String> keys) throws SecureStorageException {
+        SecurePreferences.Editor editor = store.edit();
+        for (String key : keys) {
+            editor.putString(key, key);
+        }
+        editor.commit();
+    }
+
+    @NonNull
+    private static List<String> createKeys(int size) {
+        List<String> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            keys.add("KEY_" + i);
+        }
+        return keys;
+    }
+
+    private static void measureBatch(@NonNull String name,
+                                     int size,
+                                     @NonNull Operation operation) throws Exception {
+        int iterations = Math.max(MIN_BATCH_ITERATIONS, MEASURED_ITERATIONS / size);
+        measure(name, iterations, iterations, operation);
+    }
+
+    private static void measure(@NonNull String name,
+                                @NonNull Operation operation) throws Exception {
+        measure(name, WARMUP_ITERATIONS, MEASURED_ITERATIONS, operation);
+    }
+
+    private static void measure(@NonNull String name,
+                                int warmupIterations,
+                                int measuredIterations,
+                                @NonNull Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            operation.run(i);
+        }
+        // allocated before the measurement, so it doesn't count
+        long[] durations = new long[measuredIterations];
+        long threadId = Thread.currentThread().getId();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            operation.run(i);
+            durations[i] = System.nanoTime() - start;
+        }
+        long bytesPerOperation = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / measuredIterations;
+        Arrays.sort(durations);
+        report(name, percentile(durations, 0.5), percentile(durations, 0.99), bytesPerOperation);
+    }
+
+    private static long percentile(@NonNull long[] sortedDurations,
+                                   double percentile) {
+        int index = (int) Math.ceil(sortedDurations.length * percentile) - 1;
+        return sortedDurations[Math.max(0, Math.min(sortedDurations.length - 1, index))];
+    }
+
+    private static void report(@NonNull String name,
+                               long p50Nanos,
+                               long p99Nanos,
+                               long bytesPerOperation) throws IOException {
+        System.out.println(String.format(Locale.US, "%-30s p50 %10d ns  p99 %10d ns %10d B/op",
+                name, p50Nanos, p99Nanos, bytesPerOperation));
+        String reportDir = System.getProperty(REPORT_DIR_PROPERTY);
+        if (reportDir == null) {
+            return;
+        }
+        File directory = new File(reportDir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".json")), CHARSET)) {
+            writer.write(String.format(Locale.US, "{\"name\": \"%s\", \"p50Ns\": %d, \"p99Ns\": %d, \"allocatedBytes\": %d}%n",
+                    name, p50Nanos, p99Nanos, bytesPerOperation));
+        }
+    }
+
+    private interface Operation {
+        void run(int iteration) throws SecureStorageException;
+    }
+
+    /**
+     * Keeps the values in memory, so no file system or SharedPreferences work distorts the measurements
+     */
+    private static final class MemoryBackend implements SecureStorageBackend {
+        private final Map<String, String> values = new ConcurrentHashMap<>();
+
+        @Nullable
+        @Override
+        public String getValue(@NonNull String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public boolean contains(@NonNull String key) {
+            return values.containsKey(key);
+        }
+
+        @NonNull
+        @Override
+        public Set<String> getKeys() {
+            return new HashSet<>(values.keySet());
+        }
+
+        @Override
+        public boolean write(@NonNull Map<String, String> changes, boolean synchronous) {
+            for (Map.Entry<String, String> entry : changes.entrySet()) {
+                if (entry.getValue() == null) {
+                    values.remove(entry.getKey());
+                } else {
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean clear() {
+            values.clear();
+            return true;
+        }
+    }
+}
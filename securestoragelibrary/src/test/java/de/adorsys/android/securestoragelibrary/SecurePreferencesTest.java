@@ -0,0 +1,837 @@
+/*
+ * Copyright (C) 2017 adorsys GmbH & Co. KG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.adorsys.android.securestoragelibrary;
+
+import android.content.Context;
+import android.util.Base64;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+/**
+ * Local unit test, which runs the crypto core on the JVM with the {@link SoftwareKeyProvider}
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SecurePreferencesTest {
+    private Context context;
+    private SoftwareKeyProvider keyProvider;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        keyProvider = new SoftwareKeyProvider();
+        SecurePreferences.setKeyProvider(keyProvider);
+        SecurePreferences.setStorageBackend(new SharedPreferencesBackend(context, "SecurePreferences"));
+    }
+
+    @After
+    public void tearDown() throws SecureStorageException {
+        SecurePreferences.setMetrics(null);
+        // Delete keys and clear SecureStorage
+        SecurePreferences.clearAllValues(context);
+    }
+
+    @Test
+    public void testStoreRetrieveAndRemoveStringValue() throws SecureStorageException {
+        String key = "KEY_STRING";
+        String value = "The wheels on the \uD83D\uDE8C go, Round and round";
+
+        SecurePreferences.setValue(context, key, value);
+        Assert.assertTrue(SecurePreferences.contains(context, key));
+        Assert.assertEquals(value, SecurePreferences.getStringValue(context, key, null));
+
+        SecurePreferences.removeValue(context, key);
+        Assert.assertFalse(SecurePreferences.contains(context, key));
+    }
+
+    @Test
+    public void testStoreAndRetrievePrimitiveValues() throws SecureStorageException {
+        SecurePreferences.setValue(context, "KEY_BOOLEAN", true);
+        SecurePreferences.setValue(context, "KEY_FLOAT", 1.5f);
+        SecurePreferences.setValue(context, "KEY_LONG", Long.MAX_VALUE);
+        SecurePreferences.setValue(context, "KEY_INT", Integer.MIN_VALUE);
+
+        Assert.assertTrue(SecurePreferences.getBooleanValue(context, "KEY_BOOLEAN", false));
+        Assert.assertEquals(1.5f, SecurePreferences.getFloatValue(context, "KEY_FLOAT", 0f), 0f);
+        Assert.assertEquals(Long.MAX_VALUE, SecurePreferences.getLongValue(context, "KEY_LONG", 0L));
+        Assert.assertEquals(Integer.MIN_VALUE, SecurePreferences.getIntValue(context, "KEY_INT", 0));
+    }
+
+    @Test
+    public void testAsyncWritesStoreTypedValues() throws Exception {
+        AsyncSecurePreferences async = new AsyncSecurePreferences(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+
+        async.setValue(context, "KEY_BOOLEAN", true, null).get(5, TimeUnit.SECONDS);
+        async.setValue(context, "KEY_FLOAT", 1.5f, null).get(5, TimeUnit.SECONDS);
+        async.setValue(context, "KEY_LONG", 42L, null).get(5, TimeUnit.SECONDS);
+        async.setValue(context, "KEY_INT", 42, null).get(5, TimeUnit.SECONDS);
+
+        // the same format as the synchronous API, not the legacy string encoding
+        SharedPreferencesBackend backend = new SharedPreferencesBackend(context, "SecurePreferences");
+        for (String key : Arrays.asList("KEY_BOOLEAN", "KEY_FLOAT", "KEY_LONG", "KEY_INT")) {
+            String stored = backend.getValue(key);
+            Assert.assertNotNull(stored);
+            Assert.assertTrue(stored.startsWith("v3:") || stored.startsWith("v4:"));
+        }
+        Assert.assertTrue(SecurePreferences.getBooleanValue(context, "KEY_BOOLEAN", false));
+        Assert.assertEquals(1.5f, SecurePreferences.getFloatValue(context, "KEY_FLOAT", 0f), 0f);
+        Assert.assertEquals(42L, SecurePreferences.getLongValue(context, "KEY_LONG", 0L));
+        Assert.assertEquals(42, SecurePreferences.getIntValue(context, "KEY_INT", 0));
+    }
+
+    @Test
+    public void testTypeMismatchReturnsDefaultValue() throws SecureStorageException {
+        SecurePreferences.setValue(context, "KEY_BOOLEAN", true);
+        SecurePreferences.setValue(context, "KEY_STRING", "not a number");
+
+        Assert.assertEquals(7, SecurePreferences.getIntValue(context, "KEY_BOOLEAN", 7));
+        Assert.assertEquals("true", SecurePreferences.getStringValue(context, "KEY_BOOLEAN", null));
+        Assert.assertEquals(7L, SecurePreferences.getLongValue(context, "KEY_STRING", 7L));
+        Assert.assertFalse(SecurePreferences.getBooleanValue(context, "KEY_STRING", false));
+    }
+
+    @Test
+    public void testRetrieveLegacyStringEncodedValue() throws SecureStorageException {
+        // Values of the first versions were encrypted as String directly with the key pair
+        keyProvider.generateKey(context);
+        byte[] encrypted = keyProvider.encrypt(context, "42".getBytes(Charset.forName("UTF-8")));
+        new SharedPreferencesBackend(context, "SecurePreferences")
+                .write(Collections.singletonMap("KEY_INT", Base64.encodeToString(encrypted, Base64.DEFAULT)), true);
+
+        Assert.assertEquals(42, SecurePreferences.getIntValue(context, "KEY_INT", 0));
+        Assert.assertEquals(42L, SecurePreferences.getLongValue(context, "KEY_INT", 0L));
+        Assert.assertEquals("42", SecurePreferences.getStringValue(context, "KEY_INT", null));
+    }
+
+    @Test
+    public void testMigrateUpgradesLegacyValues() throws Exception {
+        keyProvider.generateKey(context);
+        Map<String, String> legacyValues = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] encrypted = keyProvider.encrypt(context, ("value" + i).getBytes(Charset.forName("UTF-8")));
+            legacyValues.put("KEY_" + i, Base64.encodeToString(encrypted, Base64.DEFAULT));
+        }
+        SharedPreferencesBackend backend = new SharedPreferencesBackend(context, "SecurePreferences");
+        backend.write(legacyValues, true);
+
+        SecurePreferences.migrate(context).get();
+
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(backend.getValue("KEY_" + i).startsWith("v3:"));
+            Assert.assertEquals("value" + i, SecurePreferences.getStringValue(context, "KEY_" + i, null));
+        }
+    }
+
+    @Test
+    public void testNewStoreIsMarkedUpgradedOnFirstWrite() throws SecureStorageException {
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+
+        // otherwise every start would sweep over the entries of the store
+        Assert.assertEquals(String.valueOf(FormatMigration.CURRENT_FORMAT_VERSION),
+                context.getSharedPreferences("SecurePreferencesFormat", Context.MODE_PRIVATE).getString("SecurePreferences", null));
+    }
+
+    @Test
+    public void testStoreAndRetrieveStringSetValue() throws SecureStorageException {
+        Set<String> value = new HashSet<>(Arrays.asList("first", "second", "", "\uD83D\uDE8C"));
+
+        SecurePreferences.setValue(context, "KEY_SET", value);
+
+        Assert.assertEquals(value, SecurePreferences.getStringSetValue(context, "KEY_SET", new HashSet<String>()));
+    }
+
+    @Test
+    public void testStoreAndRetrieveBytes() throws SecureStorageException {
+        byte[] value = new byte[]{0, 1, -1, 42};
+
+        SecurePreferences.setBytes(context, "KEY_BYTES", value);
+
+        Assert.assertArrayEquals(value, SecurePreferences.getBytes(context, "KEY_BYTES", null));
+        Assert.assertNull(SecurePreferences.getStringValue(context, "KEY_BYTES", null));
+    }
+
+    @Test
+    public void testLargeBytesAreStoredInFile() throws SecureStorageException {
+        byte[] value = new byte[200 * 1024];
+        new Random(3).nextBytes(value);
+
+        SecurePreferences.setBytes(context, "KEY_BYTES", value);
+
+        Assert.assertArrayEquals(value, SecurePreferences.getBytes(context, "KEY_BYTES", null));
+        // only the reference to the file is stored in the backend
+        String stored = new SharedPreferencesBackend(context, "SecurePreferences").getValue("KEY_BYTES");
+        Assert.assertNotNull(stored);
+        Assert.assertTrue(stored.length() < 1024);
+    }
+
+    @Test
+    public void testStreamLargeValue() throws SecureStorageException, IOException {
+        // spans several segments and ends within one
+        byte[] value = new byte[200 * 1024 + 3];
+        new Random(42).nextBytes(value);
+
+        try (OutputStream outputStream = SecurePreferences.openEncryptedOutputStream(context, "KEY_BLOB")) {
+            outputStream.write(value);
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream inputStream = SecurePreferences.openDecryptedInputStream(context, "KEY_BLOB")) {
+            Assert.assertNotNull(inputStream);
+            byte[] buffer = new byte[1000];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                result.write(buffer, 0, length);
+            }
+        }
+        Assert.assertArrayEquals(value, result.toByteArray());
+        Assert.assertArrayEquals(value, SecurePreferences.getBytes(context, "KEY_BLOB", null));
+
+        SecurePreferences.removeValue(context, "KEY_BLOB");
+        Assert.assertNull(SecurePreferences.openDecryptedInputStream(context, "KEY_BLOB"));
+    }
+
+    @Test
+    public void testBatchValues() throws SecureStorageException {
+        SecurePreferences.edit(context)
+                .putString("KEY_FIRST", "first")
+                .putString("KEY_SECOND", "second")
+                .commit();
+
+        Map<String, String> values = SecurePreferences.getValues(context,
+                Arrays.asList("KEY_FIRST", "KEY_SECOND", "KEY_MISSING"));
+
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("first", values.get("KEY_FIRST"));
+        Assert.assertEquals("second", values.get("KEY_SECOND"));
+    }
+
+    @Test
+    public void testAppendOnlyFileBackendSurvivesReload() throws SecureStorageException {
+        File file = new File(context.getFilesDir(), "secure_storage.log");
+        SecurePreferences.setStorageBackend(new AppendOnlyFileBackend(file));
+
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        SecurePreferences.setValue(context, "KEY_REMOVED", "removed");
+        SecurePreferences.removeValue(context, "KEY_REMOVED");
+
+        // A new backend has to load the values from the file
+        SecurePreferences.setStorageBackend(new AppendOnlyFileBackend(file));
+
+        Assert.assertEquals("value", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_REMOVED"));
+    }
+
+    @Test
+    public void testIndexedFileBackendSurvivesReload() throws SecureStorageException {
+        File file = new File(context.getFilesDir(), "secure_storage_indexed.log");
+        SecurePreferences.setStorageBackend(new IndexedFileBackend(file));
+
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put("KEY_" + i, "value " + i);
+        }
+        SecurePreferences.edit(context).putAll(values).commit();
+        SecurePreferences.removeValue(context, "KEY_0");
+
+        // A new backend reads the index and the records appended after it
+        SecurePreferences.setStorageBackend(new IndexedFileBackend(file, false, true));
+        Assert.assertEquals("value 42", SecurePreferences.getStringValue(context, "KEY_42", null));
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_0"));
+
+        // Without the index the log file is scanned
+        Assert.assertTrue(new File(file.getPath() + ".index").delete());
+        SecurePreferences.setStorageBackend(new IndexedFileBackend(file));
+        Assert.assertEquals("value 99", SecurePreferences.getStringValue(context, "KEY_99", null));
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_0"));
+    }
+
+    @Test
+    public void testCoalescedWritesAreReadBeforeFlush() throws SecureStorageException {
+        SharedPreferencesBackend backend = new SharedPreferencesBackend(context, "SecurePreferences");
+        SecurePreferences.setWritePolicy(context, WritePolicy.COALESCE, 60 * 1000);
+
+        SecurePreferences.setValue(context, "KEY_FIRST", "first");
+        SecurePreferences.setValue(context, "KEY_FIRST", "second");
+        SecurePreferences.setValue(context, "KEY_SECOND", 2);
+        SecurePreferences.removeValue(context, "KEY_SECOND");
+
+        // the changes are only in memory until the window is over
+        Assert.assertFalse(backend.contains("KEY_FIRST"));
+        Assert.assertEquals("second", SecurePreferences.getStringValue(context, "KEY_FIRST", null));
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_SECOND"));
+
+        Assert.assertTrue(SecurePreferences.flush(context));
+        Assert.assertTrue(backend.contains("KEY_FIRST"));
+        Assert.assertFalse(backend.contains("KEY_SECOND"));
+        Assert.assertEquals("second", SecurePreferences.getStringValue(context, "KEY_FIRST", null));
+    }
+
+    @Test
+    public void testMultiProcessIndexedFileBackendSeesOtherWrites() throws SecureStorageException {
+        File file = new File(context.getFilesDir(), "secure_storage_shared.log");
+        // two instances on the same file stand in for two processes
+        IndexedFileBackend first = new IndexedFileBackend(file, false, false, true);
+        IndexedFileBackend second = new IndexedFileBackend(file, false, true, true);
+
+        first.write(Collections.singletonMap("KEY_FIRST", "first"), true);
+        Assert.assertEquals("first", second.getValue("KEY_FIRST"));
+
+        second.write(Collections.singletonMap("KEY_SECOND", "second"), true);
+        Assert.assertEquals("second", first.getValue("KEY_SECOND"));
+
+        // a compaction rewrites the file, which makes the other instance reload it
+        second.compact();
+        first.write(Collections.singletonMap("KEY_FIRST", (String) null), true);
+        Assert.assertFalse(second.contains("KEY_FIRST"));
+        Assert.assertEquals("second", second.getValue("KEY_SECOND"));
+
+        first.clear();
+        Assert.assertFalse(second.contains("KEY_SECOND"));
+    }
+
+    @Test
+    public void testAppendOnlyFileBackendStoresRawCiphertext() throws SecureStorageException {
+        File file = new File(context.getFilesDir(), "secure_storage.log");
+        AppendOnlyFileBackend backend = new AppendOnlyFileBackend(file);
+        KeystoreTool.prewarm(context, KeystoreTool.DEFAULT_KEY_ALIAS);
+        // written as Base64 String, like before raw values were supported
+        backend.write(Collections.singletonMap("KEY_LEGACY", KeystoreTool.encryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, "legacy")), true);
+        SecurePreferences.setStorageBackend(backend);
+
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+
+        byte[] stored = backend.getBytes("KEY_STRING");
+        Assert.assertNotNull(stored);
+        Assert.assertTrue(KeystoreTool.isBinaryValue(stored));
+        // marker, IV, type and value, tag
+        Assert.assertEquals(1 + 12 + 1 + 5 + 16, stored.length);
+        Assert.assertEquals("value", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+        Assert.assertEquals("legacy", SecurePreferences.getStringValue(context, "KEY_LEGACY", null));
+    }
+
+    @Test
+    public void testNamedStoresAreIndependent() throws SecureStorageException {
+        SecureStore userStore = SecurePreferences.getStore(context, "user");
+        SecureStore settingsStore = SecurePreferences.getStore(context, "settings");
+        Assert.assertSame(userStore, SecurePreferences.getStore(context, "user"));
+
+        userStore.setValue("KEY_STRING", "user");
+        settingsStore.setValue("KEY_STRING", "settings");
+        SecurePreferences.setValue(context, "KEY_STRING", "default");
+
+        Assert.assertEquals("user", userStore.getStringValue("KEY_STRING", null));
+        Assert.assertEquals("settings", settingsStore.getStringValue("KEY_STRING", null));
+        Assert.assertEquals("default", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+
+        // Clearing a store keeps the master key and the values of all other stores
+        userStore.clear();
+
+        Assert.assertFalse(userStore.contains("KEY_STRING"));
+        Assert.assertTrue(KeystoreTool.keyPairExists());
+        Assert.assertEquals("settings", settingsStore.getStringValue("KEY_STRING", null));
+        Assert.assertEquals("default", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+        settingsStore.clear();
+    }
+
+    @Test
+    public void testConcurrentWritesGenerateOneKey() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            final String prefix = "KEY_" + thread + "_";
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws SecureStorageException {
+                    for (int i = 0; i < 20; i++) {
+                        SecurePreferences.setValue(context, prefix + i, "value " + i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+
+        // every value has been encrypted with the same data key, none got lost to a second key
+        for (int thread = 0; thread < 4; thread++) {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals("value " + i, SecurePreferences.getStringValue(context, "KEY_" + thread + "_" + i, null));
+            }
+        }
+    }
+
+    @Test
+    public void testRotateKeyReencryptsValues() throws Exception {
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        SecurePreferences.setValue(context, "KEY_INT", 42);
+        byte[] large = new byte[100 * 1024];
+        new Random(1).nextBytes(large);
+        try (OutputStream outputStream = SecurePreferences.openEncryptedOutputStream(context, "KEY_LARGE")) {
+            outputStream.write(large);
+        }
+
+        SecurePreferences.rotateKey(context).get();
+
+        Assert.assertEquals("value", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+        Assert.assertEquals(42, SecurePreferences.getIntValue(context, "KEY_INT", 0));
+        Assert.assertArrayEquals(large, SecurePreferences.getBytes(context, "KEY_LARGE", null));
+        // the values are tagged with the new key version and the previous key is deleted
+        String stored = new SharedPreferencesBackend(context, "SecurePreferences").getValue("KEY_STRING");
+        Assert.assertNotNull(stored);
+        Assert.assertTrue(stored.startsWith("v4:"));
+        Assert.assertFalse(KeystoreTool.hasRetiredDataKeys(context, KeystoreTool.DEFAULT_KEY_ALIAS));
+    }
+
+    @Test
+    public void testRotateKeyRejectsMultiProcessBackend() throws SecureStorageException {
+        SecureStore store = SecurePreferences.getStore(context, "shared");
+        store.setStorageBackend(new IndexedFileBackend(new File(context.getFilesDir(), "secure_storage_rotation.log"), false, false, true));
+        store.setValue("KEY_STRING", "value");
+
+        try {
+            store.rotateKey();
+            Assert.fail("Other processes would keep encrypting with the retired key");
+        } catch (SecureStorageException e) {
+            Assert.assertEquals(SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION, e.type);
+        }
+        Assert.assertEquals("value", store.getStringValue("KEY_STRING", null));
+        store.clear();
+    }
+
+    @Test
+    public void testEmptyBinaryValueIsRejected() {
+        Assert.assertEquals(KeystoreTool.NO_KEY_VERSION, KeystoreTool.getKeyVersion(new byte[0]));
+        try {
+            KeystoreTool.decryptValue(context, KeystoreTool.DEFAULT_KEY_ALIAS, new byte[0]);
+            Assert.fail("An empty value can't be decrypted");
+        } catch (SecureStorageException e) {
+            Assert.assertEquals(SecureStorageException.ExceptionType.CRYPTO_EXCEPTION, e.type);
+        }
+    }
+
+    @Test
+    public void testClearAllValuesDeletesKey() throws SecureStorageException {
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        SecureStore userStore = SecurePreferences.getStore(context, "user");
+        userStore.setValue("KEY_STRING", "user");
+
+        SecurePreferences.clearAllValues(context);
+
+        Assert.assertFalse(KeystoreTool.keyPairExists());
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_STRING"));
+        // the values of named stores are removed as well, not only left unreadable
+        Assert.assertFalse(userStore.contains("KEY_STRING"));
+        Assert.assertFalse(new SharedPreferencesBackend(context, "SecurePreferences_user").contains("KEY_STRING"));
+    }
+
+    @Test
+    public void testFailedWritesAreReported() throws SecureStorageException {
+        SecureStore store = SecurePreferences.getStore(context, "failing");
+        store.setStorageBackend(new FailingBackend());
+
+        try {
+            store.setValue("KEY_STRING", "value");
+            Assert.fail("A failed write must throw");
+        } catch (SecureStorageException e) {
+            Assert.assertEquals(SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION, e.type);
+        }
+        // removeValue doesn't throw, the rejected write is reported to the metrics
+        final List<SecureStorageMetrics.Operation> failedOperations = new ArrayList<>();
+        SecurePreferences.setMetrics(new SecureStorageMetrics() {
+            @Override
+            public void onOperation(@NonNull Operation operation, long durationNanos, int bytes) {
+            }
+
+            @Override
+            public void onCacheAccess(boolean hit) {
+            }
+
+            @Override
+            public void onFailure(@NonNull Operation operation, @NonNull SecureStorageException.ExceptionType type) {
+                failedOperations.add(operation);
+            }
+        });
+        store.removeValue("KEY_STRING");
+        Assert.assertEquals(Collections.singletonList(SecureStorageMetrics.Operation.BACKEND_WRITE), failedOperations);
+        try {
+            store.edit().putString("KEY_STRING", "value").apply();
+            Assert.fail("A failed apply must throw");
+        } catch (SecureStorageException e) {
+            Assert.assertEquals(SecureStorageException.ExceptionType.INTERNAL_LIBRARY_EXCEPTION, e.type);
+        }
+        // commit reports the failure with its result
+        Assert.assertFalse(store.edit().putString("KEY_STRING", "value").commit());
+    }
+
+    @Test
+    public void testContainsFollowsChangesOutsideOfTheStore() throws SecureStorageException {
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_STRING"));
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        Assert.assertTrue(SecurePreferences.contains(context, "KEY_STRING"));
+
+        // the index of stored keys learns about changes of the SharedPreferences file by its listener
+        SharedPreferencesBackend backend = new SharedPreferencesBackend(context, "SecurePreferences");
+        String encrypted = backend.getValue("KEY_STRING");
+        backend.write(Collections.singletonMap("KEY_STRING", (String) null), true);
+        Assert.assertFalse(SecurePreferences.contains(context, "KEY_STRING"));
+        Assert.assertNull(SecurePreferences.getStringValue(context, "KEY_STRING", null));
+
+        backend.write(Collections.singletonMap("KEY_STRING", encrypted), true);
+        Assert.assertTrue(SecurePreferences.contains(context, "KEY_STRING"));
+        Assert.assertEquals("value", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+    }
+
+    @Test
+    public void testObserverReceivesLatestValue() throws Exception {
+        final Object noValue = new Object();
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+        SecureStorageObserver observer = new SecureStorageObserver() {
+            @Override
+            public void onChanged(@NonNull String key, @Nullable Object value) {
+                values.add(value == null ? noValue : value);
+            }
+        };
+        Executor directExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        };
+
+        SecurePreferences.observe(context, "KEY_STRING", observer, directExecutor);
+        Assert.assertSame(noValue, values.poll(5, TimeUnit.SECONDS));
+
+        // a burst of changes is delivered with the latest value, not once per change
+        for (int i = 0; i < 10; i++) {
+            SecurePreferences.setValue(context, "KEY_STRING", "value" + i);
+        }
+        int deliveries = 1;
+        while (!"value9".equals(values.poll(5, TimeUnit.SECONDS))) {
+            deliveries++;
+        }
+        Assert.assertTrue(deliveries < 10);
+
+        // large values are not decrypted up front, the observer reads them from its own stream
+        SecurePreferences.observe(context, "KEY_BLOB", observer, directExecutor);
+        Assert.assertSame(noValue, values.poll(5, TimeUnit.SECONDS));
+        byte[] large = new byte[100 * 1024];
+        new Random(2).nextBytes(large);
+        try (OutputStream outputStream = SecurePreferences.openEncryptedOutputStream(context, "KEY_BLOB")) {
+            outputStream.write(large);
+        }
+        Object blobValue = values.poll(5, TimeUnit.SECONDS);
+        Assert.assertTrue(blobValue instanceof InputStream);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (InputStream inputStream = (InputStream) blobValue) {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                read.write(buffer, 0, length);
+            }
+        }
+        Assert.assertArrayEquals(large, read.toByteArray());
+        SecurePreferences.removeObserver(context, "KEY_BLOB", observer);
+
+        SecurePreferences.removeObserver(context, "KEY_STRING", observer);
+        SecurePreferences.removeValue(context, "KEY_STRING");
+        Assert.assertNull(values.poll(ValueObservers.DELIVERY_WINDOW_MILLIS * 4, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testMetricsReportOperationsAndFailures() throws SecureStorageException {
+        final List<SecureStorageMetrics.Operation> operations = Collections.synchronizedList(new ArrayList<SecureStorageMetrics.Operation>());
+        final List<SecureStorageException.ExceptionType> failures = Collections.synchronizedList(new ArrayList<SecureStorageException.ExceptionType>());
+        SecurePreferences.setMetrics(new SecureStorageMetrics() {
+            @Override
+            public void onOperation(@NonNull Operation operation, long durationNanos, int bytes) {
+                operations.add(operation);
+            }
+
+            @Override
+            public void onCacheAccess(boolean hit) {
+            }
+
+            @Override
+            public void onFailure(@NonNull Operation operation, @NonNull SecureStorageException.ExceptionType type) {
+                failures.add(type);
+            }
+        });
+
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        SecurePreferences.getStringValue(context, "KEY_STRING", null);
+
+        Assert.assertTrue(operations.contains(SecureStorageMetrics.Operation.ENCRYPT));
+        Assert.assertTrue(operations.contains(SecureStorageMetrics.Operation.DECRYPT));
+        Assert.assertTrue(operations.contains(SecureStorageMetrics.Operation.BACKEND_WRITE));
+        Assert.assertTrue(operations.contains(SecureStorageMetrics.Operation.BACKEND_READ));
+        Assert.assertTrue(failures.isEmpty());
+
+        // A value which can't be decrypted falls back to the default, but is reported as failure
+        new SharedPreferencesBackend(context, "SecurePreferences")
+                .write(Collections.singletonMap("KEY_STRING", "v3:AAAAAAAAAAAAAAAAAAAAAAAAAAAA"), true);
+        Assert.assertNull(SecurePreferences.getStringValue(context, "KEY_STRING", null));
+        Assert.assertEquals(Collections.singletonList(SecureStorageException.ExceptionType.CRYPTO_EXCEPTION), failures);
+    }
+
+    @Test
+    public void testKeysAndCiphersAreResolvedOnce() throws Exception {
+        CountingKeyProvider countingProvider = new CountingKeyProvider(keyProvider);
+        SecurePreferences.setKeyProvider(countingProvider);
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        // the key pair generated by the first write is confirmed once, from then on it is known to exist
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        int keyLookups = countingProvider.keyLookups;
+        int keyOperations = countingProvider.keyOperations;
+        Cipher cipher = getThreadLocalValue("DATA_CIPHER");
+
+        for (int i = 0; i < 10; i++) {
+            SecurePreferences.setValue(context, "KEY_STRING", "value" + i);
+            Assert.assertEquals("value" + i, SecurePreferences.getStringValue(context, "KEY_STRING", null));
+        }
+
+        // neither the master key is looked up again nor the data key unwrapped again
+        Assert.assertEquals(keyLookups, countingProvider.keyLookups);
+        Assert.assertEquals(keyOperations, countingProvider.keyOperations);
+        Assert.assertSame(cipher, getThreadLocalValue("DATA_CIPHER"));
+
+        // the cached keys are dropped together with the key pair
+        SecurePreferences.clearAllValues(context);
+        SecurePreferences.setValue(context, "KEY_STRING", "value");
+        Assert.assertTrue(countingProvider.keyLookups > keyLookups);
+        Assert.assertEquals("value", SecurePreferences.getStringValue(context, "KEY_STRING", null));
+    }
+
+    @Test
+    public void testDecryptZeroesThePooledBuffer() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 20 * 1024) {
+            builder.append("\uD83D\uDE8C value ");
+        }
+        // larger than the pooled buffer, which gets a one-off buffer, and smaller ones reusing the pooled buffer
+        String largeValue = builder.toString();
+        String mediumValue = largeValue.substring(0, 8 * 1024);
+        String smallValue = "small";
+        SecurePreferences.setValue(context, "KEY_LARGE", largeValue);
+        SecurePreferences.setValue(context, "KEY_MEDIUM", mediumValue);
+        SecurePreferences.setValue(context, "KEY_SMALL", smallValue);
+
+        // a shorter value read after a longer one from the same buffer must not contain its rest
+        Assert.assertEquals(mediumValue, SecurePreferences.getStringValue(context, "KEY_MEDIUM", null));
+        Assert.assertEquals(smallValue, SecurePreferences.getStringValue(context, "KEY_SMALL", null));
+        Assert.assertEquals(largeValue, SecurePreferences.getStringValue(context, "KEY_LARGE", null));
+
+        byte[] buffer = getThreadLocalValue("PLAIN_BUFFER");
+        Assert.assertNotNull(buffer);
+        Assert.assertArrayEquals(new byte[buffer.length], buffer);
+    }
+
+    @Test
+    public void testPrewarmResolvesKeysAndHotValues() throws Exception {
+        SecurePreferences.setValue(context, "KEY_HOT", "hot");
+        SecurePreferences.setValue(context, "KEY_COLD", "cold");
+        // like in a new process, the data key has to be unwrapped again
+        CountingKeyProvider countingProvider = new CountingKeyProvider(keyProvider);
+        SecurePreferences.setKeyProvider(countingProvider);
+        SecurePreferences.enableValueCache(context, 16, 64 * 1024);
+
+        AsyncSecurePreferences async = new AsyncSecurePreferences(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+        async.prewarm(context, null, "KEY_HOT").get(5, TimeUnit.SECONDS);
+        int keyOperations = countingProvider.keyOperations;
+        Assert.assertTrue(keyOperations > 0);
+
+        final List<Boolean> cacheAccesses = new ArrayList<>();
+        SecurePreferences.setMetrics(new SecureStorageMetrics() {
+            @Override
+            public void onOperation(@NonNull Operation operation, long durationNanos, int bytes) {
+            }
+
+            @Override
+            public void onCacheAccess(boolean hit) {
+                cacheAccesses.add(hit);
+            }
+
+            @Override
+            public void onFailure(@NonNull Operation operation, @NonNull SecureStorageException.ExceptionType type) {
+            }
+        });
+        Assert.assertEquals("hot", SecurePreferences.getStringValue(context, "KEY_HOT", null));
+        Assert.assertEquals("cold", SecurePreferences.getStringValue(context, "KEY_COLD", null));
+
+        // the first reads don't touch the master key and only the hot key has been decrypted in advance
+        Assert.assertEquals(keyOperations, countingProvider.keyOperations);
+        Assert.assertEquals(Arrays.asList(true, false), cacheAccesses);
+    }
+
+    @Test
+    public void testPersistedKeyStrategyIsUsedWithoutProbing() throws SecureStorageException {
+        // Robolectric has no AndroidKeyStore, so any access to the keystore would throw
+        for (KeyStrategy strategy : KeyStrategy.values()) {
+            context.getSharedPreferences("SecurePreferencesKeyStrategy", Context.MODE_PRIVATE).edit()
+                    .putString("strategy", strategy.name()).commit();
+            Assert.assertEquals(strategy, new AndroidKeyStoreKeyProvider(KeyStrategy.AES_GCM_STRONGBOX).getStrategy(context));
+        }
+    }
+
+    @Test
+    public void testKeyStrategyFallsBackWithoutStrongBox() throws Exception {
+        // generateKey walks down from the preferred strategy to the more compatible ones
+        Assert.assertEquals(Arrays.asList(KeyStrategy.AES_GCM_STRONGBOX, KeyStrategy.AES_GCM, KeyStrategy.RSA_PKCS1),
+                Arrays.asList(KeyStrategy.values()));
+        Method generateKey = AndroidKeyStoreKeyProvider.class.getDeclaredMethod("generateKey", Context.class, KeyStrategy.class);
+        generateKey.setAccessible(true);
+        // the device has no StrongBox, so the keystore isn't even asked
+        Assert.assertEquals(false, generateKey.invoke(null, context, KeyStrategy.AES_GCM_STRONGBOX));
+    }
+
+    /**
+     * Backend which rejects every write, e.g. because the disk is full
+     */
+    private static final class FailingBackend implements SecureStorageBackend {
+        @Nullable
+        @Override
+        public String getValue(@NonNull String key) {
+            return null;
+        }
+
+        @Override
+        public boolean contains(@NonNull String key) {
+            return false;
+        }
+
+        @NonNull
+        @Override
+        public Set<String> getKeys() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public boolean write(@NonNull Map<String, String> changes, boolean synchronous) {
+            return false;
+        }
+
+        @Override
+        public boolean clear() {
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T getThreadLocalValue(@NonNull String fieldName) throws Exception {
+        Field field = KeystoreTool.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return ((ThreadLocal<T>) field.get(null)).get();
+    }
+
+    /**
+     * Counts how often the master key is looked up and used
+     */
+    private static final class CountingKeyProvider implements KeyProvider {
+        @NonNull
+        private final KeyProvider keyProvider;
+        private int keyLookups;
+        private int keyOperations;
+
+        CountingKeyProvider(@NonNull KeyProvider keyProvider) {
+            this.keyProvider = keyProvider;
+        }
+
+        @Override
+        public boolean keyExists() throws SecureStorageException {
+            keyLookups++;
+            return keyProvider.keyExists();
+        }
+
+        @Override
+        public void generateKey(@NonNull Context context) throws SecureStorageException {
+            keyProvider.generateKey(context);
+        }
+
+        @Override
+        public void deleteKey(@NonNull Context context) throws SecureStorageException {
+            keyProvider.deleteKey(context);
+        }
+
+        @Override
+        public void prewarm(@NonNull Context context) throws SecureStorageException {
+            keyProvider.prewarm(context);
+        }
+
+        @NonNull
+        @Override
+        public byte[] encrypt(@NonNull Context context, @NonNull byte[] plainBytes) throws SecureStorageException {
+            keyOperations++;
+            return keyProvider.encrypt(context, plainBytes);
+        }
+
+        @NonNull
+        @Override
+        public byte[] decrypt(@NonNull Context context, @NonNull byte[] encryptedBytes) throws SecureStorageException {
+            keyOperations++;
+            return keyProvider.decrypt(context, encryptedBytes);
+        }
+    }
+}